@@ -0,0 +1,213 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Bitrate targets of a video relay.
+ *
+ * The relay doesn't transcode, so a receiver that is short of bandwidth can only be
+ * helped by the sender on the other leg. Its estimate (REMB, or TMMBR on the sip side)
+ * is taken out of the rtcp and given to that sender again, capped by what the receiver
+ * asked for in its sdp (b=AS): the sip side's own b=AS for the stream it receives, the
+ * one we announce for the stream we receive. When the sip side gives a b=AS but no
+ * estimate, the cap alone is sent to the xmpp sender.
+ *
+ * Lower targets go out right away, higher ones at most every interval so a sender
+ * isn't pushed up on every report
+ *
+ */
+class BandwidthBridge
+{
+	// kbit/s, in the b=AS of our video m-line
+	private static int VIDEO_BANDWIDTH = 960;
+	private static int VIDEO_FRAMERATE = 30;
+	private static long INTERVAL = TimeUnit.MILLISECONDS.toNanos(1000);
+	// the rate of a direction is measured over at least this long
+	private static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+	// bit/s, 0 when the sip side gave no b=AS
+	private long sipCap = 0;
+
+	private long sipEstimate = -1;
+	private long jabberEstimate = -1;
+	private long toJabber = -1;
+	private long toSip = -1;
+	private long lastToJabber = 0;
+	private long lastToSip = 0;
+
+	private long rateTime = 0;
+	private long sipBytes = 0;
+	private long jabberBytes = 0;
+	private long sipRate = 0;
+	private long jabberRate = 0;
+
+
+	public static void configure(Properties properties)
+	{
+		VIDEO_BANDWIDTH = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.video_bandwidth", "960"));
+		VIDEO_FRAMERATE = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.video_framerate", "30"));
+		INTERVAL = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.bandwidth_interval", "1000")));
+	}
+
+	public static int getVideoBandwidth()
+	{
+		return VIDEO_BANDWIDTH;
+	}
+
+	public static int getVideoFramerate()
+	{
+		return VIDEO_FRAMERATE;
+	}
+
+	/*
+	 * The b=AS of the sip side's video m-line in kbit/s, -1 when it has none
+	 */
+	public synchronized void setSipBandwidth(int kbps)
+	{
+		sipCap = kbps > 0 ? kbps * 1000L : 0;
+	}
+
+	/*
+	 * The sip side can receive this much, returns the target for the xmpp sender or -1
+	 * when it is not time to send one
+	 */
+	public synchronized long fromSip(long estimate, long now)
+	{
+		sipEstimate = estimate;
+		return targetToJabber(now);
+	}
+
+	/*
+	 * The cap alone, on each rtcp from the sip side while it gives no estimate
+	 */
+	public synchronized long capToJabber(long now)
+	{
+		if (sipCap == 0 || sipEstimate >= 0)
+		{
+			return -1;
+		}
+		return targetToJabber(now);
+	}
+
+	private long targetToJabber(long now)
+	{
+		long target = sipEstimate >= 0 ? sipEstimate : Long.MAX_VALUE;
+		if (sipCap > 0)
+		{
+			target = Math.min(target, sipCap);
+		}
+		if (target == Long.MAX_VALUE || !due(target, toJabber, lastToJabber, now))
+		{
+			return -1;
+		}
+		toJabber = target;
+		lastToJabber = now;
+		return target;
+	}
+
+	/*
+	 * The xmpp side can receive this much, returns the target for the sip sender or -1
+	 */
+	public synchronized long fromJabber(long estimate, long now)
+	{
+		jabberEstimate = estimate;
+		long target = Math.min(estimate, VIDEO_BANDWIDTH * 1000L);
+		if (!due(target, toSip, lastToSip, now))
+		{
+			return -1;
+		}
+		toSip = target;
+		lastToSip = now;
+		return target;
+	}
+
+	private static boolean due(long target, long last, long lastTime, long now)
+	{
+		return last < 0 || target < last || now - lastTime >= INTERVAL;
+	}
+
+	/*
+	 * Byte counts of what each side sends, the rates are updated once a window has passed
+	 */
+	public synchronized void observe(long sipTotal, long jabberTotal, long now)
+	{
+		if (rateTime == 0)
+		{
+			rateTime = now;
+			sipBytes = sipTotal;
+			jabberBytes = jabberTotal;
+			return;
+		}
+		long elapsed = now - rateTime;
+		if (elapsed < RATE_WINDOW)
+		{
+			return;
+		}
+		sipRate = (sipTotal - sipBytes) * 8 * 1000000000L / elapsed;
+		jabberRate = (jabberTotal - jabberBytes) * 8 * 1000000000L / elapsed;
+		rateTime = now;
+		sipBytes = sipTotal;
+		jabberBytes = jabberTotal;
+	}
+
+	/*
+	 * Last target sent to the xmpp sender in bit/s, -1 if none
+	 */
+	public synchronized long getJabberTarget()
+	{
+		return toJabber;
+	}
+
+	public synchronized long getSipTarget()
+	{
+		return toSip;
+	}
+
+	/*
+	 * Rate the sip side sends at in bit/s
+	 */
+	public synchronized long getSipRate()
+	{
+		return sipRate;
+	}
+
+	public synchronized long getJabberRate()
+	{
+		return jabberRate;
+	}
+
+	private static String kbps(long bps)
+	{
+		return bps < 0 ? "-" : Long.toString(bps / 1000);
+	}
+
+	public synchronized String summary()
+	{
+		return "bandwidth (kbit/s): sip_cap=" + (sipCap > 0 ? kbps(sipCap) : "-")
+		     + " sip_estimate=" + kbps(sipEstimate)
+		     + " xmpp_estimate=" + kbps(jabberEstimate)
+		     + " to_xmpp=" + kbps(toJabber)
+		     + " to_sip=" + kbps(toSip)
+		     + " sip_rate=" + kbps(sipRate)
+		     + " xmpp_rate=" + kbps(jabberRate);
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Pool of MTU sized packet buffers shared by all relays.
+ *
+ * Buffers are carved out of large slabs so direct memory is reserved a slab at a time,
+ * and handed back to a free stack when released so nothing is allocated per packet
+ *
+ */
+public class BufferPool
+{
+	private static int BUFFER_SIZE = 1500;
+	private static int SLAB_BUFFERS = 256;
+	private static boolean DIRECT = true;
+
+	private static ByteBuffer [] free = new ByteBuffer[0];
+	private static int freeCount = 0;
+	private static int allocated = 0;
+
+	static Logger logger = Logger.getLogger(BufferPool.class);
+
+
+	public static void configure(Properties properties)
+	{
+		BUFFER_SIZE = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.buffer_size", "1500"));
+		SLAB_BUFFERS = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.slab_buffers", "256"));
+		DIRECT = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.rtp.direct_buffers", "true"));
+	}
+
+	private static void grow()
+	{
+		ByteBuffer slab;
+		if (DIRECT)
+		{
+			slab = ByteBuffer.allocateDirect(BUFFER_SIZE * SLAB_BUFFERS);
+		}
+		else
+		{
+			slab = ByteBuffer.allocate(BUFFER_SIZE * SLAB_BUFFERS);
+		}
+
+		allocated += SLAB_BUFFERS;
+		if (free.length < allocated)
+		{
+			ByteBuffer [] bigger = new ByteBuffer[allocated];
+			System.arraycopy(free, 0, bigger, 0, freeCount);
+			free = bigger;
+		}
+
+		for (int i = 0; i < SLAB_BUFFERS; i++)
+		{
+			slab.limit((i + 1) * BUFFER_SIZE);
+			slab.position(i * BUFFER_SIZE);
+			free[freeCount++] = slab.slice();
+		}
+
+		logger.info("Buffer pool grown to " + allocated + " buffers of " + BUFFER_SIZE + " bytes (" + (DIRECT ? "direct" : "heap") + ")");
+	}
+
+	public static synchronized ByteBuffer acquire()
+	{
+		if (freeCount == 0)
+		{
+			grow();
+		}
+
+		ByteBuffer buffer = free[--freeCount];
+		free[freeCount] = null;
+		buffer.clear();
+		return buffer;
+	}
+
+	public static synchronized void release(ByteBuffer buffer)
+	{
+		if (buffer != null)
+		{
+			free[freeCount++] = buffer;
+		}
+	}
+
+	public static int getBufferSize()
+	{
+		return BUFFER_SIZE;
+	}
+
+	public static boolean isDirect()
+	{
+		return DIRECT;
+	}
+
+	public static synchronized int getAllocatedCount()
+	{
+		return allocated;
+	}
+
+	public static synchronized int getFreeCount()
+	{
+		return freeCount;
+	}
+}
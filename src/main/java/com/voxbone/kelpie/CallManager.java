@@ -17,8 +17,15 @@
 package com.voxbone.kelpie;
 
 
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.sip.DialogState;
+
+import org.apache.log4j.Logger;
 import org.jabberstudio.jso.JID;
 
 
@@ -32,10 +39,36 @@ public class CallManager
 {
 
 	static Hashtable<String, CallSession> calls = new Hashtable<String, CallSession>();
+	
+	// a call nothing was heard of for this long (s) is considered orphaned (lost BYE/CANCEL)
+	private static long CALL_TIMEOUT = 14400;
+	
+	private static ExpiryIndex<CallSession> expiry = new ExpiryIndex<CallSession>();
+	
+	private static AtomicLong reaped = new AtomicLong(0);
+	
+	static Logger logger = Logger.getLogger(CallManager.class);
 
+	public static void configure(Properties properties)
+	{
+		CALL_TIMEOUT = Long.parseLong(properties.getProperty("com.voxbone.kelpie.call_timeout", "14400"));
+	}
+	
 	public static void addSession(CallSession cs)
 	{
 		calls.put(cs.jabberSessionId, cs);
+		if (CALL_TIMEOUT > 0)
+		{
+			expiry.put(cs, System.currentTimeMillis() + CALL_TIMEOUT * 1000);
+		}
+	}
+	
+	/*
+	 * Pushes back the time the call is considered orphaned
+	 */
+	public static void touch(CallSession cs)
+	{
+		expiry.update(cs, System.currentTimeMillis() + CALL_TIMEOUT * 1000);
 	}
 
 	public static CallSession getSession(String sid)
@@ -45,8 +78,15 @@ public class CallManager
 
 	public static void removeSession(CallSession cs)
 	{
-		calls.remove(cs.jabberSessionId);
-		cs.relay.shutdown();
+		if (calls.remove(cs.jabberSessionId) != null)
+		{
+			MediaBypass.record(cs);
+		}
+		expiry.remove(cs);
+		if (cs.relay != null)
+		{
+			cs.relay.shutdown();
+		}
 		if (cs.vRelay != null)
 		{
 			cs.vRelay.shutdown();
@@ -68,4 +108,110 @@ public class CallManager
 		}
 		return null;
 	}
+
+	/*
+	 * Releases the relays and the entry of calls whose end we never heard about
+	 */
+	public static void sweep(long now)
+	{
+		for (CallSession cs : expiry.pollExpired(now))
+		{
+			logger.warn("[[" + cs.internalCallId + "]] Call idle for " + CALL_TIMEOUT + "s, reclaiming");
+			removeSession(cs);
+		}
+	}
+	
+	/*
+	 * Decided on the audio alone, a side can stop its video (camera off) and keep the call
+	 */
+	private static boolean isMediaIdle(CallSession cs, long now)
+	{
+		return cs.relay != null ? cs.relay.isMediaIdle(now) : cs.vRelay != null && cs.vRelay.isMediaIdle(now);
+	}
+	
+	/*
+	 * Sends the due session refreshes and tears down the calls that both the media
+	 * and the sip dialog say are dead
+	 */
+	public static void reap(long now)
+	{
+		List<CallSession> snapshot;
+		synchronized (calls)
+		{
+			snapshot = new ArrayList<CallSession>(calls.values());
+		}
+		
+		for (CallSession cs : snapshot)
+		{
+			// ringing calls have no media yet, the call timeout covers them
+			DialogState state = cs.sipDialog == null ? null : cs.sipDialog.getState();
+			if (state == null || state == DialogState.EARLY)
+			{
+				continue;
+			}
+			
+			SessionTimer.check(cs, now);
+			
+			if (!isMediaIdle(cs, now))
+			{
+				touch(cs);
+			}
+			else if (SessionTimer.isExpired(cs, now))
+			{
+				logger.warn("[[" + cs.internalCallId + "]] No media and no sip session, tearing down the call");
+				reaped.incrementAndGet();
+				Session sess = SessionManager.findCreateSession(cs.jabberLocal.getDomain(), cs.jabberRemote);
+				if (sess != null)
+				{
+					sess.sendBye(cs);
+				}
+				else
+				{
+					removeSession(cs);
+				}
+				if (state == DialogState.CONFIRMED && !cs.sipDead)
+				{
+					SipService.sendBye(cs);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * One line of media statistics per live call
+	 */
+	public static List<String> getMediaStats()
+	{
+		List<CallSession> snapshot;
+		synchronized (calls)
+		{
+			snapshot = new ArrayList<CallSession>(calls.values());
+		}
+		
+		List<String> result = new ArrayList<String>();
+		for (CallSession cs : snapshot)
+		{
+			RtpRelay relay = cs.relay;
+			RtpRelay vRelay = cs.vRelay;
+			if (relay != null)
+			{
+				result.add("[[" + cs.internalCallId + "]] " + relay.getStatsSummary());
+			}
+			if (vRelay != null)
+			{
+				result.add("[[" + cs.internalCallId + "]] " + vRelay.getStatsSummary());
+			}
+		}
+		return result;
+	}
+	
+	public static long getReapedCount()
+	{
+		return reaped.get();
+	}
+	
+	public static String report()
+	{
+		return "calls=" + expiry.getLiveCount() + " (" + expiry.getExpiredCount() + " reclaimed, " + reaped.get() + " reaped) " + MediaBypass.report() + " " + KeyframeRequests.report() + " " + KeyframeCache.report();
+	}
 }
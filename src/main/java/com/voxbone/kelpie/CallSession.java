@@ -18,9 +18,15 @@ package com.voxbone.kelpie;
 
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Hashtable;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.sdp.Attribute;
 import javax.sdp.MediaDescription;
@@ -114,6 +120,23 @@ public class CallSession
 	boolean sentTransport = false;
 	boolean sentVTransport = false;
 	boolean callAccepted = false;
+	
+	// RFC 4028 session timer, interval in seconds (0 when none) and deadlines in ms
+	volatile int sessionInterval = 0;
+	volatile boolean sessionRefresher = false;
+	volatile long sessionExpires = 0;
+	volatile long nextRefresh = 0;
+	// a refresh told us the dialog no longer exists
+	volatile boolean sipDead = false;
+	
+	// where each side could take media directly, see MediaBypass
+	volatile String sipMediaAddress = null;
+	volatile boolean jabberCandidateSeen = false;
+	volatile boolean jabberReachable = false;
+	
+	// media ids of the sip side m-lines, used in the BUNDLE group
+	String sipAudioMid = "audio";
+	String sipVideoMid = "video";
 
 	Dialog sipDialog;
 	ServerTransaction inviteTransaction;
@@ -129,6 +152,23 @@ public class CallSession
 	LinkedList<VPayload> offerVPayloads = new LinkedList<VPayload>();
 	LinkedList<VPayload> answerVPayloads = new LinkedList<VPayload>();
 	
+	// what the sip side answered, before the answer lists are rewritten for the xmpp side (transcoding, svc)
+	private List<Payload> sipAnswerPayloads = null;
+	private List<VPayload> sipAnswerVPayloads = null;
+	// the offer of the sip side when it called us
+	private String sipOffer = null;
+	
+	// m=video line of an sdp, with its profile and first format
+	private static final Pattern VIDEO_LINE = Pattern.compile("(?m)^m=video \\d+ (\\S+) (\\d+)");
+	
+	// o= of our sdp, the session id stays and the version only moves when the sdp does (RFC 3264 8)
+	private long sdpSessionId = 0;
+	private long sdpVersion = 0;
+	private String sdpLast = null;
+	
+	// packetization-mode of each H.264 payload type of the sip side's sdp, echoed in our answer
+	private Hashtable<Integer, Integer> sipH264Modes = new Hashtable<Integer, Integer>();
+	
 
 	Logger logger = Logger.getLogger(this.getClass());
 	
@@ -201,6 +241,157 @@ public class CallSession
 		return null;		
 	}
 	
+	private static boolean containsPayload(List<? extends Payload> payloads, Payload payload)
+	{
+		for (Payload p : payloads)
+		{
+			if (p.name.equalsIgnoreCase(payload.name) && p.clockRate == payload.clockRate)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean containsPayload(List<? extends Payload> payloads, int id)
+	{
+		for (Payload p : payloads)
+		{
+			if (p.id == id)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * The audio payloads we pass on to the answering side: the ones of the offer, plus the
+	 * other G.711 law when the offer has only one, so we can transcode if that is all it does
+	 */
+	public List<Payload> getOfferedPayloads()
+	{
+		LinkedList<Payload> result = new LinkedList<Payload>(offerPayloads);
+		if (G711.isEnabled())
+		{
+			boolean pcmu = containsPayload(offerPayloads, G711.PCMU);
+			boolean pcma = containsPayload(offerPayloads, G711.PCMA);
+			if (pcmu && !pcma)
+			{
+				result.add(PAYLOAD_PCMA);
+			}
+			else if (pcma && !pcmu)
+			{
+				result.add(PAYLOAD_PCMU);
+			}
+		}
+		return result;
+	}
+	
+	/*
+	 * The video payloads we offer the sip side: the xmpp side's, plus plain H264 when it only
+	 * has H264-SVC, the relay can strip that down to its base layer
+	 */
+	public List<VPayload> getOfferedVPayloads()
+	{
+		LinkedList<VPayload> result = new LinkedList<VPayload>(offerVPayloads);
+		if (SvcFilter.isEnabled() && containsPayload(offerVPayloads, PAYLOAD_H264SVC) && !containsPayload(offerVPayloads, PAYLOAD_H264))
+		{
+			int id = PAYLOAD_H264.id;
+			while (containsPayload(offerVPayloads, id) || containsPayload(offerPayloads, id))
+			{
+				id = id < 127 ? id + 1 : 96;
+			}
+			result.add(new VPayload(id, PAYLOAD_H264.name, PAYLOAD_H264.clockRate, PAYLOAD_H264.bitRate, PAYLOAD_H264.width, PAYLOAD_H264.height, PAYLOAD_H264.framerate));
+		}
+		return result;
+	}
+
+	/*
+	 * Once the sip answer is in: if it took the H264 we added, the xmpp side is answered with
+	 * its H264-SVC and the relay filters
+	 */
+	private void selectSvcFilter()
+	{
+		if (!SvcFilter.isEnabled() || vRelay == null)
+		{
+			return;
+		}
+		for (VPayload p : answerVPayloads)
+		{
+			if (containsPayload(offerVPayloads, p))
+			{
+				return;
+			}
+		}
+		VPayload svc = null;
+		for (VPayload p : offerVPayloads)
+		{
+			if (p.name.equalsIgnoreCase(PAYLOAD_H264SVC.name))
+			{
+				svc = p;
+			}
+		}
+		for (ListIterator<VPayload> it = answerVPayloads.listIterator(); it.hasNext(); )
+		{
+			VPayload p = it.next();
+			if (svc != null && p.name.equalsIgnoreCase(PAYLOAD_H264.name))
+			{
+				it.set(svc);
+				vRelay.setSvcFilter(svc.id, p.id);
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * Hands the relay the clock of what was negotiated, so its worker never walks the lists
+	 */
+	private void setClockRates()
+	{
+		if (relay != null)
+		{
+			relay.setClockRates(answerPayloads, offerPayloads);
+		}
+	}
+
+	/*
+	 * Once the answer is in: if it only has the G.711 law we added to the offer, the offerer
+	 * is answered with its own law and the relay converts between the two
+	 */
+	private void selectTranscoding(boolean sipAnswered)
+	{
+		if (!G711.isEnabled() || relay == null)
+		{
+			return;
+		}
+		for (Payload p : answerPayloads)
+		{
+			if (containsPayload(offerPayloads, p))
+			{
+				return;
+			}
+		}
+		for (ListIterator<Payload> it = answerPayloads.listIterator(); it.hasNext(); )
+		{
+			Payload p = it.next();
+			int sibling = G711.getSibling(p.id);
+			if (sibling >= 0 && containsPayload(offerPayloads, sibling))
+			{
+				it.set(getById(sibling));
+				if (sipAnswered)
+				{
+					relay.setTranscoding(p.id, sibling);
+				}
+				else
+				{
+					relay.setTranscoding(sibling, p.id);
+				}
+				return;
+			}
+		}
+	}
+	
 	public void parseInitiate(Packet p, boolean jingle)
 	{
 		if(!jingle)
@@ -239,7 +430,8 @@ public class CallSession
 			StreamElement session = p.getFirstElement(new NSI("session", "http://www.google.com/session"));
 			parseSession(session, false);
 		}
-
+		selectTranscoding(false);
+		setClockRates();
 	}
 
 
@@ -387,7 +579,15 @@ public class CallSession
 						
 					} 
 				
-
+				// rtcp-mux (XEP-0167), sent in the offer and echoed in the answer
+				if (desc.getFirstElement("rtcp-mux") != null)
+				{
+					RtpRelay r = video ? vRelay : relay;
+					if (r != null)
+					{
+						r.setJabberRtcpMux();
+					}
+				}
 
 			}
 		}
@@ -500,14 +700,29 @@ public class CallSession
 	}
 	
 	public SessionDescription buildSDP(boolean offer)
+	{
+		if (offer)
+		{
+			return setOrigin(describe(true, getOfferedPayloads(), vRelay != null ? getOfferedVPayloads() : null));
+		}
+		if (vRelay == null && sipOffer != null)
+		{
+			return setOrigin(refuseVideo(describe(false, answerPayloads, null), sipOffer));
+		}
+		return setOrigin(describe(false, answerPayloads, vRelay != null ? answerVPayloads : null));
+	}
+	
+	/*
+	 * Our sdp with the given payloads, no video m-line when video is null, and no o= yet.
+	 * In an answer rtcp-mux, BUNDLE and the rtcp feedback are only there when they were negotiated
+	 */
+	private SessionDescription describe(boolean offer, List<? extends Payload> audio, List<? extends Payload> video)
 	{
 		SdpFactory sdpFactory = SdpFactory.getInstance();
 		try
 		{
 			SessionDescription sd = sdpFactory.createSessionDescription();
 			sd.setVersion(sdpFactory.createVersion(0));
-			long ntpts = SdpFactory.getNtpTime(new Date());
-			sd.setOrigin(sdpFactory.createOrigin("JabberGW", ntpts, ntpts, "IN", "IP4", SipService.getLocalIP()));
 
 			sd.setSessionName(sdpFactory.createSessionName("Jabber Call"));
 			Vector<Time> times = new Vector<Time>();
@@ -519,25 +734,12 @@ public class CallSession
 			
 			Vector<Attribute> attributes = new Vector<Attribute>();
 			
-			if (offer)
-			{
-				formats = new int[offerPayloads.size() + 1];
-				int i = 0;
-				for (Payload p : offerPayloads)
-				{
-					formats[i++] = p.id;
-					attributes.add(sdpFactory.createAttribute("rtpmap", Integer.toString(p.id) + " " + p.name + "/" + p.clockRate));
-				}
-			}
-			else
+			formats = new int[audio.size() + 1];
+			int i = 0;
+			for (Payload p : audio)
 			{
-				formats = new int[answerPayloads.size() + 1];
-				int i = 0;
-				for (Payload p : answerPayloads)
-				{
-					formats[i++] = p.id;
-					attributes.add(sdpFactory.createAttribute("rtpmap", Integer.toString(p.id) + " " + p.name + "/" + p.clockRate));
-				}				
+				formats[i++] = p.id;
+				attributes.add(sdpFactory.createAttribute("rtpmap", Integer.toString(p.id) + " " + p.name + "/" + p.clockRate));
 			}
 			
 			formats[formats.length - 1] = 101;
@@ -545,46 +747,84 @@ public class CallSession
 			attributes.add(sdpFactory.createAttribute("rtpmap", "101 telephone-event/8000"));
 			attributes.add(sdpFactory.createAttribute("fmtp", "101 0-15"));
 			
-			MediaDescription md = sdpFactory.createMediaDescription("audio", this.relay.getSipPort(), 1, "RTP/AVP", formats);
+			// in an offer we propose rtcp-mux and BUNDLE, in an answer we only keep what was accepted
+			boolean rtcpMux = offer ? RtpRelay.isRtcpMuxEnabled() : this.relay.isSipRtcpMux();
+			boolean bundle = vRelay != null && video != null && (offer ? RtpRelay.isRtcpMuxEnabled() && RtpRelay.isBundleEnabled() : this.relay.isSipBundled());
+			
+			if (rtcpMux)
+			{
+				attributes.add(sdpFactory.createAttribute("rtcp-mux", null));
+			}
+			if (bundle)
+			{
+				attributes.add(sdpFactory.createAttribute("mid", sipAudioMid));
+				Vector<Attribute> sessionAttributes = new Vector<Attribute>();
+				sessionAttributes.add(sdpFactory.createAttribute("group", "BUNDLE " + sipAudioMid + " " + sipVideoMid));
+				sd.setAttributes(sessionAttributes);
+			}
+			
+			String profile = getSipProfile(this.relay, offer);
+			addCrypto(sdpFactory, attributes, this.relay, offer);
+			
+			MediaDescription md = sdpFactory.createMediaDescription("audio", this.relay.getSipPort(), 1, profile, formats);
 			md.setAttributes(attributes);
 			
 			Vector<MediaDescription> mds = new Vector<MediaDescription>();
 			mds.add(md);
 
-			if (vRelay != null)
+			if (vRelay != null && video != null)
 			{
 				// video call, add video m-line
 				attributes = new Vector<Attribute>();
 				
-				if (offer)
+				formats = new int[video.size()];
+				i = 0;
+				for (Payload p : video)
 				{
-					formats = new int[offerVPayloads.size()];
-					int i = 0;
-					for (Payload p : offerVPayloads)
+					formats[i++] = p.id;
+					attributes.add(sdpFactory.createAttribute("rtpmap", Integer.toString(p.id) + " " + p.name + "/" + p.clockRate));						
+					if (p.name.equalsIgnoreCase(PAYLOAD_H264.name))
 					{
-						formats[i++] = p.id;
-						attributes.add(sdpFactory.createAttribute("rtpmap", Integer.toString(p.id) + " " + p.name + "/" + p.clockRate));						
-						attributes.add(sdpFactory.createAttribute("fmtp", Integer.toString(p.id) + " packetization-rate=1"));
+						// the packetizer does mode 1, an answer has the mode of the offer (RFC 6184 8.2.2)
+						Integer mode = offer ? null : sipH264Modes.get(p.id);
+						attributes.add(sdpFactory.createAttribute("fmtp", Integer.toString(p.id) + " packetization-mode=" + (mode != null ? mode : 1)));
 					}
 				}
-				else
-				{
-					formats = new int[answerVPayloads.size()];
-					int i = 0;
-					for (Payload p : answerVPayloads)
-					{
-						formats[i++] = p.id;
-						attributes.add(sdpFactory.createAttribute("rtpmap", Integer.toString(p.id) + " " + p.name + "/" + p.clockRate));						
-						attributes.add(sdpFactory.createAttribute("fmtp", Integer.toString(p.id) + " packetization-rate=1"));
-					}				
-				}
 				
-				attributes.add(sdpFactory.createAttribute("framerate", "30"));
+				attributes.add(sdpFactory.createAttribute("framerate", Integer.toString(BandwidthBridge.getVideoFramerate())));
 				attributes.add(sdpFactory.createAttribute("rtcp", Integer.toString(this.vRelay.getSipRtcpPort())));
+				if (offer ? RtpRelay.isRtcpMuxEnabled() : this.vRelay.isSipRtcpMux())
+				{
+					attributes.add(sdpFactory.createAttribute("rtcp-mux", null));
+				}
+				if (bundle)
+				{
+					attributes.add(sdpFactory.createAttribute("mid", sipVideoMid));
+				}
+				// keyframe requests we take as rtcp, an answer only keeps what was offered
+				if (offer || this.vRelay.isSipPli())
+				{
+					attributes.add(sdpFactory.createAttribute("rtcp-fb", "* nack pli"));
+				}
+				if (offer || this.vRelay.isSipFir())
+				{
+					attributes.add(sdpFactory.createAttribute("rtcp-fb", "* ccm fir"));
+				}
+				// and the bitrate estimates
+				if (offer || this.vRelay.isSipTmmbr())
+				{
+					attributes.add(sdpFactory.createAttribute("rtcp-fb", "* ccm tmmbr"));
+				}
+				if (offer || this.vRelay.isSipRemb())
+				{
+					attributes.add(sdpFactory.createAttribute("rtcp-fb", "* goog-remb"));
+				}
 
-				md.setBandwidth("AS", 960);
-				md = sdpFactory.createMediaDescription("video", this.vRelay.getSipPort(), 1, "RTP/AVP", formats);
+				addCrypto(sdpFactory, attributes, this.vRelay, offer);
+				md = sdpFactory.createMediaDescription("video", this.vRelay.getSipPort(), 1, getSipProfile(this.vRelay, offer), formats);
 				md.setAttributes(attributes);
+				// set on the video m-line, it used to land on the audio one
+				md.setBandwidth("AS", BandwidthBridge.getVideoBandwidth());
 				mds.add(md);
 			}
 
@@ -598,7 +838,306 @@ public class CallSession
 		return null;
 	}
 	
-	public void parseSDP(String sdp, boolean offer)
+	/*
+	 * Same session id for the whole call, the version is bumped when the rest of the sdp
+	 * differs from the last one we sent
+	 */
+	private synchronized SessionDescription setOrigin(SessionDescription sd)
+	{
+		if (sd == null)
+		{
+			return null;
+		}
+		SdpFactory sdpFactory = SdpFactory.getInstance();
+		try
+		{
+			if (sdpSessionId == 0)
+			{
+				sdpSessionId = SdpFactory.getNtpTime(new Date());
+				sdpVersion = sdpSessionId;
+			}
+			sd.setOrigin(sdpFactory.createOrigin("JabberGW", sdpSessionId, sdpVersion, "IN", "IP4", SipService.getLocalIP()));
+			
+			String content = sd.toString().replaceFirst("(?m)^o=.*$", "");
+			if (sdpLast != null && !sdpLast.equals(content))
+			{
+				sdpVersion++;
+				sd.setOrigin(sdpFactory.createOrigin("JabberGW", sdpSessionId, sdpVersion, "IN", "IP4", SipService.getLocalIP()));
+			}
+			sdpLast = content;
+			return sd;
+		}
+		catch (SdpException e)
+		{
+			logger.error("Error building SDP", e);
+		}
+		return null;
+	}
+	
+	/*
+	 * The payloads the sip side uses on the call: its answer when we offered, our answer otherwise
+	 */
+	private List<? extends Payload> getSipPayloads(boolean video)
+	{
+		if (video)
+		{
+			return sipAnswerVPayloads != null ? sipAnswerVPayloads : answerVPayloads;
+		}
+		return sipAnswerPayloads != null ? sipAnswerPayloads : answerPayloads;
+	}
+	
+	/*
+	 * The negotiated payloads the sip side still has in a re-offer
+	 */
+	private static <T extends Payload> List<T> keepOffered(List<T> negotiated, List<? extends Payload> offered)
+	{
+		LinkedList<T> result = new LinkedList<T>();
+		for (T p : negotiated)
+		{
+			if (containsPayload(offered, p) && containsPayload(offered, p.id))
+			{
+				result.add(p);
+			}
+		}
+		return result;
+	}
+	
+	/*
+	 * Answer to a re-INVITE. The offer updates the addresses, keys and feedback of the
+	 * relays, the codecs stay the ones negotiated at call setup that the offer still has,
+	 * the xmpp side is not renegotiated. Without an offer the current session is offered
+	 * again. Null when the offer leaves no audio codec we can keep
+	 */
+	public SessionDescription answerReoffer(byte [] content)
+	{
+		List<? extends Payload> audio = getSipPayloads(false);
+		List<? extends Payload> video = vRelay != null ? getSipPayloads(true) : null;
+		if (content == null || content.length == 0)
+		{
+			return setOrigin(describe(false, audio, video));
+		}
+		
+		LinkedList<Payload> offered = new LinkedList<Payload>();
+		LinkedList<VPayload> offeredVideo = new LinkedList<VPayload>();
+		String sdp = new String(content);
+		// checked first, a refused re-INVITE leaves the session as it was (RFC 3261 14.2)
+		if (!parseSDP(sdp, true, offered, offeredVideo, false, false))
+		{
+			return null;
+		}
+		
+		audio = keepOffered(audio, offered);
+		if (audio.isEmpty())
+		{
+			logger.warn("[[" + internalCallId + "]] re-INVITE without any of the negotiated audio codecs");
+			return null;
+		}
+		boolean videoOffered = VIDEO_LINE.matcher(sdp).find();
+		if (video != null)
+		{
+			video = videoOffered ? keepOffered(video, offeredVideo) : null;
+			if (video != null && video.isEmpty())
+			{
+				video = null;
+			}
+		}
+		// the offer is taken, the relays move to its addresses and keys
+		if (!parseSDP(sdp, true, new LinkedList<Payload>(), new LinkedList<VPayload>(), false, true))
+		{
+			return null;
+		}
+		SessionDescription answer = describe(false, audio, video);
+		return setOrigin(video == null ? refuseVideo(answer, sdp) : answer);
+	}
+	
+	/*
+	 * An answer has the m-lines of the offer, video it has that we don't take is refused
+	 * with port 0
+	 */
+	private SessionDescription refuseVideo(SessionDescription answer, String offer)
+	{
+		Matcher m = VIDEO_LINE.matcher(offer);
+		if (answer == null || !m.find())
+		{
+			return answer;
+		}
+		try
+		{
+			@SuppressWarnings("unchecked")
+			Vector<MediaDescription> mds = (Vector<MediaDescription>) answer.getMediaDescriptions(true);
+			mds.add(SdpFactory.getInstance().createMediaDescription("video", 0, 1, m.group(1), new int [] { Integer.parseInt(m.group(2)) }));
+			return answer;
+		}
+		catch (SdpException e)
+		{
+			logger.error("Error building SDP", e);
+		}
+		return null;
+	}
+	
+	/*
+	 * packetization-mode in the fmtp of an H.264 payload, 0 when not given (RFC 6184 8.1)
+	 */
+	private static int getPacketizationMode(Vector<Attribute> attributes, int pt) throws SdpParseException
+	{
+		for (Attribute attrib : attributes)
+		{
+			String value = attrib.getValue();
+			if (attrib.getName().equals("fmtp") && value != null && value.startsWith(pt + " "))
+			{
+				for (String param : value.substring(value.indexOf(' ') + 1).split(";"))
+				{
+					String [] pair = param.trim().split("=", 2);
+					if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("packetization-mode"))
+					{
+						try
+						{
+							return Integer.parseInt(pair[1].trim());
+						}
+						catch (NumberFormatException e)
+						{
+							return 0;
+						}
+					}
+				}
+			}
+		}
+		return 0;
+	}
+	
+	/*
+	 * RTP/SAVP when we offer SDES-SRTP or answer an offer that had it
+	 */
+	private String getSipProfile(RtpRelay r, boolean offer)
+	{
+		return (offer && SrtpContext.isOffered()) || r.isSrtp() ? "RTP/SAVP" : "RTP/AVP";
+	}
+	
+	private void addCrypto(SdpFactory sdpFactory, Vector<Attribute> attributes, RtpRelay r, boolean offer)
+	{
+		if ((offer && SrtpContext.isOffered()) || r.isSrtp())
+		{
+			attributes.add(sdpFactory.createAttribute("crypto", r.getLocalCrypto().toString()));
+		}
+	}
+	
+	/*
+	 * The direction attribute among these (RFC 3264 5.1), the given default when there is none
+	 */
+	private static String getDirection(Vector<Attribute> attributes, String otherwise) throws SdpParseException
+	{
+		if (attributes != null)
+		{
+			for (Attribute attrib : attributes)
+			{
+				String name = attrib.getName();
+				if (name.equals("sendrecv") || name.equals("sendonly") || name.equals("recvonly") || name.equals("inactive"))
+				{
+					return name;
+				}
+			}
+		}
+		return otherwise;
+	}
+	
+	/*
+	 * Whether the side that wrote the sdp sends media in that direction, a side on hold
+	 * is recvonly or inactive
+	 */
+	private static boolean isSending(String direction)
+	{
+		return !direction.equals("recvonly") && !direction.equals("inactive");
+	}
+	
+	private static boolean isSecure(MediaDescription md) throws SdpParseException
+	{
+		return md.getMedia().getProtocol().equalsIgnoreCase("RTP/SAVP");
+	}
+	
+	/*
+	 * The SDES key of an RTP/SAVP m-line: the first one we support in an offer (local is
+	 * null), the one matching ours in an answer. Null when there is none
+	 */
+	private static SrtpContext.Crypto getCrypto(MediaDescription md, SrtpContext.Crypto local) throws SdpParseException
+	{
+		@SuppressWarnings("unchecked")
+		Vector<Attribute> attributes = (Vector<Attribute>) md.getAttributes(false);
+		if (attributes == null)
+		{
+			return null;
+		}
+		for (Attribute attrib : attributes)
+		{
+			if (attrib.getName().equals("crypto") && attrib.getValue() != null)
+			{
+				SrtpContext.Crypto c = SrtpContext.Crypto.parse(attrib.getValue());
+				if (c != null && (local == null || (c.tag == local.tag && c.suite.equals(local.suite))))
+				{
+					return c;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/*
+	 * Starts SRTP on the relay from an m-line of the sip side, or only checks it can be
+	 * when not apply. False when the stream can't be taken: RTP/SAVP without a key we
+	 * support, or plain RTP answering our RTP/SAVP offer. A stream is never run with less
+	 * protection than was asked for
+	 */
+	private boolean setCrypto(MediaDescription md, RtpRelay r, boolean offer, boolean apply) throws SdpParseException
+	{
+		if (!isSecure(md))
+		{
+			if (!offer && SrtpContext.isOffered())
+			{
+				logger.warn("[[" + internalCallId + "]] RTP/AVP answer to our RTP/SAVP offer");
+				return false;
+			}
+			return true;
+		}
+		SrtpContext.Crypto crypto = getCrypto(md, offer ? null : r.getLocalCrypto());
+		if (crypto == null)
+		{
+			logger.warn("[[" + internalCallId + "]] RTP/SAVP without a usable crypto attribute");
+			return false;
+		}
+		return !apply || r.setRemoteCrypto(crypto);
+	}
+	
+	/*
+	 * The offer of the sip side when it called, or its answer to ours. False when it can't
+	 * be taken, the call is to be refused or ended
+	 */
+	public boolean parseSDP(String sdp, boolean offer)
+	{
+		if (offer)
+		{
+			sipOffer = sdp;
+		}
+		if (!parseSDP(sdp, offer, offer ? offerPayloads : answerPayloads, offer ? offerVPayloads : answerVPayloads, true, true))
+		{
+			return false;
+		}
+		if (!offer)
+		{
+			sipAnswerPayloads = new LinkedList<Payload>(answerPayloads);
+			sipAnswerVPayloads = new LinkedList<VPayload>(answerVPayloads);
+			selectTranscoding(true);
+			setClockRates();
+			selectSvcFilter();
+		}
+		return true;
+	}
+	
+	/*
+	 * Adds the payloads of an sdp of the sip side to the lists and, when apply, sets up the
+	 * relays from it; without apply nothing of the call is touched. A video relay is only
+	 * created at call setup. False when the sdp can't be parsed or its audio can't be taken;
+	 * offered video we can't secure is left out, to be refused
+	 */
+	private boolean parseSDP(String sdp, boolean offer, List<Payload> payloads, List<VPayload> vPayloads, boolean setup, boolean apply)
 	{
 		SdpFactory sdpFactory = SdpFactory.getInstance();
 		
@@ -607,6 +1146,26 @@ public class CallSession
 			SessionDescription sd = sdpFactory.createSessionDescription(sdp);
 			@SuppressWarnings("unchecked")
 			Vector<MediaDescription> mdesc = (Vector<MediaDescription>) sd.getMediaDescriptions(false);
+			
+			List<String> bundleGroup = null;
+			@SuppressWarnings("unchecked")
+			Vector<Attribute> sessionAttributes = (Vector<Attribute>) sd.getAttributes(false);
+			String sessionDirection = getDirection(sessionAttributes, "sendrecv");
+			if (sessionAttributes != null)
+			{
+				for (Attribute attrib : sessionAttributes)
+				{
+					if (attrib.getName().equals("group") && attrib.getValue() != null && attrib.getValue().startsWith("BUNDLE "))
+					{
+						bundleGroup = Arrays.asList(attrib.getValue().substring(7).trim().split(" +"));
+					}
+				}
+			}
+			
+			String audioMid = null;
+			String videoMid = null;
+			boolean audioMux = false;
+			boolean videoMux = false;
 
 			for (MediaDescription md : mdesc)
 			{			
@@ -616,7 +1175,14 @@ public class CallSession
 				{
 					logger.info("[[" + internalCallId + "]] Video sdp detected! starting video rtp stream...");
 					
-					if (vRelay == null)
+					// a stream refused or disabled with port 0 has no key to check
+					if (offer && media.getMediaPort() != 0 && isSecure(md) && getCrypto(md, null) == null)
+					{
+						logger.warn("[[" + internalCallId + "]] RTP/SAVP video without a usable crypto attribute, refusing it");
+						continue;
+					}
+					
+					if (vRelay == null && setup && apply)
 					{
 						try
 						{
@@ -639,13 +1205,46 @@ public class CallSession
 						remoteParty = sd.getConnection().getAddress();
 					}
 
-					vRelay.setSipDest(remoteParty, remotePort);
+					if (vRelay != null)
+					{
+						if (remotePort != 0 && !setCrypto(md, vRelay, offer, apply))
+						{
+							return false;
+						}
+						if (apply)
+						{
+							vRelay.setSipDest(remoteParty, remotePort);
+						}
+					}
 
+					boolean pli = false;
+					boolean fir = false;
+					boolean tmmbr = false;
+					boolean remb = false;
+					int h264 = -1;
+					Hashtable<Integer, Integer> h264Modes = new Hashtable<Integer, Integer>();
 					@SuppressWarnings("unchecked")
 					Vector<Attribute> attributes = (Vector<Attribute>) md.getAttributes(false);
 					for (Attribute attrib : attributes)
 					{
-						if (attrib.getName().equals("rtpmap"))
+						if (attrib.getName().equals("rtcp-mux"))
+						{
+							videoMux = true;
+						}
+						else if (attrib.getName().equals("rtcp-fb") && attrib.getValue() != null)
+						{
+							// "<pt or *> nack pli" and "<pt or *> ccm fir"
+							String fb = attrib.getValue().trim().replaceAll(" +", " ");
+							pli |= fb.endsWith(" nack pli");
+							fir |= fb.endsWith(" ccm fir");
+							tmmbr |= fb.endsWith(" ccm tmmbr");
+							remb |= fb.endsWith(" goog-remb");
+						}
+						else if (attrib.getName().equals("mid"))
+						{
+							videoMid = attrib.getValue();
+						}
+						else if (attrib.getName().equals("rtpmap"))
 						{
 							logger.debug("[[" + internalCallId + "]] Got attribute value " + attrib.getValue());
 							String fields[] = attrib.getValue().split(" ", 2);
@@ -654,6 +1253,21 @@ public class CallSession
 							int clockRate = Integer.parseInt(fields[1].split("/")[1]);
 							logger.debug("[[" + internalCallId + "]] Payload " + codec + " rate " + clockRate + " is mapped to " + name);
 
+							if (name.equalsIgnoreCase(PAYLOAD_H264.name))
+							{
+								int mode = getPacketizationMode(attributes, codec);
+								if (mode > 1)
+								{
+									// interleaved, where the single NAL unit and STAP-A packets we send are not allowed
+									logger.info("[[" + internalCallId + "]] H.264 payload " + codec + " in packetization-mode " + mode + " left out");
+									continue;
+								}
+								h264Modes.put(codec, mode);
+								if (h264 < 0)
+								{
+									h264 = codec;
+								}
+							}
 							if (codec >= 96)
 							{
 								Payload bitRatePayload = getByName(name, clockRate);
@@ -662,18 +1276,22 @@ public class CallSession
 									VPayload tmp = (VPayload) bitRatePayload;
 									VPayload p = new VPayload(codec, tmp.name, clockRate, tmp.bitRate, tmp.width, tmp.height, tmp.framerate);
 
-									if (offer)
-									{
-										offerVPayloads.add(p);
-									}
-									else
-									{
-										answerVPayloads.add(p);
-									}
+									vPayloads.add(p);
 								}						
 							}
 						}
 					}
+					if (vRelay != null && apply)
+					{
+						vRelay.setSipSending(isSending(getDirection(attributes, sessionDirection)));
+						vRelay.setSipFeedback(pli, fir, tmmbr, remb);
+						vRelay.setSipBandwidth(md.getBandwidth("AS"));
+						sipH264Modes = h264Modes;
+						if (h264 >= 0)
+						{
+							vRelay.setPacketization(h264, h264Modes.get(h264));
+						}
+					}
 				}
 				else
 				{
@@ -688,7 +1306,18 @@ public class CallSession
 						remoteParty = sd.getConnection().getAddress();
 					}
 
-					relay.setSipDest(remoteParty, remotePort);
+					if (!setCrypto(md, relay, offer, apply))
+					{
+						return false;
+					}
+					if (apply)
+					{
+						relay.setSipDest(remoteParty, remotePort);
+						sipMediaAddress = remoteParty;
+						@SuppressWarnings("unchecked")
+						Vector<Attribute> mediaAttributes = (Vector<Attribute>) md.getAttributes(false);
+						relay.setSipSending(isSending(getDirection(mediaAttributes, sessionDirection)));
+					}
 
 					@SuppressWarnings("unchecked")
 					Vector<String> codecs = (Vector<String>) media.getMediaFormats(false);
@@ -701,14 +1330,7 @@ public class CallSession
 							Payload p = getById(id);
 							if (p != null)
 							{
-								if (offer)
-								{
-									offerPayloads.add(p);
-								}
-								else
-								{
-									answerPayloads.add(p);
-								}
+								payloads.add(p);
 							}
 						}
 					}
@@ -717,7 +1339,15 @@ public class CallSession
 					Vector<Attribute> attributes = (Vector<Attribute>) md.getAttributes(false);
 					for (Attribute attrib : attributes)
 					{
-						if (attrib.getName().equals("rtpmap"))
+						if (attrib.getName().equals("rtcp-mux"))
+						{
+							audioMux = true;
+						}
+						else if (attrib.getName().equals("mid"))
+						{
+							audioMid = attrib.getValue();
+						}
+						else if (attrib.getName().equals("rtpmap"))
 						{
 							logger.debug("[[" + internalCallId + "]] Got attribute value " + attrib.getValue());
 							String fields[] = attrib.getValue().split(" ", 2);
@@ -732,20 +1362,37 @@ public class CallSession
 								if (bitRatePayload != null)
 								{
 									Payload p = new Payload(codec, name, clockRate, bitRatePayload.bitRate);
-									if (offer)
-									{
-										offerPayloads.add(p);
-									}
-									else
-									{
-										answerPayloads.add(p);
-									}
+									payloads.add(p);
 								}						
 							}
 						}
 					}
 				}
 			}
+			
+			if (!apply)
+			{
+				return true;
+			}
+			
+			if (audioMux && relay != null)
+			{
+				relay.setSipRtcpMux();
+			}
+			if (videoMux && vRelay != null)
+			{
+				vRelay.setSipRtcpMux();
+			}
+			
+			// both m-lines in the same BUNDLE group, the video moves onto the audio 5-tuple
+			if (   bundleGroup != null && relay != null && vRelay != null && audioMux && videoMux
+			    && bundleGroup.contains(audioMid) && bundleGroup.contains(videoMid))
+			{
+				sipAudioMid = audioMid;
+				sipVideoMid = videoMid;
+				relay.bundle(vRelay, vPayloads);
+			}
+			return true;
 		} 
 		catch (SdpParseException e)
 		{
@@ -755,13 +1402,14 @@ public class CallSession
 		{
 			logger.error("Unable to parse SDP!", e);
 		}		
+		return false;
 	}
 
-	public void parseInvite(Message message, Dialog d, ServerTransaction trans)
+	public boolean parseInvite(Message message, Dialog d, ServerTransaction trans)
 	{
 		sipDialog = d;
 		inviteTransaction = trans;
-		parseSDP(new String(message.getRawContent()), true);
+		return parseSDP(new String(message.getRawContent()), true);
 	}
 
 }
@@ -16,6 +16,10 @@
 
 package com.voxbone.kelpie;
 
+
+import java.nio.ByteBuffer;
+
+
 /**
  * Class used to generate RFC2833 DTMF events
  *
@@ -26,9 +30,9 @@ public class DtmfEvent
 	byte event;
 	short duration;
 	
-	byte [] rtpPacket = new byte[16];
+	ByteBuffer rtpPacket = ByteBuffer.allocate(16);
 	
-	public DtmfEvent(char dtmf, long startTime, byte [] ssrc)
+	public DtmfEvent(char dtmf, long startTime, int ssrc)
 	{
 		if (dtmf == '*')
 		{
@@ -59,39 +63,41 @@ public class DtmfEvent
 			event = Byte.parseByte("" + dtmf);
 		}
 		
-		RtpUtil.buildRtpHeader(rtpPacket, 101, (short) 0, startTime, ssrc);
-		rtpPacket[12] = this.event;
-		rtpPacket[13] = 10;
+		RtpUtil.buildRtpHeader(rtpPacket, 101, 0, startTime, ssrc);
+		rtpPacket.put(12, this.event);
+		rtpPacket.put(13, (byte) 10);
 		duration = 0;
 	}
 	
-	public byte [] startPacket()
+	/*
+	 * The packets share one buffer, each call rewinds it for sending
+	 */
+	public ByteBuffer startPacket()
 	{
 		RtpUtil.setMarker(rtpPacket, true);
 		
 		duration += 160;
-		
-		rtpPacket[15] = (byte) (duration & 0xFF);
-		rtpPacket[14] = (byte) ((duration >> 8) & 0xFF);
+		rtpPacket.putShort(14, duration);
 
+		rtpPacket.clear();
 		return rtpPacket;
 	}
 	
-	public byte [] continuationPacket()
+	public ByteBuffer continuationPacket()
 	{
 		RtpUtil.setMarker(rtpPacket, false);
 
 		duration += 160;
-		
-		rtpPacket[15] = (byte) (duration & 0xFF);
-		rtpPacket[14] = (byte) ((duration >> 8) & 0xFF);
+		rtpPacket.putShort(14, duration);
 
+		rtpPacket.clear();
 		return rtpPacket;
 	}
 	
-	public byte [] endPacket()
+	public ByteBuffer endPacket()
 	{
-		rtpPacket[13] |= (byte) (1<<7);
+		rtpPacket.put(13, (byte) (rtpPacket.get(13) | (1<<7)));
+		rtpPacket.clear();
 		return rtpPacket;
 	}
 
@@ -0,0 +1,135 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * Min-heap of objects by expiry time (ms since the epoch), so the sweeper only looks
+ * at what actually expired.
+ *
+ * Updates and removals leave the old heap entry behind, marked stale, and push a new one
+ * (O(log n)); the heap is rebuilt when the stale entries outnumber the live ones
+ *
+ */
+public class ExpiryIndex<T>
+{
+	private static class Entry<T> implements Comparable<Entry<T>>
+	{
+		T item;
+		long expires;
+		boolean stale = false;
+
+		Entry(T item, long expires)
+		{
+			this.item = item;
+			this.expires = expires;
+		}
+
+		public int compareTo(Entry<T> other)
+		{
+			return expires < other.expires ? -1 : (expires == other.expires ? 0 : 1);
+		}
+	}
+
+	private PriorityQueue<Entry<T>> heap = new PriorityQueue<Entry<T>>();
+	private IdentityHashMap<T, Entry<T>> live = new IdentityHashMap<T, Entry<T>>();
+	private long expired = 0;
+
+
+	/*
+	 * Adds the item, or moves it if already there
+	 */
+	public synchronized void put(T item, long expires)
+	{
+		Entry<T> old = live.get(item);
+		if (old != null)
+		{
+			old.stale = true;
+		}
+		Entry<T> entry = new Entry<T>(item, expires);
+		live.put(item, entry);
+		heap.add(entry);
+		compact();
+	}
+
+	/*
+	 * Moves an item already indexed, returns false (and does nothing) if it is not
+	 */
+	public synchronized boolean update(T item, long expires)
+	{
+		if (!live.containsKey(item))
+		{
+			return false;
+		}
+		put(item, expires);
+		return true;
+	}
+
+	public synchronized void remove(T item)
+	{
+		Entry<T> old = live.remove(item);
+		if (old != null)
+		{
+			old.stale = true;
+			compact();
+		}
+	}
+
+	/*
+	 * Removes and returns the items whose expiry is before now
+	 */
+	public synchronized List<T> pollExpired(long now)
+	{
+		List<T> result = new ArrayList<T>();
+		Entry<T> entry;
+		while ((entry = heap.peek()) != null && (entry.stale || entry.expires <= now))
+		{
+			heap.poll();
+			if (!entry.stale)
+			{
+				live.remove(entry.item);
+				result.add(entry.item);
+			}
+		}
+		expired += result.size();
+		return result;
+	}
+
+	private void compact()
+	{
+		if (heap.size() > 2 * live.size() + 64)
+		{
+			heap = new PriorityQueue<Entry<T>>(live.values());
+		}
+	}
+
+	public synchronized int getLiveCount()
+	{
+		return live.size();
+	}
+
+	public synchronized long getExpiredCount()
+	{
+		return expired;
+	}
+}
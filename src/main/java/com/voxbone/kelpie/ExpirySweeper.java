@@ -0,0 +1,90 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Periodically reclaims expired watchers, subscriptions and orphaned calls, refreshes
+ * the sip session timers and reaps the calls found dead
+ *
+ */
+public class ExpirySweeper extends Thread
+{
+	private static long INTERVAL = 30;
+
+	private static ExpirySweeper sweeper = null;
+
+	static Logger logger = Logger.getLogger(ExpirySweeper.class);
+
+
+	private ExpirySweeper()
+	{
+		super("Expiry Sweeper");
+		setDaemon(true);
+	}
+
+	public static void configure(Properties properties)
+	{
+		INTERVAL = Long.parseLong(properties.getProperty("com.voxbone.kelpie.sweep_interval", "30"));
+		if (INTERVAL < 1)
+		{
+			INTERVAL = 1;
+		}
+	}
+
+	public static synchronized void startSweeping()
+	{
+		if (sweeper == null)
+		{
+			sweeper = new ExpirySweeper();
+			sweeper.start();
+		}
+	}
+
+	public static String report()
+	{
+		return SipSubscriptionManager.report() + " " + CallManager.report();
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				Thread.sleep(INTERVAL * 1000);
+				long now = System.currentTimeMillis();
+				SipSubscriptionManager.sweep(now);
+				CallManager.sweep(now);
+				CallManager.reap(now);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+			catch (Exception e)
+			{
+				logger.error("Error sweeping expired entries", e);
+			}
+		}
+	}
+}
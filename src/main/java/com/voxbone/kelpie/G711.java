@@ -0,0 +1,208 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+
+/**
+ * G.711 mu-law <-> A-law transcoding, for calls where each side only does one of them.
+ *
+ * Both laws are 8 bit samples of the same rate so a packet is converted in place, one
+ * table lookup per byte, the rtp header only changes payload type
+ *
+ */
+public class G711
+{
+	public static final int PCMU = 0;
+	public static final int PCMA = 8;
+
+	private static boolean ENABLED = true;
+
+	// segment ends of the encoders, before the tables they build
+	private static final int [] SEG_END = { 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF, 0x3FFF, 0x7FFF };
+	private static final int [] SEG_AEND = { 0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF };
+
+	private static final byte [] ULAW_TO_ALAW = new byte[256];
+	private static final byte [] ALAW_TO_ULAW = new byte[256];
+
+	static
+	{
+		for (int i = 0; i < 256; i++)
+		{
+			ULAW_TO_ALAW[i] = linearToAlaw(ulawToLinear(i));
+			ALAW_TO_ULAW[i] = linearToUlaw(alawToLinear(i));
+		}
+	}
+
+
+	public static void configure(Properties properties)
+	{
+		ENABLED = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.rtp.transcode_g711", "true"));
+	}
+
+	public static boolean isEnabled()
+	{
+		return ENABLED;
+	}
+
+	/*
+	 * Payload type the given one can be transcoded to, -1 if none
+	 */
+	public static int getSibling(int payloadType)
+	{
+		if (payloadType == PCMU)
+		{
+			return PCMA;
+		}
+		if (payloadType == PCMA)
+		{
+			return PCMU;
+		}
+		return -1;
+	}
+
+	/*
+	 * Conversion table from one law to the other, by payload type
+	 */
+	public static byte [] getTable(int from, int to)
+	{
+		if (from == PCMU && to == PCMA)
+		{
+			return ULAW_TO_ALAW;
+		}
+		if (from == PCMA && to == PCMU)
+		{
+			return ALAW_TO_ULAW;
+		}
+		return null;
+	}
+
+	/*
+	 * Converts the payload of the rtp packet in place and sets the new payload type
+	 */
+	public static void transcode(ByteBuffer packet, byte [] table, int payloadType)
+	{
+		int start = packet.position() + RtpUtil.getHeaderLength(packet);
+		int end = start + RtpUtil.getPayloadLength(packet);
+		if (end > packet.limit())
+		{
+			return;
+		}
+		for (int i = start; i < end; i++)
+		{
+			packet.put(i, table[packet.get(i) & 0xFF]);
+		}
+		RtpUtil.setPayloadType(packet, payloadType);
+	}
+
+	/*
+	 * Reference conversions (ITU-T G.711, as in the G.191 tools), only used to build the tables
+	 */
+	static int ulawToLinear(int ulaw)
+	{
+		ulaw = ~ulaw & 0xFF;
+		int t = ((ulaw & 0x0F) << 3) + 0x84;
+		t <<= (ulaw & 0x70) >> 4;
+		return (ulaw & 0x80) != 0 ? 0x84 - t : t - 0x84;
+	}
+
+	static int alawToLinear(int alaw)
+	{
+		alaw ^= 0x55;
+		int t = (alaw & 0x0F) << 4;
+		int seg = (alaw & 0x70) >> 4;
+		if (seg == 0)
+		{
+			t += 8;
+		}
+		else
+		{
+			t = (t + 0x108) << (seg - 1);
+		}
+		return (alaw & 0x80) != 0 ? t : -t;
+	}
+
+	private static int segment(int value, int [] ends)
+	{
+		for (int i = 0; i < ends.length; i++)
+		{
+			if (value <= ends[i])
+			{
+				return i;
+			}
+		}
+		return ends.length;
+	}
+
+	static byte linearToUlaw(int pcm)
+	{
+		int mask;
+		if (pcm < 0)
+		{
+			pcm = 0x84 - pcm;
+			mask = 0x7F;
+		}
+		else
+		{
+			pcm += 0x84;
+			mask = 0xFF;
+		}
+		if (pcm > 0x7FFF)
+		{
+			pcm = 0x7FFF;
+		}
+		int seg = segment(pcm, SEG_END);
+		if (seg >= 8)
+		{
+			return (byte) (0x7F ^ mask);
+		}
+		return (byte) (((seg << 4) | ((pcm >> (seg + 3)) & 0x0F)) ^ mask);
+	}
+
+	static byte linearToAlaw(int pcm)
+	{
+		int mask;
+		pcm >>= 3;
+		if (pcm >= 0)
+		{
+			mask = 0xD5;
+		}
+		else
+		{
+			mask = 0x55;
+			pcm = -pcm - 1;
+		}
+		int seg = segment(pcm, SEG_AEND);
+		if (seg >= 8)
+		{
+			return (byte) (0x7F ^ mask);
+		}
+		int aval = seg << 4;
+		if (seg < 2)
+		{
+			aval |= (pcm >> 1) & 0x0F;
+		}
+		else
+		{
+			aval |= (pcm >> seg) & 0x0F;
+		}
+		return (byte) (aval ^ mask);
+	}
+}
@@ -146,16 +146,39 @@ public class GatewayServer
 		Presence.configure(properties);
 		Session.configure(properties);
 		SipSubscriptionManager.configure(properties);
+		SubscriptionRefresher.configure(properties);
+		CallManager.configure(properties);
+		SessionTimer.configure(properties);
+		ExpirySweeper.configure(properties);
 		UriMappings.configure(properties);
 		RtpRelay.configure(properties);
-		
+		JitterBuffer.configure(properties);
+		KeyframeRequests.configure(properties);
+		KeyframeCache.configure(properties);
+		BandwidthBridge.configure(properties);
+		G711.configure(properties);
+		SvcFilter.configure(properties);
+		H264Packetizer.configure(properties);
+		SrtpContext.configure(properties);
+		PortAllocator.configure(properties);
+		MediaEngine.configure(properties);
+		MediaTimer.configure(properties);
+		BufferPool.configure(properties);
+		SocketPool.configure(properties);
+		SharedPort.configure(properties);
+		MediaMetrics.configure(properties);
+
 
 		host = properties.getProperty("com.voxbone.kelpie.hostname");
 		port = "5269";
 		
 		@SuppressWarnings("unused")
 		SipService sipService = new SipService(properties);
+		SharedPort.start(SipService.getLocalIP());
+		SocketPool.start(SipService.getLocalIP());
+		MediaMetrics.startReporting();
 		SipSubscriptionManager.loadData();
+		ExpirySweeper.startSweeping();
 		// Create and start server
 		server = new GatewayServer(host, Integer.parseInt(port));
 		new InitThread().start();
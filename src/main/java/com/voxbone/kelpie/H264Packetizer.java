@@ -0,0 +1,403 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+
+/**
+ * Repacketizes the H.264 going to the sip side (RFC 6184) for the packetization mode
+ * it negotiated and the configured mtu.
+ *
+ * In mode 0 only single NAL unit packets are allowed: STAP-A are split in their NAL
+ * units and FU-A are put back together, a NAL unit bigger than the mtu can only go out
+ * whole. In mode 1 packets over the mtu are cut: NAL units and fragments into FU-A,
+ * aggregates into smaller STAP-A.
+ *
+ * Packets come translated already, the extra ones take the next numbers from the
+ * translator and merged ones give theirs back, so the sip side sees one continuous
+ * stream. Pieces are built one at a time in a pooled buffer.
+ *
+ * Not thread safe, the relay calls it with its sipLock held
+ *
+ */
+class H264Packetizer
+{
+	private static int MTU = 1200;
+	// an rtp packet must fit in a udp datagram
+	private static final int MAX_NAL = 65000;
+
+	private SipSender sender;
+	private RtpTranslator translator;
+	private int payload;
+	private int mode;
+	private int mtu;
+
+	// piece being built
+	private ByteBuffer out;
+
+	// mode 0: NAL unit being put back together from its fragments
+	private ByteBuffer nal = null;
+	private boolean assembling = false;
+	private int nextFragment;
+
+	private long passed = 0;
+	private long split = 0;
+	private long pieces = 0;
+	private long reassembled = 0;
+	private long discarded = 0;
+	private long oversize = 0;
+
+
+	public static void configure(Properties properties)
+	{
+		MTU = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.video_mtu", "1200"));
+	}
+
+	public H264Packetizer(SipSender sender, RtpTranslator translator, int payload, int mode)
+	{
+		this.sender = sender;
+		this.translator = translator;
+		this.payload = payload;
+		this.mode = mode;
+		// room for the srtp trailer in the pooled buffers
+		this.mtu = Math.max(100, Math.min(MTU, BufferPool.getBufferSize() - SrtpContext.MAX_TRAILER));
+		this.out = BufferPool.acquire();
+	}
+
+	public int getPayload()
+	{
+		return payload;
+	}
+
+	public int getMode()
+	{
+		return mode;
+	}
+
+	/*
+	 * A translated H.264 packet for the sip side
+	 */
+	public void process(ByteBuffer packet)
+	{
+		int header = RtpUtil.getHeaderLength(packet);
+		int end = header + RtpUtil.getPayloadLength(packet);
+		if (header >= end || end > packet.limit() || header + 3 > mtu)
+		{
+			send(packet);
+			return;
+		}
+
+		int type = RtpUtil.getNALType(packet, header);
+		boolean marker = RtpUtil.getMarker(packet);
+
+		if (assembling && type != RtpUtil.NAL_FU_A)
+		{
+			// the last fragment never came
+			discard();
+		}
+
+		if (mode == 0)
+		{
+			if (type == RtpUtil.NAL_STAP_A)
+			{
+				splitAggregate(packet, header, end, marker);
+			}
+			else if (type == RtpUtil.NAL_FU_A)
+			{
+				reassemble(packet, header, end);
+			}
+			else
+			{
+				send(packet);
+			}
+		}
+		else if (packet.limit() <= mtu)
+		{
+			passed++;
+			sender.sendToSip(packet);
+		}
+		else if (type == RtpUtil.NAL_STAP_A)
+		{
+			splitAggregate(packet, header, end, marker);
+		}
+		else if (type == RtpUtil.NAL_FU_A && end - header > 2)
+		{
+			int fu = packet.get(header + 1) & 0xFF;
+			split++;
+			fragment(packet, header, packet.get(header) & 0xFF, fu & 0x1F, header + 2, end, (fu & 0x80) != 0, (fu & 0x40) != 0, true, marker);
+		}
+		else if (type > 0 && type < RtpUtil.NAL_STAP_A)
+		{
+			split++;
+			single(packet, header, header, end, true, marker);
+		}
+		else
+		{
+			send(packet);
+		}
+	}
+
+	private void send(ByteBuffer packet)
+	{
+		passed++;
+		if (packet.limit() > mtu)
+		{
+			oversize++;
+		}
+		sender.sendToSip(packet);
+	}
+
+	/*
+	 * Starts a piece with the header of the packet, the first piece keeps its number
+	 */
+	private void beginPiece(ByteBuffer packet, int header, boolean first)
+	{
+		out.clear();
+		for (int i = 0; i < header; i++)
+		{
+			out.put(i, packet.get(i));
+		}
+		// no padding on what we build
+		out.put(0, (byte) (out.get(0) & 0xDF));
+		if (!first)
+		{
+			RtpUtil.setSequenceNumber(out, translator.nextInsertedSequence());
+		}
+		out.position(header);
+	}
+
+	private void endPiece(boolean marker)
+	{
+		out.flip();
+		RtpUtil.setMarker(out, marker);
+		pieces++;
+		sender.sendToSip(out);
+	}
+
+	private void copy(ByteBuffer packet, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			out.put(packet.get(i));
+		}
+	}
+
+	/*
+	 * The NAL unit between from and to, in a packet of its own when it fits or when
+	 * mode 0 leaves no choice, in FU-A otherwise
+	 */
+	private void single(ByteBuffer packet, int header, int from, int to, boolean first, boolean marker)
+	{
+		if (mode == 0 || header + to - from <= mtu || to - from < 2)
+		{
+			if (header + to - from > mtu)
+			{
+				oversize++;
+			}
+			beginPiece(packet, header, first);
+			copy(packet, from, to);
+			endPiece(marker);
+			return;
+		}
+		int nalHeader = packet.get(from) & 0xFF;
+		fragment(packet, header, (nalHeader & 0xE0) | RtpUtil.NAL_FU_A, nalHeader & 0x1F, from + 1, to, true, true, first, marker);
+	}
+
+	/*
+	 * FU-A pieces of the NAL unit data between from and to, start and end tell whether
+	 * the data begins and ends the NAL unit
+	 */
+	private void fragment(ByteBuffer packet, int header, int indicator, int type, int from, int to, boolean start, boolean end, boolean first, boolean marker)
+	{
+		int chunk = mtu - header - 2;
+		for (int pos = from; pos < to; pos += chunk)
+		{
+			int stop = Math.min(to, pos + chunk);
+			int fu = type;
+			if (start && pos == from)
+			{
+				fu |= 0x80;
+			}
+			if (end && stop == to)
+			{
+				fu |= 0x40;
+			}
+			beginPiece(packet, header, first && pos == from);
+			out.put((byte) indicator);
+			out.put((byte) fu);
+			copy(packet, pos, stop);
+			endPiece(marker && stop == to);
+		}
+	}
+
+	/*
+	 * The NAL units of a STAP-A, one per packet in mode 0, as many as fit in mode 1
+	 */
+	private void splitAggregate(ByteBuffer packet, int header, int end, boolean marker)
+	{
+		// end of the last well formed entry
+		int last = header + 1;
+		while (last + 3 <= end)
+		{
+			int length = packet.getShort(last) & 0xFFFF;
+			if (length == 0 || last + 2 + length > end)
+			{
+				break;
+			}
+			last += 2 + length;
+		}
+		if (last == header + 1)
+		{
+			send(packet);
+			return;
+		}
+
+		split++;
+		boolean first = true;
+		int in = header + 1;
+		while (in < last)
+		{
+			int groupEnd = in;
+			int count = 0;
+			int size = header + 1;
+			while (groupEnd < last)
+			{
+				int length = packet.getShort(groupEnd) & 0xFFFF;
+				if (count > 0 && (mode == 0 || size + 2 + length > mtu))
+				{
+					break;
+				}
+				size += 2 + length;
+				groupEnd += 2 + length;
+				count++;
+			}
+
+			boolean lastGroup = groupEnd == last;
+			if (count == 1)
+			{
+				single(packet, header, in + 2, groupEnd, first, marker && lastGroup);
+			}
+			else
+			{
+				beginPiece(packet, header, first);
+				out.put(packet.get(header));
+				copy(packet, in, groupEnd);
+				endPiece(marker && lastGroup);
+			}
+			first = false;
+			in = groupEnd;
+		}
+	}
+
+	/*
+	 * Mode 0: the fragments of a NAL unit go out as one packet, under the number of the first
+	 */
+	private void reassemble(ByteBuffer packet, int header, int end)
+	{
+		if (end - header < 2)
+		{
+			return;
+		}
+		int indicator = packet.get(header) & 0xFF;
+		int fu = packet.get(header + 1) & 0xFF;
+		int seq = RtpUtil.getSequenceNumber(packet);
+
+		if ((fu & 0x80) != 0)
+		{
+			if (assembling)
+			{
+				discard();
+			}
+			if (nal == null)
+			{
+				nal = ByteBuffer.allocate(MAX_NAL + SrtpContext.MAX_TRAILER);
+			}
+			nal.clear();
+			for (int i = 0; i < header; i++)
+			{
+				nal.put(packet.get(i));
+			}
+			nal.put(0, (byte) (nal.get(0) & 0xDF));
+			nal.put((byte) ((indicator & 0xE0) | (fu & 0x1F)));
+			assembling = true;
+			nextFragment = (seq + 1) & 0xFFFF;
+		}
+		else if (!assembling || seq != nextFragment)
+		{
+			// lost the start or a fragment in the middle, nothing to do with the rest
+			if (assembling)
+			{
+				discard();
+			}
+			return;
+		}
+		else
+		{
+			// merged into the first fragment, the next packet takes its number again
+			translator.removeSequence();
+		}
+
+		if (nal.position() + end - header - 2 > MAX_NAL)
+		{
+			discard();
+			return;
+		}
+		for (int i = header + 2; i < end; i++)
+		{
+			nal.put(packet.get(i));
+		}
+
+		if ((fu & 0x40) != 0)
+		{
+			nal.flip();
+			RtpUtil.setMarker(nal, RtpUtil.getMarker(packet));
+			if (nal.limit() > mtu)
+			{
+				oversize++;
+			}
+			assembling = false;
+			reassembled++;
+			sender.sendToSip(nal);
+		}
+	}
+
+	private void discard()
+	{
+		assembling = false;
+		discarded++;
+	}
+
+	public void stop()
+	{
+		BufferPool.release(out);
+		out = null;
+		assembling = false;
+	}
+
+	public String summary()
+	{
+		return "h264 mode " + mode + " mtu " + mtu + ": passed=" + passed
+		     + " split=" + split
+		     + " pieces=" + pieces
+		     + " reassembled=" + reassembled
+		     + " discarded=" + discarded
+		     + " oversize=" + oversize;
+	}
+}
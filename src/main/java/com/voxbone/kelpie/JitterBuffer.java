@@ -0,0 +1,329 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Reorder / jitter buffer of the audio going from the xmpp side to the sip side.
+ *
+ * Packets are copied into a fixed ring indexed by sequence number and played out at
+ * the time their rtp timestamp says, plus a delay following the measured jitter.
+ * The delay is set again at the start of each talkspurt, in the middle of speech it
+ * only grows, when packets arrive after their turn.
+ *
+ * Playout runs on the shared media timer, packets are offered by the media worker
+ *
+ */
+class JitterBuffer implements Runnable
+{
+	private static boolean ENABLED = false;
+	private static int SLOTS = 64;
+	private static long MIN_DELAY = TimeUnit.MILLISECONDS.toNanos(20);
+	private static long MAX_DELAY = TimeUnit.MILLISECONDS.toNanos(200);
+	// delay kept, in multiples of the jitter
+	private static final int JITTER_FACTOR = 3;
+
+	static Logger logger = Logger.getLogger(JitterBuffer.class);
+
+	private RtpRelay relay;
+
+	private ByteBuffer [] ring;
+	private int mask;
+
+	private boolean started = false;
+	private boolean stopped = false;
+	private int ssrc;
+	private int nextSeq;
+	private int clockRate = 8000;
+
+	// playout time of a packet is baseTime + (timestamp - baseTs) + delay
+	private long baseTime;
+	private long baseTs;
+	private long delay = MIN_DELAY;
+
+	private long lastTransit;
+	private boolean haveTransit = false;
+	private double jitter = 0;
+
+	private TimingWheel.Timeout timeout = null;
+	private long timeoutDeadline = 0;
+
+	private long late = 0;
+	private long skipped = 0;
+	private long overflows = 0;
+	private long played = 0;
+
+
+	public static void configure(Properties properties)
+	{
+		ENABLED = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.rtp.jitter_buffer", "false"));
+		int slots = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.jitter_slots", "64"));
+		// power of two, so the slot is the low bits of the sequence number
+		SLOTS = Integer.highestOneBit(Math.max(8, Math.min(1024, slots)));
+		MIN_DELAY = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.jitter_min_delay", "20")));
+		MAX_DELAY = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.jitter_max_delay", "200")));
+		if (MAX_DELAY < MIN_DELAY)
+		{
+			MAX_DELAY = MIN_DELAY;
+		}
+	}
+
+	public static boolean isEnabled()
+	{
+		return ENABLED;
+	}
+
+	public JitterBuffer(RtpRelay relay)
+	{
+		this.relay = relay;
+		ring = new ByteBuffer[SLOTS];
+		mask = SLOTS - 1;
+	}
+
+	private long playoutTime(ByteBuffer packet)
+	{
+		long ts = (RtpUtil.getTimeStamp(packet) - baseTs) & 0xFFFFFFFFL;
+		// a timestamp a little before the base wraps to a huge value, treat it as negative
+		if (ts > 0x80000000L)
+		{
+			ts -= 0x100000000L;
+		}
+		return baseTime + ts * 1000000000L / clockRate + delay;
+	}
+
+	/*
+	 * Restarts the timing on this packet, with the delay the jitter asks for
+	 */
+	private void rebase(ByteBuffer packet, long now)
+	{
+		baseTime = now;
+		baseTs = RtpUtil.getTimeStamp(packet);
+		haveTransit = false;
+		delay = Math.max(MIN_DELAY, Math.min(MAX_DELAY, (long) (jitter * JITTER_FACTOR)));
+	}
+
+	private boolean isEmpty()
+	{
+		for (int i = 0; i < ring.length; i++)
+		{
+			if (ring[i] != null)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * A packet from the xmpp side, the buffer is the worker's and is copied
+	 */
+	public synchronized void offer(ByteBuffer packet, long now)
+	{
+		if (stopped)
+		{
+			return;
+		}
+
+		int seq = RtpUtil.getSequenceNumber(packet);
+		int packetSsrc = RtpUtil.getSSRC(packet);
+
+		if (!started || packetSsrc != ssrc)
+		{
+			// new source, whatever is left of the old one goes out as is
+			flushAll();
+			started = true;
+			ssrc = packetSsrc;
+			nextSeq = seq;
+			clockRate = relay.getClockRate(RtpUtil.getPayloadType(packet));
+			rebase(packet, now);
+		}
+		else
+		{
+			int ahead = (short) (seq - nextSeq);
+			if (ahead < 0)
+			{
+				// its turn has passed, sending it now would only reorder
+				late++;
+				delay = Math.min(MAX_DELAY, delay + TimeUnit.MILLISECONDS.toNanos(10));
+				return;
+			}
+			if (ahead >= ring.length)
+			{
+				// too far ahead for the ring, give up on what we were waiting for
+				overflows++;
+				flushAll();
+				nextSeq = seq;
+				rebase(packet, now);
+			}
+			else if (RtpUtil.getMarker(packet) && isEmpty() && seq == nextSeq)
+			{
+				// start of a talkspurt, adapt the delay
+				rebase(packet, now);
+			}
+		}
+
+		int slot = seq & mask;
+		if (ring[slot] != null)
+		{
+			// duplicate
+			return;
+		}
+
+		// interarrival jitter, in ns
+		long transit = now - (playoutTime(packet) - delay);
+		if (haveTransit)
+		{
+			jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+		}
+		lastTransit = transit;
+		haveTransit = true;
+
+		int position = packet.position();
+		ByteBuffer copy = BufferPool.acquire();
+		copy.put(packet);
+		copy.flip();
+		packet.position(position);
+		ring[slot] = copy;
+
+		long due = playoutTime(copy);
+		if (timeout == null || due < timeoutDeadline)
+		{
+			if (timeout != null)
+			{
+				timeout.cancel();
+			}
+			timeoutDeadline = due;
+			timeout = MediaTimer.scheduleAt(this, due);
+		}
+	}
+
+	/*
+	 * Sends everything buffered in sequence order right away, the caller holds the lock
+	 */
+	private void flushAll()
+	{
+		for (int i = 0; i < ring.length; i++)
+		{
+			ByteBuffer packet = ring[(nextSeq + i) & mask];
+			if (packet != null)
+			{
+				ring[(nextSeq + i) & mask] = null;
+				release(packet);
+			}
+		}
+	}
+
+	private void release(ByteBuffer packet)
+	{
+		played++;
+		try
+		{
+			relay.releaseToSip(packet);
+		}
+		finally
+		{
+			BufferPool.release(packet);
+		}
+	}
+
+	/*
+	 * On the media timer: plays out what is due and schedules the next one
+	 */
+	public synchronized void run()
+	{
+		timeout = null;
+		if (stopped)
+		{
+			return;
+		}
+
+		long now = System.nanoTime();
+		while (true)
+		{
+			// earliest packet in the ring, the one at nextSeq if it is there
+			int first = -1;
+			for (int i = 0; i < ring.length; i++)
+			{
+				if (ring[(nextSeq + i) & mask] != null)
+				{
+					first = i;
+					break;
+				}
+			}
+			if (first < 0)
+			{
+				return;
+			}
+
+			ByteBuffer packet = ring[(nextSeq + first) & mask];
+			long due = playoutTime(packet);
+			if (due > now)
+			{
+				timeoutDeadline = due;
+				timeout = MediaTimer.scheduleAt(this, due);
+				return;
+			}
+
+			// the ones before it are lost, no point waiting any longer
+			skipped += first;
+			ring[(nextSeq + first) & mask] = null;
+			nextSeq = (nextSeq + first + 1) & 0xFFFF;
+			release(packet);
+		}
+	}
+
+	/*
+	 * Sends what is left and stops, used when the buffer is turned off for the call
+	 */
+	public synchronized void flush()
+	{
+		flushAll();
+		stop();
+	}
+
+	public synchronized void stop()
+	{
+		stopped = true;
+		if (timeout != null)
+		{
+			timeout.cancel();
+			timeout = null;
+		}
+		for (int i = 0; i < ring.length; i++)
+		{
+			BufferPool.release(ring[i]);
+			ring[i] = null;
+		}
+	}
+
+	public synchronized String summary()
+	{
+		return "jitter buffer: played=" + played
+		     + " late=" + late
+		     + " skipped=" + skipped
+		     + " overflows=" + overflows
+		     + " delay=" + delay / 1000000 + "ms"
+		     + " jitter=" + (long) jitter / 1000 / 1000.0 + "ms";
+	}
+}
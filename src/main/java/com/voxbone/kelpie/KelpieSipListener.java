@@ -193,6 +193,7 @@ public class KelpieSipListener implements SipListener
 					else
 					{
 						logger.debug("[[SIP]] Refresh subscribe, sending poll");
+						SipSubscriptionManager.refreshWatcher(sub, expires);
 
 						JID destination = UriMappings.toJID(dest);
 						JID source = new JID(src + "@" + host);
@@ -414,7 +415,25 @@ public class KelpieSipListener implements SipListener
 						Session sess = SessionManager.findCreateSession(host, destination);
 						CallSession cs = new CallSession();
 						logger.info("[[SIP]] created call session : [[" + cs.internalCallId + "]]");
-						cs.parseInvite(req, dialog, trans);
+						if (cs.relay == null)
+						{
+							logger.error("[[SIP]] No media relay available, rejecting call");
+							Response res = SipService.messageFactory.createResponse(Response.SERVICE_UNAVAILABLE, req);
+							trans.sendResponse(res);
+							return;
+						}
+						if (!cs.parseInvite(req, dialog, trans))
+						{
+							logger.error("[[SIP]] Offer can't be taken, rejecting call");
+							Response res = SipService.messageFactory.createResponse(Response.NOT_ACCEPTABLE_HERE, req);
+							trans.sendResponse(res);
+							cs.relay.shutdown();
+							if (cs.vRelay != null)
+							{
+								cs.vRelay.shutdown();
+							}
+							return;
+						}
 						dialog.setApplicationData(cs);
 						if (sess.startCall(cs, src, dest))
 						{
@@ -424,6 +443,36 @@ public class KelpieSipListener implements SipListener
 						}
 					}
 				}
+				else if (evt.getDialog().getApplicationData() != null)
+				{
+					// re-INVITE: new addresses and keys are taken, the codecs stay the negotiated ones
+					logger.info("[[SIP]] Got in dialog invite");
+					CallSession cs = (CallSession) evt.getDialog().getApplicationData();
+					Object answer = cs.answerReoffer(req.getRawContent());
+					if (answer == null)
+					{
+						sendInDialogResponse(evt, req, SipService.messageFactory.createResponse(Response.NOT_ACCEPTABLE_HERE, req));
+						return;
+					}
+					Response res = SipService.messageFactory.createResponse(Response.OK, req);
+					ContentTypeHeader cth = SipService.headerFactory.createContentTypeHeader("application", "sdp");
+					res.setContent(answer, cth);
+					SessionTimer.answer(req, res, cs);
+					sendInDialogResponse(evt, req, res);
+					return;
+				}
+			}
+			else if (req.getMethod().equals(Request.UPDATE))
+			{
+				if (evt.getDialog() != null && evt.getDialog().getApplicationData() != null)
+				{
+					logger.info("[[SIP]] Got in dialog update");
+					CallSession cs = (CallSession) evt.getDialog().getApplicationData();
+					Response res = SipService.messageFactory.createResponse(Response.OK, req);
+					SessionTimer.answer(req, res, cs);
+					sendInDialogResponse(evt, req, res);
+					return;
+				}
 			}
 			else if (req.getMethod().equals(Request.BYE))
 			{
@@ -502,6 +551,11 @@ public class KelpieSipListener implements SipListener
 					logger.error("[[SIP]] No more sockets available", e);
 					resp = Response.SERVER_INTERNAL_ERROR;
 				}
+				if (!SocketPool.isAvailable())
+				{
+					logger.error("[[SIP]] No more rtp ports available");
+					resp = Response.SERVER_INTERNAL_ERROR;
+				}
 				Response res = SipService.messageFactory.createResponse(resp, req);
 				SipService.sipProvider.sendResponse(res);
 				return;
@@ -511,7 +565,11 @@ public class KelpieSipListener implements SipListener
 				CallSession cs = (CallSession) evt.getDialog().getApplicationData();
 				if (cs != null && cs.vRelay != null)
 				{
-					cs.vRelay.sendFIR();
+					String body = req.getRawContent() != null ? new String(req.getRawContent()) : "";
+					if (body.indexOf("picture_fast_update") >= 0)
+					{
+						cs.vRelay.requestJabberKeyframe();
+					}
 					Response res = SipService.messageFactory.createResponse(Response.OK, req);
 
 					if (evt.getServerTransaction() == null)
@@ -567,6 +625,19 @@ public class KelpieSipListener implements SipListener
 		}
 	}
 
+	private void sendInDialogResponse(RequestEvent evt, Request req, Response res) throws SipException, InvalidArgumentException
+	{
+		if (evt.getServerTransaction() == null)
+		{
+			ServerTransaction tx = ((SipProvider) evt.getSource()).getNewServerTransaction(req);
+			tx.sendResponse(res);
+		}
+		else
+		{
+			evt.getServerTransaction().sendResponse(res);
+		}
+	}
+
 	public void processResponse(ResponseEvent evt)
 	{
 		Response resp = evt.getResponse();
@@ -660,9 +731,16 @@ public class KelpieSipListener implements SipListener
 					if(!cs.callAccepted)
 					{
 						// RFC3261 says that all 200 OK to an invite get passed to UAC, even re-trans, so we need to filter
-						cs.parseSDP(new String(resp.getRawContent()), false);
-						sess.sendAccept(cs);
 						cs.callAccepted = true;
+						if (!cs.parseSDP(new String(resp.getRawContent()), false))
+						{
+							logger.error("[[SIP]] Answer can't be taken, ending call");
+							sess.sendBye(cs);
+							SipService.sendBye(cs);
+							return;
+						}
+						sess.sendAccept(cs);
+						SessionTimer.answered(resp, cs);
 					}
 				}
 				else if (status >= 400)
@@ -690,6 +768,25 @@ public class KelpieSipListener implements SipListener
 					}
 				}
 			}
+			else if (method.equals(Request.UPDATE))
+			{
+				CallSession cs = null;
+				if (evt.getClientTransaction() != null)
+				{
+					cs = (CallSession) evt.getClientTransaction().getApplicationData();
+				}
+				if (cs != null && status >= 200)
+				{
+					if (status < 300)
+					{
+						SessionTimer.answered(resp, cs);
+					}
+					else
+					{
+						SessionTimer.refreshFailed(cs, resp);
+					}
+				}
+			}
 			else if (method.equals(Request.NOTIFY))
 			{
 				if (status == 418)
@@ -717,7 +814,14 @@ public class KelpieSipListener implements SipListener
 
 	public void processTimeout(TimeoutEvent evt)
 	{
-
+		if (evt.getClientTransaction() != null && evt.getClientTransaction().getRequest().getMethod().equals(Request.UPDATE))
+		{
+			CallSession cs = (CallSession) evt.getClientTransaction().getApplicationData();
+			if (cs != null)
+			{
+				SessionTimer.refreshFailed(cs, null);
+			}
+		}
 	}
 
 	public void processTransactionTerminated(TransactionTerminatedEvent evt)
@@ -0,0 +1,310 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Last H.264 keyframe sent in one direction of a video relay: the packets of the most
+ * recent access unit with an IDR slice, and the SPS/PPS packets that came just before.
+ * A receiver that shows up later (call answered, new address after ice) is sent it
+ * right away instead of waiting for the sender's next keyframe.
+ *
+ * Packets are copied into two fixed areas, the one being filled and the last complete
+ * keyframe, allocated on the first keyframe seen. A keyframe that doesn't fit is not
+ * kept, the memory of a relay stays at twice the configured size per direction
+ *
+ */
+class KeyframeCache
+{
+	private static int CAPACITY = 128 * 1024;
+	private static long MAX_AGE = TimeUnit.SECONDS.toNanos(30);
+
+	// bytes taken by all caches
+	private static AtomicLong allocated = new AtomicLong(0);
+
+	private int payload = -1;
+
+	// each packet is stored as its length on two bytes and its content
+	private ByteBuffer staging = null;
+	private ByteBuffer cached = null;
+	private boolean filling = false;
+	private boolean stagingIdr = false;
+	private long stagingTimestamp;
+	private int stagingSeq;
+	// last packet seen, a keyframe is only taken from its first packet
+	private boolean seen = false;
+	private long lastTimestamp;
+	private boolean lastMarker;
+	private int cachedLength = 0;
+	private int cachedPackets = 0;
+	private long cachedTime = 0;
+	private boolean released = false;
+
+	private long keyframes = 0;
+	private long overflows = 0;
+	private long gaps = 0;
+	private long replays = 0;
+
+
+	public static void configure(Properties properties)
+	{
+		CAPACITY = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.keyframe_cache_kb", "128")) * 1024;
+		MAX_AGE = TimeUnit.SECONDS.toNanos(Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.keyframe_cache_age", "30")));
+	}
+
+	public static boolean isEnabled()
+	{
+		return CAPACITY > 0;
+	}
+
+	/*
+	 * The H.264 payload type of the direction, other payloads are not looked at
+	 */
+	public synchronized void setPayload(int payload)
+	{
+		this.payload = payload;
+	}
+
+	private static final int PARAMETERS = 1;
+	private static final int IDR = 2;
+
+	/*
+	 * What a packet carries: SPS/PPS and/or the start of an IDR slice, a fragment only
+	 * counts when it is the first of its NAL unit
+	 */
+	private static int classify(ByteBuffer packet, int header, int end)
+	{
+		int type = RtpUtil.getNALType(packet, header);
+		if (type == RtpUtil.NAL_STAP_A)
+		{
+			int kind = 0;
+			for (int in = header + 1; in + 3 <= end; )
+			{
+				int length = packet.getShort(in) & 0xFFFF;
+				if (length == 0 || in + 2 + length > end)
+				{
+					break;
+				}
+				kind |= classifyNal(RtpUtil.getNALType(packet, in + 2));
+				in += 2 + length;
+			}
+			return kind;
+		}
+		if (type == RtpUtil.NAL_FU_A)
+		{
+			// the other fragments are kept along with the first
+			if (end - header < 2 || (packet.get(header + 1) & 0x80) == 0)
+			{
+				return 0;
+			}
+			return classifyNal(RtpUtil.getNALType(packet, header + 1)) & IDR;
+		}
+		return classifyNal(type);
+	}
+
+	private static int classifyNal(int type)
+	{
+		if (type == 7 || type == 8)
+		{
+			return PARAMETERS;
+		}
+		return type == 5 ? IDR : 0;
+	}
+
+	/*
+	 * A packet as it is sent in the direction
+	 */
+	public synchronized void capture(ByteBuffer packet)
+	{
+		if (released || CAPACITY <= 0 || RtpUtil.getPayloadType(packet) != payload)
+		{
+			return;
+		}
+		int header = RtpUtil.getHeaderLength(packet);
+		int end = header + RtpUtil.getPayloadLength(packet);
+		if (header >= end || end > packet.limit())
+		{
+			return;
+		}
+
+		int kind = classify(packet, header, end);
+		long timestamp = RtpUtil.getTimeStamp(packet);
+		int seq = RtpUtil.getSequenceNumber(packet);
+		// the first packet of its frame, as far as we can tell
+		boolean frameStart = !seen || lastMarker || timestamp != lastTimestamp;
+		seen = true;
+		lastTimestamp = timestamp;
+		lastMarker = RtpUtil.getMarker(packet);
+
+		if (filling && seq != ((stagingSeq + 1) & 0xFFFF))
+		{
+			// a packet of the keyframe was lost, what we have would replay truncated
+			gaps++;
+			filling = false;
+		}
+
+		if (filling && timestamp != stagingTimestamp)
+		{
+			if (stagingIdr)
+			{
+				// the keyframe is over even if its marker got lost
+				commit();
+			}
+			else if (kind == 0)
+			{
+				// parameter sets that no keyframe followed
+				filling = false;
+			}
+		}
+
+		if (!filling)
+		{
+			// joining an IDR frame after its first packet would keep it truncated
+			if (kind == 0 || (kind == IDR && !frameStart))
+			{
+				return;
+			}
+			if (staging == null)
+			{
+				staging = ByteBuffer.allocate(CAPACITY);
+				cached = ByteBuffer.allocate(CAPACITY);
+				allocated.addAndGet(2L * CAPACITY);
+			}
+			staging.clear();
+			stagingIdr = false;
+			filling = true;
+		}
+
+		int length = packet.limit();
+		if (staging.remaining() < 2 + length)
+		{
+			overflows++;
+			filling = false;
+			return;
+		}
+		staging.putShort((short) length);
+		for (int i = 0; i < length; i++)
+		{
+			staging.put(packet.get(i));
+		}
+		stagingTimestamp = timestamp;
+		stagingSeq = seq;
+		stagingIdr |= (kind & IDR) != 0;
+
+		if (stagingIdr && RtpUtil.getMarker(packet))
+		{
+			commit();
+		}
+	}
+
+	private void commit()
+	{
+		ByteBuffer done = staging;
+		staging = cached;
+		cached = done;
+		cachedLength = done.position();
+		cachedPackets = 0;
+		for (int offset = 0; offset < cachedLength; offset += 2 + (cached.getShort(offset) & 0xFFFF))
+		{
+			cachedPackets++;
+		}
+		cachedTime = System.nanoTime();
+		filling = false;
+		keyframes++;
+	}
+
+	/*
+	 * True when there is a keyframe recent enough to be worth sending, counts a replay
+	 */
+	public synchronized boolean startReplay()
+	{
+		if (released || cachedLength == 0 || System.nanoTime() - cachedTime > MAX_AGE)
+		{
+			return false;
+		}
+		replays++;
+		return true;
+	}
+
+	/*
+	 * Copies the stored packet at offset into the buffer, returns the offset of the next
+	 * one or -1 when there is none
+	 */
+	public synchronized int copyPacket(int offset, ByteBuffer buffer)
+	{
+		if (released || offset >= cachedLength)
+		{
+			return -1;
+		}
+		int length = cached.getShort(offset) & 0xFFFF;
+		if (length > buffer.capacity())
+		{
+			return -1;
+		}
+		buffer.clear();
+		for (int i = 0; i < length; i++)
+		{
+			buffer.put(i, cached.get(offset + 2 + i));
+		}
+		buffer.limit(length);
+		return offset + 2 + length;
+	}
+
+	/*
+	 * Gives the memory back, the relay is going away
+	 */
+	public synchronized void release()
+	{
+		if (!released && staging != null)
+		{
+			allocated.addAndGet(-2L * CAPACITY);
+		}
+		released = true;
+		staging = null;
+		cached = null;
+		cachedLength = 0;
+	}
+
+	/*
+	 * Bytes held by this cache
+	 */
+	public synchronized long getMemory()
+	{
+		return staging != null ? 2L * CAPACITY : 0;
+	}
+
+	public synchronized String summary()
+	{
+		return "keyframes=" + keyframes
+		     + " cached=" + cachedPackets + " pkts/" + cachedLength + " bytes"
+		     + " replays=" + replays
+		     + " overflows=" + overflows
+		     + " gaps=" + gaps
+		     + " memory=" + getMemory() / 1024 + "KB";
+	}
+
+	public static String report()
+	{
+		return "keyframe_cache=" + allocated.get() / 1024 + "KB";
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Keyframe requests of a video relay, in both directions.
+ *
+ * A receiver asks the sender for a keyframe with an rtcp PLI or FIR, or on the sip side
+ * with an INFO picture_fast_update. Whatever the form, the relay takes the request out
+ * of the rtcp it forwards and asks the other side again in the form that side
+ * understands. Requests reaching a side less than a window after the previous one are
+ * dropped: one keyframe answers all of them, and a sender flooded with requests only
+ * sends keyframes.
+ *
+ * Xmpp clients that never ask for keyframes get one from the sip side every so often,
+ * as before, until they send their first request
+ *
+ */
+class KeyframeRequests
+{
+	public static final int NONE = 0;
+	public static final int PLI = 1;
+	public static final int FIR = 2;
+
+	private static long WINDOW = TimeUnit.MILLISECONDS.toNanos(500);
+	private static long BLIND_INTERVAL = TimeUnit.MILLISECONDS.toNanos(5000);
+	private static int XMPP_REQUEST = PLI;
+
+	private static AtomicLong totalReceived = new AtomicLong(0);
+	private static AtomicLong totalSent = new AtomicLong(0);
+	private static AtomicLong totalCoalesced = new AtomicLong(0);
+
+	private long lastToSip = 0;
+	private long lastToJabber = 0;
+	private boolean jabberAsks = false;
+	private int lastSipFirSeq = -1;
+
+	private long fromSip = 0;
+	private long fromJabber = 0;
+	private long sipRtcpSent = 0;
+	private long sipInfoSent = 0;
+	private long jabberSent = 0;
+	private long blindSent = 0;
+	private long coalesced = 0;
+
+
+	public static void configure(Properties properties)
+	{
+		WINDOW = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.keyframe_window", "500")));
+		BLIND_INTERVAL = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.keyframe_blind_interval", "5000")));
+
+		// the old switch for the experimental FIR still selects it
+		boolean fir = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.rtp.fir_enable", "false"));
+		String request = properties.getProperty("com.voxbone.kelpie.rtp.keyframe_request_xmpp", fir ? "fir" : "pli");
+		if (request.equalsIgnoreCase("fir"))
+		{
+			XMPP_REQUEST = FIR;
+		}
+		else if (request.equalsIgnoreCase("none"))
+		{
+			XMPP_REQUEST = NONE;
+		}
+		else
+		{
+			XMPP_REQUEST = PLI;
+		}
+	}
+
+	/*
+	 * Form of the requests sent to the xmpp side
+	 */
+	public static int getXmppRequest()
+	{
+		return XMPP_REQUEST;
+	}
+
+	/*
+	 * A request from the sip side, for the xmpp sender. A FIR repeated with the same
+	 * sequence number is a retransmission of one already handled
+	 */
+	public synchronized boolean receivedFromSip(int firSeq, long now)
+	{
+		fromSip++;
+		totalReceived.incrementAndGet();
+		if (firSeq >= 0)
+		{
+			if (firSeq == lastSipFirSeq)
+			{
+				return coalesce();
+			}
+			lastSipFirSeq = firSeq;
+		}
+		if (XMPP_REQUEST == NONE || (lastToJabber != 0 && now - lastToJabber < WINDOW))
+		{
+			return coalesce();
+		}
+		lastToJabber = now;
+		jabberSent++;
+		totalSent.incrementAndGet();
+		return true;
+	}
+
+	/*
+	 * A request from the xmpp side, for the sip sender
+	 */
+	public synchronized boolean receivedFromJabber(long now)
+	{
+		fromJabber++;
+		totalReceived.incrementAndGet();
+		jabberAsks = true;
+		return toSip(now);
+	}
+
+	/*
+	 * True when it is time for a request the xmpp side did not ask for
+	 */
+	public synchronized boolean blindRequest(long now)
+	{
+		if (jabberAsks || BLIND_INTERVAL <= 0 || (lastToSip != 0 && now - lastToSip < BLIND_INTERVAL))
+		{
+			return false;
+		}
+		if (toSip(now))
+		{
+			blindSent++;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean toSip(long now)
+	{
+		if (lastToSip != 0 && now - lastToSip < WINDOW)
+		{
+			return coalesce();
+		}
+		lastToSip = now;
+		totalSent.incrementAndGet();
+		return true;
+	}
+
+	private boolean coalesce()
+	{
+		coalesced++;
+		totalCoalesced.incrementAndGet();
+		return false;
+	}
+
+	/*
+	 * How the request to the sip side went out, for the counters
+	 */
+	public synchronized void sentToSip(boolean rtcp)
+	{
+		if (rtcp)
+		{
+			sipRtcpSent++;
+		}
+		else
+		{
+			sipInfoSent++;
+		}
+	}
+
+	public synchronized String summary()
+	{
+		return "keyframe requests: from_sip=" + fromSip
+		     + " from_xmpp=" + fromJabber
+		     + " to_xmpp=" + jabberSent
+		     + " to_sip_rtcp=" + sipRtcpSent
+		     + " to_sip_info=" + sipInfoSent
+		     + " blind=" + blindSent
+		     + " coalesced=" + coalesced;
+	}
+
+	public static String report()
+	{
+		return "keyframe_requests=" + totalReceived.get() + " sent=" + totalSent.get() + " coalesced=" + totalCoalesced.get();
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Log bucketed histogram of nanosecond durations.
+ *
+ * Every power of two is split in 8 linear sub-buckets, so any value is
+ * known to within 12.5% with a fixed 4KB footprint and no allocation on record.
+ *
+ * A histogram of a single thread (a media worker) records with plain ordered writes
+ * instead of atomic increments; it is never cleared, the owner is given a fresh one
+ * and readers merge what they see
+ *
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BITS = 3;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private AtomicLong total = new AtomicLong(0);
+	private AtomicLong max = new AtomicLong(0);
+	private final boolean singleWriter;
+
+
+	public LatencyHistogram()
+	{
+		this(false);
+	}
+
+	/*
+	 * With singleWriter only one thread may ever call record()
+	 */
+	public LatencyHistogram(boolean singleWriter)
+	{
+		this.singleWriter = singleWriter;
+	}
+
+
+	private static int indexOf(long value)
+	{
+		if (value < SUB_COUNT)
+		{
+			return (int) value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) ((value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	private static long valueOf(int index)
+	{
+		if (index < SUB_COUNT)
+		{
+			return index;
+		}
+		int exp = index / SUB_COUNT + SUB_BITS - 1;
+		int sub = index % SUB_COUNT;
+		return (1L << exp) | ((long) sub << (exp - SUB_BITS));
+	}
+
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+		{
+			nanos = 0;
+		}
+		if (singleWriter)
+		{
+			int index = indexOf(nanos);
+			counts.lazySet(index, counts.get(index) + 1);
+			total.lazySet(total.get() + 1);
+			if (nanos > max.get())
+			{
+				max.lazySet(nanos);
+			}
+			return;
+		}
+		counts.incrementAndGet(indexOf(nanos));
+		total.incrementAndGet();
+
+		long old;
+		while (nanos > (old = max.get()))
+		{
+			if (max.compareAndSet(old, nanos))
+			{
+				break;
+			}
+		}
+	}
+
+	/*
+	 * Adds what other holds now, it may be recording meanwhile. The count is the sum of
+	 * the buckets read so the percentiles stay consistent
+	 */
+	public void merge(LatencyHistogram other)
+	{
+		long added = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			long c = other.counts.get(i);
+			if (c != 0)
+			{
+				counts.addAndGet(i, c);
+				added += c;
+			}
+		}
+		total.addAndGet(added);
+
+		long old;
+		long otherMax = other.max.get();
+		while (otherMax > (old = max.get()))
+		{
+			if (max.compareAndSet(old, otherMax))
+			{
+				break;
+			}
+		}
+	}
+
+	public long getCount()
+	{
+		return total.get();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/*
+	 * Lower bound of the bucket holding the given quantile (0.0 - 1.0)
+	 */
+	public long getPercentile(double quantile)
+	{
+		long count = total.get();
+		if (count == 0)
+		{
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(quantile * count);
+		if (rank < 1)
+		{
+			rank = 1;
+		}
+
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+			{
+				return valueOf(i);
+			}
+		}
+		return max.get();
+	}
+
+	/*
+	 * One line summary in microseconds, for the stats log
+	 */
+	public String summary()
+	{
+		return "n=" + getCount()
+		     + " p50=" + getPercentile(0.50) / 1000 + "us"
+		     + " p90=" + getPercentile(0.90) / 1000 + "us"
+		     + " p99=" + getPercentile(0.99) / 1000 + "us"
+		     + " p99.9=" + getPercentile(0.999) / 1000 + "us"
+		     + " max=" + getMax() / 1000 + "us";
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+/**
+ * Exposes the forward latency histograms of the media workers over JMX, so the
+ * probe can be switched on and read during an incident without a restart
+ *
+ */
+public class LatencyProbe implements LatencyProbeMBean
+{
+	public static final String NAME = "com.voxbone.kelpie:type=LatencyProbe";
+
+
+	private static long percentile(LatencyHistogram histogram, double quantile)
+	{
+		return (quantile < 0 ? histogram.getMax() : histogram.getPercentile(quantile)) / 1000;
+	}
+
+	public boolean isEnabled()
+	{
+		return MediaEngine.isLatencyProbe();
+	}
+
+	public void setEnabled(boolean enabled)
+	{
+		MediaEngine.setLatencyProbe(enabled);
+	}
+
+	public long getQueueingPercentile(double quantile)
+	{
+		return percentile(MediaEngine.getLatency()[0], quantile);
+	}
+
+	public long getForwardingPercentile(double quantile)
+	{
+		return percentile(MediaEngine.getLatency()[1], quantile);
+	}
+
+	public long getWakeToSendPercentile(double quantile)
+	{
+		return percentile(MediaEngine.getLatency()[2], quantile);
+	}
+
+	public long getCount()
+	{
+		return MediaEngine.getLatency()[1].getCount();
+	}
+
+	public String getSummary()
+	{
+		return MediaEngine.getLatencySummary();
+	}
+
+	public void reset()
+	{
+		MediaEngine.resetLatency();
+	}
+}
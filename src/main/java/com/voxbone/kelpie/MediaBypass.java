@@ -0,0 +1,121 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Tells which calls could have had their media flow end to end, without the relay:
+ * the sip side gave a public address in its sdp and the xmpp side a public udp host
+ * or server reflexive candidate.
+ *
+ * The media of those calls still goes through the relay. The google p2p transport
+ * only accepts media from an address that answered its stun checks with the session
+ * ufrag, which the sip endpoints don't do, so the relay has to stay on the path; this
+ * only measures what a bypass would save
+ *
+ */
+public class MediaBypass
+{
+	private static AtomicLong calls = new AtomicLong(0);
+	private static AtomicLong eligible = new AtomicLong(0);
+
+
+	/*
+	 * True for a literal address reachable from the internet, names are not resolved
+	 */
+	public static boolean isPublic(String address)
+	{
+		if (address == null || address.length() == 0)
+		{
+			return false;
+		}
+		if (address.indexOf(':') < 0 && !address.matches("[0-9.]+"))
+		{
+			return false;
+		}
+		try
+		{
+			InetAddress addr = InetAddress.getByName(address);
+			if (   addr.isAnyLocalAddress() || addr.isLoopbackAddress() || addr.isLinkLocalAddress()
+			    || addr.isSiteLocalAddress() || addr.isMulticastAddress())
+			{
+				return false;
+			}
+			if (addr instanceof Inet4Address)
+			{
+				byte [] b = addr.getAddress();
+				// carrier grade nat, 100.64.0.0/10
+				if ((b[0] & 0xFF) == 100 && (b[1] & 0xC0) == 64)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		catch (UnknownHostException e)
+		{
+			return false;
+		}
+	}
+
+	/*
+	 * A candidate the xmpp client could receive direct media on
+	 */
+	public static boolean isReachableCandidate(String address, String type)
+	{
+		return !"relay".equals(type) && isPublic(address);
+	}
+
+	/*
+	 * Counts a finished call that had media on both sides
+	 */
+	public static void record(CallSession cs)
+	{
+		if (cs.sipMediaAddress == null || !cs.jabberCandidateSeen)
+		{
+			return;
+		}
+		calls.incrementAndGet();
+		if (isPublic(cs.sipMediaAddress) && cs.jabberReachable)
+		{
+			eligible.incrementAndGet();
+		}
+	}
+
+	public static long getCallCount()
+	{
+		return calls.get();
+	}
+
+	public static long getEligibleCount()
+	{
+		return eligible.get();
+	}
+
+	public static String report()
+	{
+		long total = calls.get();
+		long count = eligible.get();
+		return "bypassable=" + count + "/" + total + (total > 0 ? String.format(" (%.1f%%)", count * 100.0 / total) : "");
+	}
+}
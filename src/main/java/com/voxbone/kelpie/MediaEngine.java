@@ -0,0 +1,180 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * The shared media plane.
+ *
+ * A fixed pool of selector threads (one per core by default) services the sockets of every
+ * RtpRelay, a relay is pinned to one worker chosen from the hash of its call id so all the
+ * sockets of a call are always serviced by the same thread
+ *
+ */
+public class MediaEngine
+{
+	private static int WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+	private static int IO_BATCH = 16;
+
+	private static MediaWorker [] workers = null;
+
+	static Logger logger = Logger.getLogger(MediaEngine.class);
+
+
+	public static void configure(Properties properties)
+	{
+		WORKER_COUNT = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.workers", Integer.toString(Runtime.getRuntime().availableProcessors())));
+		if (WORKER_COUNT < 1)
+		{
+			WORKER_COUNT = 1;
+		}
+		IO_BATCH = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.io_batch", "16"));
+		if (IO_BATCH < 1)
+		{
+			IO_BATCH = 1;
+		}
+		MediaWorker.PROBE = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.rtp.latency_probe", "false"));
+
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new LatencyProbe(), new ObjectName(LatencyProbe.NAME));
+		}
+		catch (Exception e)
+		{
+			logger.warn("Unable to register the latency probe mbean", e);
+		}
+	}
+
+	/*
+	 * Turns the per datagram timing of the workers on or off, takes effect on the next wakeup
+	 */
+	public static void setLatencyProbe(boolean enabled)
+	{
+		if (MediaWorker.PROBE != enabled)
+		{
+			logger.info("Latency probe " + (enabled ? "enabled" : "disabled"));
+		}
+		MediaWorker.PROBE = enabled;
+	}
+
+	public static boolean isLatencyProbe()
+	{
+		return MediaWorker.PROBE;
+	}
+
+	/*
+	 * The histograms of all the workers merged: 0 wakeup to receive, 1 receive to send, 2 wakeup to send
+	 */
+	public static synchronized LatencyHistogram [] getLatency()
+	{
+		LatencyHistogram [] merged = { new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram() };
+		if (workers != null)
+		{
+			for (MediaWorker worker : workers)
+			{
+				merged[0].merge(worker.getQueueing());
+				merged[1].merge(worker.getForwarding());
+				merged[2].merge(worker.getWakeToSend());
+			}
+		}
+		return merged;
+	}
+
+	public static synchronized void resetLatency()
+	{
+		if (workers != null)
+		{
+			for (MediaWorker worker : workers)
+			{
+				worker.resetLatency();
+			}
+		}
+	}
+
+	public static String getLatencySummary()
+	{
+		LatencyHistogram [] merged = getLatency();
+		return "queueing " + merged[0].summary()
+		     + " forwarding " + merged[1].summary()
+		     + " wake_to_send " + merged[2].summary();
+	}
+
+	private static synchronized MediaWorker [] getWorkers() throws IOException
+	{
+		if (workers == null)
+		{
+			MediaWorker [] started = new MediaWorker[WORKER_COUNT];
+			for (int i = 0; i < started.length; i++)
+			{
+				started[i] = new MediaWorker(i, IO_BATCH);
+				started[i].start();
+			}
+			logger.info("Media engine started with " + started.length + " workers");
+			workers = started;
+		}
+		return workers;
+	}
+
+	public static MediaWorker getWorker(String internalCallId) throws IOException
+	{
+		MediaWorker [] all = getWorkers();
+		return all[(internalCallId.hashCode() & 0x7FFFFFFF) % all.length];
+	}
+
+	/*
+	 * Packets handled per select wakeup across all workers, how well batching is amortizing the syscalls
+	 */
+	public static synchronized String getIoSummary()
+	{
+		if (workers == null)
+		{
+			return "not started";
+		}
+
+		long wakeups = 0;
+		long packets = 0;
+		for (MediaWorker worker : workers)
+		{
+			wakeups += worker.getWakeups();
+			packets += worker.getPackets();
+		}
+		return "packets=" + packets + " wakeups=" + wakeups + " packets/wakeup=" + (wakeups == 0 ? 0 : packets / (double) wakeups);
+	}
+
+	public static int getWorkerCount()
+	{
+		return WORKER_COUNT;
+	}
+
+	/*
+	 * For sockets that are not tied to a call, spread by index over the workers
+	 */
+	public static MediaWorker getWorker(int index) throws IOException
+	{
+		MediaWorker [] all = getWorkers();
+		return all[index % all.length];
+	}
+}
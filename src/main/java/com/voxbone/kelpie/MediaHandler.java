@@ -0,0 +1,47 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+
+/**
+ * Whatever owns a channel registered on a MediaWorker: a relay, or the shared
+ * port that dispatches to many relays
+ *
+ */
+interface MediaHandler
+{
+	/*
+	 * Called by the worker when the channel is readable, the buffer is the worker's own.
+	 * Handles at most one datagram, returns false when there was nothing left to read
+	 */
+	boolean processPacket(DatagramChannel channel, ByteBuffer buffer) throws IOException;
+
+	/*
+	 * Called by the worker about once a second for each of the handler's channels
+	 */
+	void checkLatch(DatagramChannel channel, long now);
+
+	/*
+	 * Identifies the handler in the logs
+	 */
+	String getInternalCallId();
+}
@@ -0,0 +1,124 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Periodically logs the counters of the media path (ports, buffers, socket pool, timer, shared port)
+ * and of the subscription refresher, with the media statistics of each call at debug level
+ *
+ */
+public class MediaMetrics extends Thread
+{
+	private static long INTERVAL = 60;
+
+	private static MediaMetrics reporter = null;
+
+	static Logger logger = Logger.getLogger(MediaMetrics.class);
+
+
+	private MediaMetrics()
+	{
+		super("Media Metrics");
+		setDaemon(true);
+	}
+
+	public static void configure(Properties properties)
+	{
+		INTERVAL = Long.parseLong(properties.getProperty("com.voxbone.kelpie.stats_interval", "60"));
+	}
+
+	public static synchronized void startReporting()
+	{
+		if (reporter == null && INTERVAL > 0)
+		{
+			reporter = new MediaMetrics();
+			reporter.start();
+		}
+	}
+
+	public static String report()
+	{
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("ports: ").append(PortAllocator.getInUseCount()).append("/").append(PortAllocator.getPairCount());
+		sb.append(" pairs in use (").append(PortAllocator.getQuarantinedCount()).append(" quarantined)");
+		sb.append(" exhausted=").append(PortAllocator.getExhaustedCount());
+		sb.append(" bind_failures=").append(PortAllocator.getBindFailures());
+
+		sb.append(" | buffers: ").append(BufferPool.getAllocatedCount() - BufferPool.getFreeCount());
+		sb.append("/").append(BufferPool.getAllocatedCount()).append(" in use");
+
+		sb.append(" | socket pool: ready=").append(SocketPool.getReadyCount());
+		sb.append(" target=").append(SocketPool.getTarget());
+		sb.append(" hits=").append(SocketPool.getHits());
+		sb.append(" misses=").append(SocketPool.getMisses());
+		sb.append(" setup ").append(SocketPool.getSetupLatency().summary());
+
+		sb.append(" | io: ").append(MediaEngine.getIoSummary());
+		if (MediaEngine.isLatencyProbe())
+		{
+			sb.append(" | latency: ").append(MediaEngine.getLatencySummary());
+		}
+
+		sb.append(" | timer: pending=").append(MediaTimer.getPendingCount());
+		sb.append(" late ").append(MediaTimer.getLateness().summary());
+
+		sb.append(" | ").append(SubscriptionRefresher.report());
+		sb.append(" | live: ").append(ExpirySweeper.report());
+
+		if (SharedPort.isEnabled())
+		{
+			sb.append(" | shared port: routes=").append(SharedPort.getRouteCount());
+			sb.append(" unrouted=").append(SharedPort.getUnroutedCount());
+		}
+
+		return sb.toString();
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				Thread.sleep(INTERVAL * 1000);
+				logger.info(report());
+				if (logger.isDebugEnabled())
+				{
+					for (String call : CallManager.getMediaStats())
+					{
+						logger.debug(call);
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+			catch (Exception e)
+			{
+				logger.error("Error reporting media metrics", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * The timing wheel shared by every call of the media plane (stun retransmissions, dtmf).
+ * Fine grained (1 ms by default) so a task fires at most a tick late
+ *
+ */
+public class MediaTimer
+{
+	private static long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+	private static int WHEEL_SIZE = 512;
+
+	private static TimingWheel timer = null;
+
+	static Logger logger = Logger.getLogger(MediaTimer.class);
+
+
+	public static void configure(Properties properties)
+	{
+		TICK = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.timer_tick", "1000")));
+		if (TICK < TimeUnit.MICROSECONDS.toNanos(100))
+		{
+			TICK = TimeUnit.MICROSECONDS.toNanos(100);
+		}
+		WHEEL_SIZE = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.timer_wheel", "512"));
+		if (WHEEL_SIZE < 16)
+		{
+			WHEEL_SIZE = 16;
+		}
+	}
+
+	private static synchronized TimingWheel getTimer()
+	{
+		if (timer == null)
+		{
+			timer = new TimingWheel("Media Timer", TICK, WHEEL_SIZE);
+			timer.setPriority(Thread.MAX_PRIORITY);
+			timer.start();
+			logger.info("Media timer started, tick " + TimeUnit.NANOSECONDS.toMicros(TICK) + "us, " + timer.getSlotCount() + " slots");
+		}
+		return timer;
+	}
+
+	public static TimingWheel.Timeout schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		return getTimer().schedule(task, delay, unit);
+	}
+
+	public static TimingWheel.Timeout scheduleAt(Runnable task, long deadline)
+	{
+		return getTimer().scheduleAt(task, deadline);
+	}
+
+	public static LatencyHistogram getLateness()
+	{
+		return getTimer().getLateness();
+	}
+
+	public static int getPendingCount()
+	{
+		return getTimer().getPendingCount();
+	}
+}
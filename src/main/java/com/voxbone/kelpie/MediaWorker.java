@@ -0,0 +1,279 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * One selector thread of the media engine, it multiplexes the sockets of many relays.
+ *
+ * Channels are registered from the signaling threads through a queue, the selector
+ * itself is only ever touched from this thread. A readable socket is drained of up to
+ * a batch of datagrams before going back to select, so under load one wakeup serves
+ * many packets.
+ *
+ * With the latency probe on, each forwarded datagram is timed from the select wakeup
+ * to its receive (queueing behind the datagrams read before it) and from its receive
+ * to its send (the relay itself), into histograms of this worker
+ *
+ */
+class MediaWorker extends Thread
+{
+	private static class Registration
+	{
+		DatagramChannel channel;
+		MediaHandler handler;
+
+		public Registration(DatagramChannel channel, MediaHandler handler)
+		{
+			this.channel = channel;
+			this.handler = handler;
+		}
+	}
+
+	private Selector sel;
+	private int batch;
+	private ConcurrentLinkedQueue<Registration> pending = new ConcurrentLinkedQueue<Registration>();
+
+	Logger logger = Logger.getLogger(this.getClass());
+
+
+	// only written by the worker thread
+	private volatile long wakeups = 0;
+	private volatile long packets = 0;
+
+	// switched at runtime through MediaEngine
+	static volatile boolean PROBE = false;
+
+	// probe timestamps, only touched by the worker thread
+	private long wakeTime = 0;
+	private long rxTime = 0;
+	// only recorded into by the worker thread, replaced by fresh ones on reset
+	private volatile LatencyHistogram queueing = new LatencyHistogram(true);
+	private volatile LatencyHistogram forwarding = new LatencyHistogram(true);
+	private volatile LatencyHistogram wakeToSend = new LatencyHistogram(true);
+
+
+	public MediaWorker(int id, int batch) throws IOException
+	{
+		super("Media Worker " + id);
+		setDaemon(true);
+		this.batch = batch;
+		sel = SelectorProvider.provider().openSelector();
+	}
+
+	public void register(DatagramChannel channel, MediaHandler handler)
+	{
+		pending.add(new Registration(channel, handler));
+		sel.wakeup();
+	}
+
+	private void processRegistrations()
+	{
+		Registration reg;
+		while ((reg = pending.poll()) != null)
+		{
+			try
+			{
+				reg.channel.register(sel, SelectionKey.OP_READ, reg.handler);
+			}
+			catch (ClosedChannelException e)
+			{
+				// relay was shut down before we got to it
+			}
+		}
+	}
+
+	/*
+	 * Per second housekeeping of every socket serviced by this worker
+	 */
+	private void tick(long now)
+	{
+		for (SelectionKey key : sel.keys())
+		{
+			if (key.isValid())
+			{
+				((MediaHandler) key.attachment()).checkLatch((DatagramChannel) key.channel(), now);
+			}
+		}
+	}
+
+	public long getWakeups()
+	{
+		return wakeups;
+	}
+
+	public long getPackets()
+	{
+		return packets;
+	}
+
+	/*
+	 * A datagram was just received by the handler running on this thread
+	 */
+	static void received()
+	{
+		if (PROBE)
+		{
+			Thread t = Thread.currentThread();
+			if (t instanceof MediaWorker)
+			{
+				((MediaWorker) t).rxTime = System.nanoTime();
+			}
+		}
+	}
+
+	/*
+	 * The datagram was forwarded, only the first send after a receive is timed
+	 */
+	static void sent()
+	{
+		if (PROBE)
+		{
+			Thread t = Thread.currentThread();
+			if (t instanceof MediaWorker)
+			{
+				((MediaWorker) t).recordSent(System.nanoTime());
+			}
+		}
+	}
+
+	private void recordSent(long now)
+	{
+		if (rxTime == 0)
+		{
+			return;
+		}
+		forwarding.record(now - rxTime);
+		if (wakeTime != 0 && wakeTime <= rxTime)
+		{
+			queueing.record(rxTime - wakeTime);
+			wakeToSend.record(now - wakeTime);
+		}
+		rxTime = 0;
+	}
+
+	/*
+	 * Wakeup to receive
+	 */
+	public LatencyHistogram getQueueing()
+	{
+		return queueing;
+	}
+
+	/*
+	 * Receive to send
+	 */
+	public LatencyHistogram getForwarding()
+	{
+		return forwarding;
+	}
+
+	public LatencyHistogram getWakeToSend()
+	{
+		return wakeToSend;
+	}
+
+	/*
+	 * The histograms start over, the worker keeps recording into the old ones until it
+	 * sees the new ones, they are dropped
+	 */
+	public void resetLatency()
+	{
+		queueing = new LatencyHistogram(true);
+		forwarding = new LatencyHistogram(true);
+		wakeToSend = new LatencyHistogram(true);
+	}
+
+	public void run()
+	{
+		logger.info(getName() + " started");
+
+		ByteBuffer inputBuffer = BufferPool.acquire();
+		long lastTick = System.currentTimeMillis();
+
+		while (true)
+		{
+			try
+			{
+				sel.select(1000);
+				wakeTime = PROBE ? System.nanoTime() : 0;
+				rxTime = 0;
+				processRegistrations();
+				wakeups++;
+
+				Iterator<SelectionKey> itr = sel.selectedKeys().iterator();
+				while (itr.hasNext())
+				{
+					SelectionKey key = itr.next();
+					itr.remove();
+
+					MediaHandler handler = (MediaHandler) key.attachment();
+					try
+					{
+						if (key.isValid() && key.isReadable())
+						{
+							DatagramChannel channel = (DatagramChannel) key.channel();
+							int count = 0;
+							while (count < batch && key.isValid() && handler.processPacket(channel, inputBuffer))
+							{
+								count++;
+							}
+							packets += count;
+						}
+					}
+					catch (CancelledKeyException e)
+					{
+						// handler was shut down while the key was selected
+					}
+					catch (IOException e)
+					{
+						logger.error("[[" + handler.getInternalCallId() + "]] Error in RTP relay!", e);
+					}
+					catch (Exception e)
+					{
+						logger.error("[[" + handler.getInternalCallId() + "]] Error in RTP relay!", e);
+					}
+				}
+				
+				long now = System.currentTimeMillis();
+				if (now - lastTick >= 1000)
+				{
+					lastTick = now;
+					tick(now);
+				}
+			}
+			catch (IOException e)
+			{
+				logger.error("Error in " + getName(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Hands out RTP/RTCP port pairs from the configured range.
+ *
+ * Pairs are tracked in an atomic bitmap (one bit per even port) so concurrent call setups
+ * never contend on a lock. Released pairs sit in quarantine for a while before they can be
+ * reused, so late packets of a finished call are not delivered to a new one.
+ * When the range is exhausted allocation fails immediately instead of spinning on bind()
+ *
+ */
+public class PortAllocator
+{
+	private static class Quarantined
+	{
+		int pair;
+		long until;
+
+		public Quarantined(int pair, long until)
+		{
+			this.pair = pair;
+			this.until = until;
+		}
+	}
+
+	private static int basePort = 8000;
+	private static int pairCount = 1000;
+	private static long QUARANTINE = 10000;
+
+	// number of pairs we try to bind before giving up on a call
+	private static final int MAX_BIND_ATTEMPTS = 16;
+
+	private static AtomicLongArray bitmap = new AtomicLongArray((pairCount + 63) / 64);
+	private static AtomicInteger cursor = new AtomicInteger(0);
+	private static AtomicInteger inUse = new AtomicInteger(0);
+	private static ConcurrentLinkedQueue<Quarantined> quarantine = new ConcurrentLinkedQueue<Quarantined>();
+
+	private static AtomicLong exhaustedCount = new AtomicLong(0);
+	private static AtomicLong bindFailures = new AtomicLong(0);
+
+	static Logger logger = Logger.getLogger(PortAllocator.class);
+
+
+	public static void configure(Properties properties)
+	{
+		int minPort = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.min_port", "8000"));
+		int maxPort = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.max_port", "10000"));
+		QUARANTINE = Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.port_quarantine", "10000"));
+
+		// rtp on the even port, rtcp on the odd one just above
+		basePort = minPort + (minPort & 1);
+		pairCount = (maxPort - basePort + 1) / 2;
+		if (pairCount < 1)
+		{
+			throw new IllegalArgumentException("RTP port range " + minPort + "-" + maxPort + " holds no port pair");
+		}
+
+		bitmap = new AtomicLongArray((pairCount + 63) / 64);
+		cursor.set(0);
+		inUse.set(0);
+		quarantine.clear();
+		logger.info("RTP port range " + basePort + "-" + (basePort + pairCount * 2 - 1) + " (" + pairCount + " pairs)");
+	}
+
+	/*
+	 * Puts quarantined pairs whose time is up back into the bitmap, the queue is in
+	 * release order so we can stop at the first one still in quarantine
+	 */
+	private static void drainQuarantine(long now)
+	{
+		Quarantined q;
+		while ((q = quarantine.peek()) != null && q.until <= now)
+		{
+			if (quarantine.remove(q))
+			{
+				clear(q.pair);
+			}
+		}
+	}
+
+	private static void clear(int pair)
+	{
+		int word = pair >>> 6;
+		long mask = 1L << (pair & 63);
+		while (true)
+		{
+			long old = bitmap.get(word);
+			if (bitmap.compareAndSet(word, old, old & ~mask))
+			{
+				inUse.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	private static int allocatePair()
+	{
+		drainQuarantine(System.currentTimeMillis());
+
+		int words = bitmap.length();
+		int start = (cursor.getAndIncrement() & 0x7FFFFFFF) % words;
+
+		for (int i = 0; i < words; i++)
+		{
+			int word = (start + i) % words;
+			while (true)
+			{
+				long old = bitmap.get(word);
+				long free = ~old;
+				if (word == words - 1 && (pairCount & 63) != 0)
+				{
+					// ignore the bits past the end of the range
+					free &= (1L << (pairCount & 63)) - 1;
+				}
+				if (free == 0)
+				{
+					break;
+				}
+
+				long bit = Long.lowestOneBit(free);
+				if (bitmap.compareAndSet(word, old, old | bit))
+				{
+					inUse.incrementAndGet();
+					return (word << 6) + Long.numberOfTrailingZeros(bit);
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static void quarantinePair(int pair)
+	{
+		quarantine.add(new Quarantined(pair, System.currentTimeMillis() + QUARANTINE));
+	}
+
+	/*
+	 * Allocates a pair of ports and binds a channel to each of them,
+	 * the rtp channel is at index 0 and the rtcp one at index 1
+	 */
+	public static DatagramChannel [] bindPair(String localIp) throws IOException
+	{
+		for (int attempt = 0; attempt < MAX_BIND_ATTEMPTS; attempt++)
+		{
+			int pair = allocatePair();
+			if (pair < 0)
+			{
+				exhaustedCount.incrementAndGet();
+				logger.error("RTP port range exhausted (" + inUse.get() + " pairs in use or quarantined)");
+				throw new IOException("RTP port range exhausted");
+			}
+
+			int port = basePort + pair * 2;
+			DatagramChannel rtp = DatagramChannel.open();
+			DatagramChannel rtcp = DatagramChannel.open();
+			try
+			{
+				rtp.socket().bind(new InetSocketAddress(localIp, port));
+				rtcp.socket().bind(new InetSocketAddress(localIp, port + 1));
+				return new DatagramChannel [] { rtp, rtcp };
+			}
+			catch (SocketException e)
+			{
+				// somebody else is using it, leave it in quarantine and try another one
+				bindFailures.incrementAndGet();
+				logger.warn("Unable to bind RTP port pair " + port + ": " + e.getMessage());
+				rtp.close();
+				rtcp.close();
+				quarantinePair(pair);
+			}
+		}
+		throw new IOException("Unable to bind an RTP port pair after " + MAX_BIND_ATTEMPTS + " attempts");
+	}
+
+	/*
+	 * Gives a pair back, it only becomes available again once its quarantine is over
+	 */
+	public static void releasePair(int rtpPort)
+	{
+		int pair = (rtpPort - basePort) / 2;
+		if (rtpPort < basePort || pair >= pairCount)
+		{
+			return;
+		}
+		quarantinePair(pair);
+	}
+
+	public static int getPairCount()
+	{
+		return pairCount;
+	}
+
+	public static int getInUseCount()
+	{
+		return inUse.get();
+	}
+
+	/*
+	 * Pairs a bind could get right now, counting the quarantined ones whose time is up
+	 */
+	public static int getFreeCount()
+	{
+		drainQuarantine(System.currentTimeMillis());
+		return pairCount - inUse.get();
+	}
+
+	public static int getQuarantinedCount()
+	{
+		return quarantine.size();
+	}
+
+	public static long getExhaustedCount()
+	{
+		return exhaustedCount.get();
+	}
+
+	public static long getBindFailures()
+	{
+		return bindFailures.get();
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+
+
+/**
+ * The four bound, non blocking channels a relay needs: rtp and rtcp on the xmpp side
+ * and rtp and rtcp on the sip side. In shared port mode there are no xmpp side channels
+ *
+ */
+class RelaySockets
+{
+	DatagramChannel jabberSocket;
+	DatagramChannel jabberSocketRtcp;
+	DatagramChannel sipSocket;
+	DatagramChannel sipSocketRtcp;
+
+
+	private RelaySockets()
+	{
+
+	}
+
+	/*
+	 * Port pairs a set takes from the allocator
+	 */
+	static int getPairCount()
+	{
+		return SharedPort.isEnabled() ? 1 : 2;
+	}
+
+	public static RelaySockets bind(String localIp) throws IOException
+	{
+		RelaySockets sockets = new RelaySockets();
+
+		DatagramChannel [] pair;
+		if (!SharedPort.isEnabled())
+		{
+			pair = PortAllocator.bindPair(localIp);
+			sockets.jabberSocket = pair[0];
+			sockets.jabberSocketRtcp = pair[1];
+		}
+
+		try
+		{
+			pair = PortAllocator.bindPair(localIp);
+		}
+		catch (IOException e)
+		{
+			if (sockets.jabberSocket != null)
+			{
+				int port = sockets.jabberSocket.socket().getLocalPort();
+				sockets.jabberSocket.close();
+				sockets.jabberSocketRtcp.close();
+				PortAllocator.releasePair(port);
+			}
+			throw e;
+		}
+		sockets.sipSocket = pair[0];
+		sockets.sipSocketRtcp = pair[1];
+
+		try
+		{
+			if (sockets.jabberSocket != null)
+			{
+				sockets.jabberSocket.configureBlocking(false);
+				sockets.jabberSocketRtcp.configureBlocking(false);
+			}
+			sockets.sipSocket.configureBlocking(false);
+			sockets.sipSocketRtcp.configureBlocking(false);
+		}
+		catch (IOException e)
+		{
+			sockets.close();
+			throw e;
+		}
+
+		return sockets;
+	}
+
+	/*
+	 * Closes the channels and gives the ports back to the allocator
+	 */
+	public void close()
+	{
+		int sipPort = sipSocket.socket().getLocalPort();
+
+		try
+		{
+			if (jabberSocket != null)
+			{
+				int jabberPort = jabberSocket.socket().getLocalPort();
+				jabberSocket.close();
+				jabberSocketRtcp.close();
+				PortAllocator.releasePair(jabberPort);
+			}
+			sipSocket.close();
+			sipSocketRtcp.close();
+		}
+		catch (IOException e)
+		{
+			// ignore, we only care about the ports
+		}
+
+		PortAllocator.releasePair(sipPort);
+	}
+}
@@ -19,20 +19,16 @@ package com.voxbone.kelpie;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.net.SocketAddress;
-import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.spi.SelectorProvider;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.Properties;
 
 import javax.sip.DialogState;
@@ -55,161 +51,257 @@ import de.javawi.jstun.util.Address;
 import de.javawi.jstun.util.UtilityException;
 
 /**
- * This is the RTP Media relay thread, can be for video or audio.
+ * This is the RTP Media relay, can be for video or audio.
  * For the xmpp side it also takes care of the STUN signaling
+ * 
+ * The relay owns no thread of its own, its sockets are serviced by one of the
+ * MediaEngine workers which calls processPacket() for every datagram
  *
  */
 
-public class RtpRelay extends Thread
+public class RtpRelay implements MediaHandler, SipSender
 {
 	// global variables
-	private static int RTP_MIN_PORT;
-	private static int RTP_MAX_PORT;
+	private static boolean NAT_ENABLE = false;
 	
-	private static int nextPort = RTP_MIN_PORT;
+	private static boolean CONNECT_PEERS = true;
+	private static long RELATCH_TIMEOUT = 2000;
 	
-	private static boolean NAT_ENABLE = false;
-	private static boolean FIR_ENABLE = false;
+	private static boolean RTCP_MUX = true;
+	private static boolean BUNDLE = true;
 	
-	Timer retransTimer = new Timer("Stun Retransmit Thread");
+	// ms without anything received from a side before its media is considered gone, 0 to not watch it
+	private static long SIP_MEDIA_TIMEOUT = 60000;
+	private static long JABBER_MEDIA_TIMEOUT = 60000;
 	
-	private class StunTransmitter extends TimerTask
+	// stun retransmissions (RFC 5389 7.2.1): doubling from the initial rto up to a cap, then keepalives
+	private static final long STUN_RTO = 50;
+	private static final long STUN_MAX_RTO = 1600;
+	private static final long STUN_KEEPALIVE = 5000;
+	
+	/*
+	 * One outstanding binding request, retransmitted from the media timer until a response
+	 * arrives, then kept alive at a slow pace
+	 */
+	private class StunTransaction implements Runnable
 	{
 		byte [] message;
 		SocketAddress dest;
 		DatagramChannel socket;
 		String remoteUser;
 		String localUser;
+		String key;
+		ID id;
+		
+		private long rto = STUN_RTO;
+		private volatile boolean answered = false;
+		private volatile TimingWheel.Timeout timeout = null;
 	
-		public StunTransmitter(byte [] message, String remoteUser, String localUser, SocketAddress dest, DatagramChannel socket)
+		public StunTransaction(String key, byte [] message, ID id, String remoteUser, String localUser, SocketAddress dest, DatagramChannel socket)
 		{
+			this.key = key;
 			this.message = message;
+			this.id = id;
 			this.dest = dest;
 			this.socket = socket;
 			this.remoteUser = remoteUser;
 			this.localUser = localUser;
 		}
 
+		public void start(long delay)
+		{
+			timeout = MediaTimer.schedule(this, delay, TimeUnit.MILLISECONDS);
+		}
+		
 		public void run()
 		{
-			logger.debug("[[" + cs.internalCallId + "]] Running RtpRelay::StunTransmitter ... : " + dest + " -- " + socket.socket().getLocalPort());
+			if (timeout == null || timeout.isCancelled())
+			{
+				return;
+			}
+			logger.debug("[[" + cs.internalCallId + "]] Running RtpRelay::StunTransaction ... : " + dest + " -- " + socket.socket().getLocalPort());
 			try
 			{
-				if (socket.isOpen()) 
+				synchronized (socket)
 				{
-					socket.send(ByteBuffer.wrap(message), dest);
+					if (socket.isOpen() && (!socket.isConnected() || dest.equals(socket.socket().getRemoteSocketAddress()))) 
+					{
+						socket.send(ByteBuffer.wrap(message), dest);
+					}
 				}
 			} 
 			catch (IOException e)
 			{
-				logger.error("[[" + cs.internalCallId + "]] RtpRelay::StunTransmitter sending failed ==> " + dest + " -- " + socket.socket().getLocalPort());
+				logger.error("[[" + cs.internalCallId + "]] RtpRelay::StunTransaction sending failed ==> " + dest + " -- " + socket.socket().getLocalPort());
+			}
+			
+			if (!socket.isOpen())
+			{
+				return;
+			}
+			
+			long delay;
+			if (answered)
+			{
+				delay = STUN_KEEPALIVE;
+			}
+			else
+			{
+				// past the cap the peer may still show up late, keep probing at the keepalive pace
+				delay = rto;
+				rto = rto < STUN_MAX_RTO ? rto * 2 : STUN_KEEPALIVE;
 			}
+			timeout = MediaTimer.schedule(this, delay, TimeUnit.MILLISECONDS);
 		}
 		
-		public boolean cancel() 
+		/*
+		 * Response received, from now on only keepalives
+		 */
+		public void answered()
 		{
-			logger.debug("[[" + cs.internalCallId + "]] Cancelling RtpRelay::StunTransmitter ... : " + dest + " -- " + socket.socket().getLocalPort());
-			return super.cancel();
+			answered = true;
+			TimingWheel.Timeout t = timeout;
+			if (t != null)
+			{
+				t.cancel();
+			}
+			timeout = MediaTimer.schedule(this, 100, TimeUnit.MILLISECONDS);
+		}
+		
+		public void cancel() 
+		{
+			logger.debug("[[" + cs.internalCallId + "]] Cancelling RtpRelay::StunTransaction ... : " + dest + " -- " + socket.socket().getLocalPort());
+			TimingWheel.Timeout t = timeout;
+			if (t != null)
+			{
+				t.cancel();
+			}
+			transmitters.remove(key, this);
+			transactions.remove(id, this);
 		}
 	}
 	
-	
-	BlockingQueue<Character> dtmfQueue = new LinkedBlockingQueue<Character>();
-	private boolean video = false;
-
-
-	private class DtmfGenerator extends Thread
+	/*
+	 * Sends the rfc 4733 event packets of queued dtmfs from the media timer: start, five
+	 * continuations 20 ms apart, three end packets and a 40 ms pause before the next digit
+	 */
+	private class DtmfSender implements Runnable
 	{
-
-		@Override
-		public void run()
+		private static final long PACKET_INTERVAL = 20;
+		private static final long DIGIT_GAP = 40;
+		
+		private ConcurrentLinkedQueue<Character> queue = new ConcurrentLinkedQueue<Character>();
+		private DtmfEvent event = null;
+		private int step = 0;
+		private long next = 0;
+		private boolean running = false;
+		private boolean stopped = false;
+		private TimingWheel.Timeout timeout = null;
+		
+		public synchronized void queue(char dtmf)
+		{
+			if (stopped)
+			{
+				return;
+			}
+			queue.add(dtmf);
+			if (!running)
+			{
+				running = true;
+				next = System.nanoTime();
+				timeout = MediaTimer.scheduleAt(this, next);
+			}
+		}
+		
+		public synchronized void stop()
+		{
+			stopped = true;
+			queue.clear();
+			if (timeout != null)
+			{
+				timeout.cancel();
+			}
+			logger.debug("[[" + cs.internalCallId + "]] DtmfSender shut down");
+		}
+		
+		private void send(ByteBuffer buffer, String what)
 		{
-			while (sipSocket.isOpen())
+			synchronized (sipLock)
 			{
-				char dtmf;
+				RtpUtil.setSequenceNumber(buffer, translator.nextInsertedSequence());
 				try
 				{
-					dtmf = dtmfQueue.take();
-
-					if (dtmf == '\0')
-					{
-						logger.debug("[[" + cs.internalCallId + "]] End flag detected in dtmf thread");
-						break;
-					}
-					
-					long ts = 0;
-					synchronized (sipSocket)
-					{
-						ts = jabberTimestamp;
-					}
-					DtmfEvent de = new DtmfEvent(dtmf, ts, jabberSSRC);
-					
-					logger.debug("[[" + cs.internalCallId + "]] Preparing to send dtmf " + dtmf);
-					
-					synchronized (sipSocket)
-					{
-						ByteBuffer buffer = ByteBuffer.wrap(de.startPacket());
-						RtpUtil.setSequenceNumber(buffer.array(), ++jabberSequence);
-						try
-						{
-							sipSocket.send(buffer, sipDest);
-						} 
-						catch (IOException e)
-						{
-							logger.error("Error sending dtmf start packet!", e);
-						}
-					}
-					
-					for (int i = 0; i < 5; i++)
-					{
-						Thread.sleep(20);
-						synchronized (sipSocket)
-						{
-							ByteBuffer buffer = ByteBuffer.wrap(de.continuationPacket());
-							RtpUtil.setSequenceNumber(buffer.array(), ++jabberSequence);
-							try
-							{
-								sipSocket.send(buffer, sipDest);
-							} 
-							catch (IOException e)
-							{
-								logger.error("Error sending dtmf continuation packet!", e);
-							}
-						}
-					}
-					
-					for (int i = 0; i < 3; i++)
+					// the event packets are reused, protect a copy
+					ByteBuffer out = protectSipRtp(buffer, true);
+					SocketAddress dest = getSipDest();
+					if (out != null && sipSocket.isOpen() && dest != null)
 					{
-						synchronized (sipSocket)
-						{
-							ByteBuffer buffer = ByteBuffer.wrap(de.endPacket());
-							RtpUtil.setSequenceNumber(buffer.array(), ++jabberSequence);
-							try
-							{
-								sipSocket.send(buffer, sipDest);
-							} 
-							catch (IOException e)
-							{
-								logger.error("Error sending dtmf end packet!", e);
-							}
-						}
+						sendTo(sipSocket, dest, out);
 					}
-
-					// Ensure at least 40 ms between dtmfs
-
-					Thread.sleep(40);
 				} 
-				catch (InterruptedException e)
+				catch (IOException e)
+				{
+					logger.error("Error sending dtmf " + what + " packet!", e);
+				}
+			}
+		}
+		
+		public synchronized void run()
+		{
+			if (stopped)
+			{
+				return;
+			}
+			
+			if (event == null)
+			{
+				Character dtmf = queue.poll();
+				if (dtmf == null)
+				{
+					running = false;
+					return;
+				}
+				synchronized (sipLock)
 				{
-					// do nothing
+					event = new DtmfEvent(dtmf, translator.getTimestamp(), translator.getSsrc());
 				}
+				step = 0;
+				logger.debug("[[" + cs.internalCallId + "]] Sending dtmf " + dtmf);
+			}
+			
+			if (step == 0)
+			{
+				send(event.startPacket(), "start");
+			}
+			else
+			{
+				send(event.continuationPacket(), "continuation");
 			}
 			
-			logger.debug("[[" + cs.internalCallId + "]] DtmfGenerator shut down");
+			if (step == 5)
+			{
+				for (int i = 0; i < 3; i++)
+				{
+					send(event.endPacket(), "end");
+				}
+				event = null;
+				next += TimeUnit.MILLISECONDS.toNanos(DIGIT_GAP);
+			}
+			else
+			{
+				step++;
+				next += TimeUnit.MILLISECONDS.toNanos(PACKET_INTERVAL);
+			}
+			timeout = MediaTimer.scheduleAt(this, next);
 		}
 	}
+	
+	private DtmfSender dtmfSender = null;
+	private boolean video = false;
 
-	public Hashtable<String, StunTransmitter> transmitters = new Hashtable<String, StunTransmitter>();
+	// outstanding binding requests by <username>_<destination>, and by transaction id for the responses
+	public ConcurrentHashMap<String, StunTransaction> transmitters = new ConcurrentHashMap<String, StunTransaction>();
+	private ConcurrentHashMap<ID, StunTransaction> transactions = new ConcurrentHashMap<ID, StunTransaction>();
 	
 	private class ID
 	{
@@ -255,60 +347,113 @@ public class RtpRelay extends Thread
 	}
 
 	private DatagramChannel jabberSocket;
-	private DatagramChannel sipSocket;
+	private volatile DatagramChannel sipSocket;
 	private DatagramChannel jabberSocketRtcp;
-	private DatagramChannel sipSocketRtcp;
+	private volatile DatagramChannel sipSocketRtcp;
 	
-	private SocketAddress jabberDest;
+	// rtcp-mux (RFC 5761) negotiated, rtcp shares the rtp socket and the rtcp one is closed
+	private volatile boolean sipRtcpMux = false;
+	private volatile boolean jabberRtcpMux = false;
+	
+	// BUNDLE: video relay using our sip socket, and the payload types that belong to it
+	private volatile RtpRelay bundled = null;
+	private boolean [] bundledPayloads = new boolean[128];
+	// set on the video relay, the sip socket and its destination belong to the audio relay
+	private boolean sipShared = false;
+	private volatile RtpRelay sipOwner = null;
+	
+	// what we send to the sip side: translator, packetizer, svc filter, jitter buffer
+	// and dtmf output. Not the socket, it is swapped for the audio relay's on BUNDLE
+	private final Object sipLock = new Object();
+	
+	// single port mode, the xmpp side socket is shared with every other call
+	private SharedPort sharedPort = null;
+	private String sharedUfrag = null;
+	private SocketAddress sharedSource = null;
+	private Integer sharedSsrc = null;
+	
+	private int jabberPort;
+	private int sipPort;
+	// set under the relay monitor, read under sipLock too when installing the video handlers
+	private volatile boolean shutdown = false;
+	
+	private volatile SocketAddress jabberDest;
 	private SocketAddress jabberDestRtcp;
-	private SocketAddress sipDest;
+	private volatile SocketAddress sipDest;
 	private SocketAddress sipDestRtcp;
+	
+	// last time anything was received on the rtp sockets, used to drop stale latches
+	private volatile long jabberLastRx = 0;
+	private volatile long sipLastRx = 0;
+	// last rtp or rtcp from each side, rtcp keeps flowing when a call is on hold. Stun
+	// doesn't count: an xmpp client keeps its ice checks going after the sip side is gone
+	private volatile long jabberLastMedia = 0;
+	private volatile long sipLastMedia = 0;
+	private long created = System.currentTimeMillis();
+	// false while the sip side's sdp says it doesn't send (recvonly, inactive: on hold)
+	private volatile boolean sipSending = true;
 
 	
-	byte [] sipSSRC = null;
-	byte [] jabberSSRC = null;
+	int sipSSRC = 0;
+	boolean sipSSRCKnown = false;
+	int jabberSSRC = 0;
+	boolean jabberSSRCKnown = false;
+
+	// keeps what we send to the sip side one continuous stream, guarded by sipLock
+	private RtpTranslator translator;
+	// and the video sent to the xmpp side, for the keyframes we replay, only touched by the worker
+	private RtpTranslator jabberTranslator = null;
+
+	// what each side sends us, only touched by the worker
+	private RtpStats sipStats;
+	private RtpStats jabberStats;
 
-	long jabberTimestamp = 0;
-	short jabberSequence = 0;
+	// G.711 transcoding, the payload type each side uses, -1 when the media is relayed as is
+	private volatile int sipPayload = -1;
+	private int jabberPayload = -1;
+	private byte [] sipToJabber = null;
+	private byte [] jabberToSip = null;
+
+	// clock of each payload type, indexed by payload type, replaced whole by setClockRates
+	private volatile int [] clockRates = null;
+
+	// SDES-SRTP on the sip leg: our key protects what we send, the remote one checks what we receive
+	private SrtpContext.Crypto srtpLocal = null;
+	private SrtpContext.Crypto srtpRemote = null;
+	private SrtpContext.Crypto srtpOutKey = null;
+	private volatile SrtpContext srtpOut = null;
+	private volatile SrtpContext srtpIn = null;
+	// for packets that can't be protected in place, guarded by sipLock
+	private ByteBuffer srtpScratch = null;
+
+	// optional reorder / jitter buffer of the audio sent to the sip side, null when bypassed
+	private volatile JitterBuffer jitterBuffer = null;
+	// H.264 SVC to AVC of the video sent to the sip side, null when both use the same
+	private volatile SvcFilter svcFilter = null;
+	// and repacketized for the sip side's H.264 packetization-mode and the mtu
+	private volatile H264Packetizer packetizer = null;
 	
-	long lastVUpate = 0;
+	// keyframe requests of a video relay, and the rtcp feedback the sip side negotiated (rtcp-fb)
+	private KeyframeRequests keyframes = null;
+	private volatile boolean sipPli = false;
+	private volatile boolean sipFir = false;
 	int firSeq = 0;
+	// bitrate estimates of a video relay, and the forms the sip side takes them in
+	private BandwidthBridge bandwidth = null;
+	private volatile boolean sipTmmbr = false;
+	private volatile boolean sipRemb = false;
+	// last keyframe sent each way, replayed to a new destination, and the last destination it went to
+	private KeyframeCache sipCache = null;
+	private KeyframeCache jabberCache = null;
+	private SocketAddress sipReplayed = null;
+	private SocketAddress jabberReplayed = null;
 		
 	Logger logger = Logger.getLogger(this.getClass());
 	
 
 	private CallSession cs = null;
 	
-	private DatagramChannel makeDatagramChannel(boolean any) throws IOException
-	{
-		DatagramChannel socket = DatagramChannel.open();
-		while (!socket.socket().isBound())
-		{
-			nextPort += 1;
-			if (nextPort > RTP_MAX_PORT)
-			{
-				nextPort = RTP_MIN_PORT;
-			}
-			logger.debug("[[" + cs.internalCallId + "]] trying to bind to port: " + nextPort);
-			
-			try
-			{
-				if (!any)
-				{
-					socket.socket().bind(new InetSocketAddress(SipService.getLocalIP(), nextPort));
-				}
-				else
-				{
-					socket.socket().bind(new InetSocketAddress(nextPort));
-				}
-			} 
-			catch (SocketException e)
-			{
-				logger.error("Unable to make RTP socket!", e);
-			}
-		}
-		return socket;
-	}
+	private MediaWorker worker = null;
 	
 	public void sendBind(String user, String me, String destIp, int destPort, boolean rtcp)
 	{
@@ -327,6 +472,12 @@ public class RtpRelay extends Thread
 			sendMH.addMessageAttribute(name);
 		}
 		
+		if (sharedPort != null && me != null && sharedUfrag == null)
+		{
+			sharedUfrag = me;
+			sharedPort.addUfrag(me, this);
+		}
+		
 		try
 		{
 			byte [] data = sendMH.getBytes();
@@ -348,16 +499,17 @@ public class RtpRelay extends Thread
 				if (jabberDest == null)
 				{
 					logger.debug("[[" + cs.internalCallId + "]] Sending Bind to: " + destIp + ":" + destPort);
-					StunTransmitter st = new StunTransmitter(data, user, me, new InetSocketAddress(destIp, destPort), socket);
 					String key = name.getUsername() + "_" + destIp + ":" + destPort;
-					if (transmitters.containsKey(key)) 
+					StunTransaction st = new StunTransaction(key, data, new ID(sendMH.getTransactionID()), user, me, new InetSocketAddress(destIp, destPort), socket);
+					StunTransaction old = transmitters.get(key);
+					if (old != null) 
 					{
-						transmitters.get(key).cancel();
-						transmitters.remove(key);
+						old.cancel();
 					}
 					transmitters.put(key, st);
-					logger.debug("[[" + cs.internalCallId + "]] RtpRelay::StunTransmitter scheduled (fast) [" + jabberSocket.socket().getLocalPort() + "][" + sipSocket.socket().getLocalPort() + "] ==> " + st.socket.socket().getLocalPort());
-					retransTimer.schedule(st, 50, 50);
+					transactions.put(st.id, st);
+					logger.debug("[[" + cs.internalCallId + "]] RtpRelay::StunTransaction scheduled [" + jabberSocket.socket().getLocalPort() + "][" + sipSocket.socket().getLocalPort() + "] ==> " + st.socket.socket().getLocalPort());
+					st.start(STUN_RTO);
 				}
 			}
 		} 
@@ -371,20 +523,66 @@ public class RtpRelay extends Thread
 	{
 		this.video = video;
 		this.cs = cs;
+		// the clock is only used to estimate the gap when the source changes
+		this.translator = new RtpTranslator(video ? 90000 : 8000);
+		this.sipStats = new RtpStats(video ? 90000 : 8000);
+		this.jabberStats = new RtpStats(video ? 90000 : 8000);
+		if (video)
+		{
+			this.keyframes = new KeyframeRequests();
+			this.bandwidth = new BandwidthBridge();
+			this.jabberTranslator = new RtpTranslator(90000);
+			if (KeyframeCache.isEnabled())
+			{
+				this.sipCache = new KeyframeCache();
+				this.jabberCache = new KeyframeCache();
+			}
+		}
 		
-		jabberSocket = makeDatagramChannel(false);
-		jabberSocketRtcp = makeDatagramChannel(false);
-
-		sipSocket = makeDatagramChannel(false);
-		sipSocketRtcp = makeDatagramChannel(false);
+		// bound and non blocking already
+		RelaySockets sockets = SocketPool.take(SipService.getLocalIP());
+		sipSocket = sockets.sipSocket;
+		sipSocketRtcp = sockets.sipSocketRtcp;
+		sipPort = sipSocket.socket().getLocalPort();
+		
+		if (SharedPort.isEnabled())
+		{
+			// the shared port only has room for one 5-tuple per call, rtcp is always muxed
+			sharedPort = SharedPort.forCall(cs.internalCallId);
+			jabberSocket = sharedPort.getChannel();
+			jabberSocketRtcp = jabberSocket;
+			jabberPort = sharedPort.getPort();
+			jabberRtcpMux = true;
+			// both legs of the call on the thread that demuxes the shared port, the relay isn't thread safe
+			worker = sharedPort.getWorker();
+		}
+		else
+		{
+			jabberSocket = sockets.jabberSocket;
+			jabberSocketRtcp = sockets.jabberSocketRtcp;
+			jabberPort = jabberSocket.socket().getLocalPort();
+			worker = MediaEngine.getWorker(cs.internalCallId);
+			worker.register(jabberSocket, this);
+			worker.register(jabberSocketRtcp, this);
+		}
+		worker.register(sipSocket, this);
+		worker.register(sipSocketRtcp, this);
 		
-		logger.info("[[" + cs.internalCallId + "]] RtpRelay created [" + jabberSocket.socket().getLocalPort() + "][" + sipSocket.socket().getLocalPort() + "]");
+		logger.info("[[" + cs.internalCallId + "]] RtpRelay created [" + jabberSocket.socket().getLocalPort() + "][" + sipSocket.socket().getLocalPort() + "] on " + worker.getName());
 		
 		if (!video)
 		{
-			(new DtmfGenerator()).start();
+			dtmfSender = new DtmfSender();
+			if (JitterBuffer.isEnabled())
+			{
+				jitterBuffer = new JitterBuffer(this);
+			}
 		}
-		start();
+	}
+	
+	public String getInternalCallId()
+	{
+		return cs.internalCallId;
 	}
 	
 	protected void finalize() throws Throwable 
@@ -427,17 +625,19 @@ public class RtpRelay extends Thread
 				}
 				
 				byte [] data = sendMH.getBytes();
-				socket.send(ByteBuffer.wrap(data), src);
+				synchronized (socket)
+				{
+					socket.send(ByteBuffer.wrap(data), src);
+				}
 				
 				synchronized (transmitters)
 				{
 					boolean reflexive = true;
 					String me = null;
 					Username user = (Username) receiveMH.getMessageAttribute(MessageAttributeType.Username);
-					for (String key : transmitters.keySet())
+					for (StunTransaction st : transmitters.values())
 					{
 						if(user == null) break;
-						StunTransmitter st = transmitters.get(key);
 
 						if(user.getUsername().startsWith(st.localUser))
 						{
@@ -466,6 +666,14 @@ public class RtpRelay extends Thread
 			else if (receiveMH.getType() == MessageHeaderType.BindingResponse)
 			{
 				
+				// responses are matched to our request by transaction id, anything else is dropped
+				StunTransaction answered = transactions.get(new ID(receiveMH.getTransactionID()));
+				if (answered == null || answered.socket != socket)
+				{
+					logger.debug("[[" + cs.internalCallId + "]] Ignoring stun response to unknown transaction from " + src);
+					return;
+				}
+				
 				synchronized (transmitters)
 				{
 					if (   (this.jabberDest == null && socket == jabberSocket) 
@@ -474,48 +682,29 @@ public class RtpRelay extends Thread
 						if (socket == jabberSocket)
 						{
 							this.jabberDest = src;
+							latch(jabberSocket, src);
+							if (sharedPort != null && sharedSource == null)
+							{
+								sharedSource = src;
+								sharedPort.addSource(src, this);
+							}
 						}
 						else
 						{
 							this.jabberDestRtcp = src;
 						}
 
-						Username user = (Username) receiveMH.getMessageAttribute(MessageAttributeType.Username);
-						StunTransmitter newTimer = null;
-						String newKey = null;
-						
-						String desired = user.getUsername() + "_" + ((InetSocketAddress)src).getAddress().getHostAddress() + ":" + ((InetSocketAddress)src).getPort();
-						for (String key : transmitters.keySet())
+						// the other candidates on this socket are not needed anymore
+						for (StunTransaction st : transmitters.values())
 						{
-							StunTransmitter st = transmitters.get(key);
-							if (st.socket == socket)
+							if (st.socket == socket && st != answered)
 							{
-								try
-								{
-									st.cancel();
-								}
-								catch (Exception e)
-								{
-									
-								}
-								
-								logger.debug("[[" + cs.internalCallId + "]] Comparing " + key + " to " + desired);
-								
-								if (key.equals(desired))
-								{
-									newKey = key;
-									newTimer = new StunTransmitter(st.message, st.remoteUser, st.localUser, st.dest, st.socket);
-								}
+								st.cancel();
 							}
 						}
 						
-						if (newTimer != null && newKey != null)
-						{
-							logger.debug("[[" + cs.internalCallId + "]] ++++++++++++++++ slowing retransmission " + newKey + " ++++++++++++++");
-							transmitters.put(newKey, newTimer);
-							logger.debug("[[" + cs.internalCallId + "]] RtpRelay::StunTransmitter scheduled (slow) [" + jabberSocket.socket().getLocalPort() + "][" + sipSocket.socket().getLocalPort() + "] ==> " + newTimer.socket.socket().getLocalPort());
-							retransTimer.schedule(newTimer, 100, 5000);
-						}
+						logger.debug("[[" + cs.internalCallId + "]] ++++++++++++++++ slowing retransmission " + answered.key + " ++++++++++++++");
+						answered.answered();
 					}
 				}
 			}			
@@ -555,338 +744,1498 @@ public class RtpRelay extends Thread
 	}
 
 	/*
-	 * Experimental. I believe that google uses special rtcp packets to send fast video updates - this is an unsuccessful
-	 * attempt at implementing this feature.
-	 */ 
-	public void sendFIR()
+	 * The sip side asked for a keyframe with an INFO picture_fast_update
+	 */
+	public void requestJabberKeyframe()
 	{
-	  if (FIR_ENABLE) {
-		byte [] buffer = new byte[40];
-		RtpUtil.buildFIR(buffer, firSeq++, sipSSRC, jabberSSRC);
-
-		try
-		{
-			jabberSocketRtcp.send(ByteBuffer.wrap(buffer), jabberDestRtcp);
-		}
-		catch (Exception e)
+		if (keyframes != null && keyframes.receivedFromSip(-1, System.nanoTime()))
 		{
-			logger.error("Error sending FIR packet!", e);
+			sendJabberKeyframeRequest();
 		}
-	  }
 	}
 
-	public void sendSipDTMF(char dtmf)
+	/*
+	 * Our ssrc as the xmpp side sees it
+	 */
+	private int getJabberSenderSsrc()
 	{
-		switch (dtmf)
-		{
-			case '0' :
-			case '1' :
-			case '2' :
-			case '3' :
-			case '4' :
-			case '5' :
-			case '6' :
-			case '7' :
-			case '8' :
-			case '9' :
-			case '*' :
-			case '#' :
-			case 'A' :
-			case 'B' :
-			case 'C' :
-			case 'D' :
-				logger.debug("[[" + cs.internalCallId + "]] Logging dtmf " + dtmf + " for generation");
-				try
-				{
-					dtmfQueue.put(dtmf);
-				} 
-				catch (InterruptedException e)
-				{
-					logger.error("Interrupted why queueing a dtmf", e);
-				}
-				break;
-			default :
-				logger.warn("[[" + cs.internalCallId + "]] Ignoring invalid dtmf " + dtmf);
-		}
+		return jabberTranslator != null ? jabberTranslator.getSsrc() : sipSSRC;
 	}
-	
-	public void run()
+
+	/*
+	 * PLI or FIR to the xmpp sender, as configured
+	 */
+	private void sendJabberKeyframeRequest()
 	{
-		logger.info("[[" + cs.internalCallId + "]] RtpRelay Thread Started");
-		
-		Selector sel = null;
-		
-		try
+		if (!jabberSSRCKnown)
 		{
-			sel = SelectorProvider.provider().openSelector();
-			sipSocket.configureBlocking(false);
-			sipSocketRtcp.configureBlocking(false);
-			jabberSocket.configureBlocking(false);
-			jabberSocketRtcp.configureBlocking(false);
-			
-			sipSocket.register(sel, SelectionKey.OP_READ);
-			jabberSocket.register(sel, SelectionKey.OP_READ);
-			sipSocketRtcp.register(sel, SelectionKey.OP_READ);
-			jabberSocketRtcp.register(sel, SelectionKey.OP_READ);
-		
-			ByteBuffer inputBuffer = ByteBuffer.allocate(20000);
-			ByteBuffer outputBuffer = ByteBuffer.allocate(20000);
-			byte [] outputBytes = new byte[20000];
-			
-			while (sipSocket.isOpen())
-			{
-				 if (sel.select(1000) >= 0)
-				 {
-					Iterator<SelectionKey> itr = sel.selectedKeys().iterator();
-					while (itr.hasNext()) 
-					{
-						SelectionKey key = itr.next();
-						itr.remove();
-						
-						if (key.isValid() && key.isReadable())
-						{
-							DatagramChannel socket = (DatagramChannel) key.channel();
-							inputBuffer.clear();
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(40);
+		if (KeyframeRequests.getXmppRequest() == KeyframeRequests.FIR)
+		{
+			RtpUtil.buildFIR(buffer, firSeq++, getJabberSenderSsrc(), jabberSSRC);
+		}
+		else
+		{
+			RtpUtil.buildPLI(buffer, getJabberSenderSsrc(), jabberSSRC);
+		}
 
-							if (!socket.isOpen()) 
-							{
-								logger.error("[[" + cs.internalCallId + "]] Socket is not open ... ignoring");
-								continue;
-							}
-							
-							SocketAddress src = socket.receive(inputBuffer);
-							if (src == null) 
-							{
-								logger.error("[[" + cs.internalCallId + "]] Src is null ... ignoring");
-								continue;
-							}
-							
-							if ((inputBuffer.get(0) & 0x80) != 0)
-							{
-								DatagramChannel destSocket;
-								SocketAddress destAddr;
-								inputBuffer.flip();
-
-								if (socket == sipSocket)
-								{
-									if(NAT_ENABLE && !src.equals(sipDest))
-									{
-										logger.debug("Nat detected, updating sip rtp destination from " + sipDest + " to " + src);
-										sipDest = src;
-									}
-									destSocket = jabberSocket;
-									destAddr = jabberDest;
-									
-									if (this.sipSSRC == null)
-									{
-										this.sipSSRC = RtpUtil.getSSRC(inputBuffer.array());
-									}
-									
-									if (destSocket != null && destAddr != null)
-									{
-										destSocket.send(inputBuffer, destAddr);
-									}
-								}
-								else if (socket == sipSocketRtcp)
-								{
-									destSocket = jabberSocketRtcp;
-									destAddr = jabberDestRtcp;
-
-									if(NAT_ENABLE && !src.equals(sipDestRtcp))
-									{
-										logger.debug("Nat detected, updating sip rtcp destination from " + sipDestRtcp + " to " + src);
-										sipDestRtcp = src;
-									}
-									
-									if (destSocket != null && destAddr != null)
-									{
-										destSocket.send(inputBuffer, destAddr);
-									}
-								}
-								else if (socket == jabberSocketRtcp)
-								{
-									destSocket = sipSocketRtcp;
-									destAddr = sipDestRtcp;
-									
-									if (destSocket != null && destAddr != null)
-									{
-										destSocket.send(inputBuffer, destAddr);
-									}
-
-									if (video && System.currentTimeMillis() - lastVUpate > 5000 && (this.cs.sipDialog.getState() != null && this.cs.sipDialog.getState() != DialogState.EARLY) )
-									{
-										SipService.sendVideoUpdate(this.cs);
-										lastVUpate = System.currentTimeMillis();
-									}
-								}
-								else
-								{
-									destSocket = sipSocket;
-									destAddr = sipDest;
-
-									if (this.jabberSSRC == null)
-									{
-										this.jabberSSRC = RtpUtil.getSSRC(inputBuffer.array());
-									}
-
-									synchronized (destSocket)
-									{
-										if (destSocket != null && destAddr != null)
-										{
-											if (!video)
-											{
-												this.jabberTimestamp = RtpUtil.getTimeStamp(inputBuffer.array());
-												RtpUtil.setSequenceNumber(inputBuffer.array(), ++this.jabberSequence);
-												if (destSocket.isOpen())
-												{
-													destSocket.send(inputBuffer, destAddr);
-												}
-											}
-											else
-											{
-												// TODO: google uses H264 SVC, the rest of the world uses AVC, so convert
-												// google now supports AVC so we should adapt to that
-/*
-												
-												int length = RtpUtil.filterSVC(inputBuffer.array(), outputBytes, inputBuffer.remaining());
-												outputBuffer.clear();
-												outputBuffer.put(outputBytes, 0, length);
-												outputBuffer.flip();
-*/
-												if (destSocket.isOpen())
-												{
-													destSocket.send(inputBuffer, destAddr);
-												}
-											}
-										}
-									}
-								}
-							}
-							else
-							{
-								this.processStun(src, inputBuffer.array(), socket);
-							}
-						}
-					}
-				}
-			}
-		} 
-		catch (IOException e)
+		try
 		{
-			logger.error("Error in RTP relay thread!", e);
+			sendJabberRtcp(buffer);
 		}
 		catch (Exception e)
 		{
-			logger.error("Error in RTP relay thread!", e);
+			logger.error("[[" + cs.internalCallId + "]] Error sending keyframe request to the xmpp side", e);
 		}
-		finally
+	}
+
+	/*
+	 * Rtcp feedback when the sip side negotiated it, an INFO picture_fast_update otherwise
+	 */
+	private void sendSipKeyframeRequest()
+	{
+		if (sipSSRCKnown && (sipPli || sipFir))
 		{
-			if (sel != null)
+			ByteBuffer buffer = ByteBuffer.allocate(40 + SrtpContext.MAX_TRAILER);
+			synchronized (sipLock)
 			{
-				try
+				if (sipPli)
 				{
-					sel.close();
-				} 
-				catch (IOException e)
+					RtpUtil.buildPLI(buffer, translator.getSsrc(), sipSSRC);
+				}
+				else
 				{
-					// ignore (we're dead anyhow)
+					RtpUtil.buildFIR(buffer, firSeq++, translator.getSsrc(), sipSSRC);
 				}
 			}
+			try
+			{
+				sendSipRtcp(buffer);
+				keyframes.sentToSip(true);
+			}
+			catch (IOException e)
+			{
+				logger.error("[[" + cs.internalCallId + "]] Error sending keyframe request to the sip side", e);
+			}
+		}
+		else if (cs.sipDialog != null && cs.sipDialog.getState() != null && cs.sipDialog.getState() != DialogState.EARLY)
+		{
+			SipService.sendVideoUpdate(cs);
+			keyframes.sentToSip(false);
 		}
-		
-		logger.info("[[" + cs.internalCallId + "]] RtpRelay Thread Stopped");
 	}
-	
+
+	/*
+	 * Takes the PLI and FIR out of a compound rtcp packet, true if there was one
+	 */
+	private boolean takeKeyframeRequests(ByteBuffer buffer)
+	{
+		boolean found = false;
+		int offset = 0;
+		while (offset >= 0 && RtpUtil.isRtcpComplete(buffer, offset))
+		{
+			if (RtpUtil.isKeyframeRequest(buffer, offset))
+			{
+				found = true;
+				RtpUtil.removeRtcp(buffer, offset);
+			}
+			else
+			{
+				offset = RtpUtil.nextRtcp(buffer, offset);
+			}
+		}
+		return found;
+	}
+
+	/*
+	 * Takes the REMB, TMMBR and TMMBN out of a compound rtcp packet and returns the lowest
+	 * bitrate asked for, -1 if none. A TMMBR is answered with a TMMBN, we forward its bound
+	 */
+	private long takeBandwidthFeedback(ByteBuffer buffer, boolean fromSip)
+	{
+		long estimate = -1;
+		int offset = 0;
+		while (offset >= 0 && RtpUtil.isRtcpComplete(buffer, offset))
+		{
+			long bitrate = -1;
+			if (RtpUtil.isREMB(buffer, offset))
+			{
+				bitrate = RtpUtil.getREMBBitrate(buffer, offset);
+			}
+			else if (RtpUtil.isTMMB(buffer, offset, RtpUtil.RTPFB_TMMBR))
+			{
+				bitrate = RtpUtil.getTMMBBitrate(buffer, offset);
+				sendTmmbn(fromSip, RtpUtil.getRtcpSenderSSRC(buffer, offset), bitrate, RtpUtil.getTMMBOverhead(buffer, offset));
+			}
+			else if (!RtpUtil.isTMMB(buffer, offset, RtpUtil.RTPFB_TMMBN))
+			{
+				offset = RtpUtil.nextRtcp(buffer, offset);
+				continue;
+			}
+
+			if (bitrate >= 0 && (estimate < 0 || bitrate < estimate))
+			{
+				estimate = bitrate;
+			}
+			// a TMMBN answers one of our requests, it goes no further
+			RtpUtil.removeRtcp(buffer, offset);
+		}
+		return estimate;
+	}
+
+	/*
+	 * Acknowledges a TMMBR, on the side it came from
+	 */
+	private void sendTmmbn(boolean toSip, int requester, long bitrate, int overhead)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(40 + SrtpContext.MAX_TRAILER);
+		try
+		{
+			if (toSip)
+			{
+				synchronized (sipLock)
+				{
+					RtpUtil.buildTMMB(buffer, RtpUtil.RTPFB_TMMBN, translator.getSsrc(), requester, bitrate, overhead);
+				}
+				sendSipRtcp(buffer);
+			}
+			else
+			{
+				RtpUtil.buildTMMB(buffer, RtpUtil.RTPFB_TMMBN, getJabberSenderSsrc(), requester, bitrate, overhead);
+				sendJabberRtcp(buffer);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.error("[[" + cs.internalCallId + "]] Error sending TMMBN", e);
+		}
+	}
+
+	/*
+	 * REMB to the xmpp sender
+	 */
+	private void sendJabberBitrate(long bitrate)
+	{
+		if (!jabberSSRCKnown)
+		{
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(44);
+		RtpUtil.buildREMB(buffer, getJabberSenderSsrc(), jabberSSRC, bitrate);
+		try
+		{
+			sendJabberRtcp(buffer);
+		}
+		catch (IOException e)
+		{
+			logger.error("[[" + cs.internalCallId + "]] Error sending REMB to the xmpp side", e);
+		}
+	}
+
+	/*
+	 * TMMBR or REMB to the sip sender, whichever it negotiated, nothing if neither
+	 */
+	private void sendSipBitrate(long bitrate)
+	{
+		if (!sipSSRCKnown || !(sipTmmbr || sipRemb))
+		{
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(44 + SrtpContext.MAX_TRAILER);
+		synchronized (sipLock)
+		{
+			if (sipTmmbr)
+			{
+				RtpUtil.buildTMMB(buffer, RtpUtil.RTPFB_TMMBR, translator.getSsrc(), sipSSRC, bitrate, RtpUtil.TMMBR_OVERHEAD);
+			}
+			else
+			{
+				RtpUtil.buildREMB(buffer, translator.getSsrc(), sipSSRC, bitrate);
+			}
+		}
+		try
+		{
+			sendSipRtcp(buffer);
+		}
+		catch (IOException e)
+		{
+			logger.error("[[" + cs.internalCallId + "]] Error sending bitrate to the sip side", e);
+		}
+	}
+
+	/*
+	 * The rtcp feedback the sip side accepts, from the rtcp-fb attributes of its sdp
+	 */
+	public void setSipFeedback(boolean pli, boolean fir, boolean tmmbr, boolean remb)
+	{
+		sipPli = pli;
+		sipFir = fir;
+		sipTmmbr = tmmbr;
+		sipRemb = remb;
+	}
+
+	public boolean isSipTmmbr()
+	{
+		return sipTmmbr;
+	}
+
+	public boolean isSipRemb()
+	{
+		return sipRemb;
+	}
+
+	/*
+	 * The b=AS of the sip side's video, in kbit/s, -1 when absent
+	 */
+	public void setSipBandwidth(int kbps)
+	{
+		if (bandwidth != null)
+		{
+			bandwidth.setSipBandwidth(kbps);
+		}
+	}
+
+	public boolean isSipPli()
+	{
+		return sipPli;
+	}
+
+	public boolean isSipFir()
+	{
+		return sipFir;
+	}
+
+	public void sendSipDTMF(char dtmf)
+	{
+		switch (dtmf)
+		{
+			case '0' :
+			case '1' :
+			case '2' :
+			case '3' :
+			case '4' :
+			case '5' :
+			case '6' :
+			case '7' :
+			case '8' :
+			case '9' :
+			case '*' :
+			case '#' :
+			case 'A' :
+			case 'B' :
+			case 'C' :
+			case 'D' :
+				logger.debug("[[" + cs.internalCallId + "]] Logging dtmf " + dtmf + " for generation");
+				if (dtmfSender != null)
+				{
+					dtmfSender.queue(dtmf);
+				}
+				break;
+			default :
+				logger.warn("[[" + cs.internalCallId + "]] Ignoring invalid dtmf " + dtmf);
+		}
+	}
+	
+	/*
+	 * Called by the media worker for every readable socket of this relay, once per datagram
+	 * until it returns false (socket drained).
+	 * The packet is rewritten in place in the worker's pooled buffer and sent from there
+	 */
+	public boolean processPacket(DatagramChannel socket, ByteBuffer inputBuffer) throws IOException
+	{
+		inputBuffer.clear();
+
+		if (!socket.isOpen()) 
+		{
+			logger.error("[[" + cs.internalCallId + "]] Socket is not open ... ignoring");
+			return false;
+		}
+		
+		SocketAddress src;
+		synchronized (socket)
+		{
+			if (socket.isConnected())
+			{
+				// latched peer, the kernel already filtered the source for us
+				try
+				{
+					if (socket.read(inputBuffer) <= 0)
+					{
+						return false;
+					}
+				}
+				catch (PortUnreachableException e)
+				{
+					// icmp from an earlier send, the peer is not there (yet)
+					return true;
+				}
+				src = socket.socket().getRemoteSocketAddress();
+			}
+			else
+			{
+				src = socket.receive(inputBuffer);
+				if (src == null) 
+				{
+					// drained
+					return false;
+				}
+			}
+		}
+		
+		MediaWorker.received();
+		inputBuffer.flip();
+		if (inputBuffer.hasRemaining())
+		{
+			handlePacket(socket, src, inputBuffer);
+		}
+		return true;
+	}
+	
+	/*
+	 * Handles one received datagram, the buffer is flipped and ready to be read.
+	 * Called directly by the shared port for the xmpp side in single port mode
+	 */
+	void handlePacket(DatagramChannel socket, SocketAddress src, ByteBuffer inputBuffer) throws IOException
+	{
+		if (socket == sipSocket)
+		{
+			sipLastRx = System.currentTimeMillis();
+		}
+		else if (socket == jabberSocket)
+		{
+			jabberLastRx = System.currentTimeMillis();
+		}
+		
+		if ((inputBuffer.get(0) & 0x80) != 0)
+		{
+			boolean fromSip = socket == sipSocket || socket == sipSocketRtcp;
+			boolean rtcp = socket == sipSocketRtcp || socket == jabberSocketRtcp
+			            || (isMuxed(socket) && RtpUtil.isRtcp(inputBuffer));
+
+			RtpRelay target = this;
+			RtpRelay video = bundled;
+			if (video != null && socket == sipSocket && video.ownsBundledPacket(inputBuffer, rtcp))
+			{
+				target = video;
+			}
+			if (fromSip)
+			{
+				target.sipLastMedia = System.currentTimeMillis();
+			}
+			else
+			{
+				target.jabberLastMedia = System.currentTimeMillis();
+			}
+
+			if (rtcp)
+			{
+				target.forwardRtcp(fromSip, src, inputBuffer);
+			}
+			else
+			{
+				target.forwardRtp(fromSip, src, inputBuffer);
+			}
+		}
+		else
+		{
+			// stun is rare enough to work on a copy, the jstun parser wants an array
+			byte [] data = new byte[inputBuffer.remaining()];
+			inputBuffer.get(data);
+			this.processStun(src, data, socket);
+		}
+	}
+	
+	private void forwardRtp(boolean fromSip, SocketAddress src, ByteBuffer inputBuffer) throws IOException
+	{
+		DatagramChannel destSocket;
+		SocketAddress destAddr;
+
+		if (fromSip)
+		{
+			SrtpContext in = srtpIn;
+			if (in != null && !in.unprotectRtp(inputBuffer))
+			{
+				// checked before anything else, a forged packet must not move the latch
+				return;
+			}
+
+			// a shared socket is latched by the audio relay, its destination is ours
+			if (!sipShared && !sipSocket.isConnected())
+			{
+				if(NAT_ENABLE && !src.equals(sipDest))
+				{
+					logger.debug("Nat detected, updating sip rtp destination from " + sipDest + " to " + src);
+					sipDest = src;
+				}
+				if (src.equals(sipDest))
+				{
+					latch(sipSocket, src);
+				}
+			}
+			destSocket = jabberSocket;
+			destAddr = jabberDest;
+			sipStats.received(inputBuffer, System.nanoTime());
+			
+			int payload = sipPayload;
+			if (payload >= 0 && RtpUtil.getPayloadType(inputBuffer) == payload)
+			{
+				G711.transcode(inputBuffer, sipToJabber, jabberPayload);
+			}
+			
+			SvcFilter filter = svcFilter;
+			if (filter != null && RtpUtil.getPayloadType(inputBuffer) == filter.getAvcPayload())
+			{
+				// an AVC stream is a valid SVC base layer, only the payload type changes
+				RtpUtil.setPayloadType(inputBuffer, filter.getSvcPayload());
+			}
+			
+			if (!this.sipSSRCKnown)
+			{
+				this.sipSSRC = RtpUtil.getSSRC(inputBuffer);
+				this.sipSSRCKnown = true;
+			}
+			
+			if (video)
+			{
+				if (jabberCache != null)
+				{
+					// replayed before this packet is kept, it goes out right after anyway
+					if (destAddr != null && !destAddr.equals(jabberReplayed))
+					{
+						jabberReplayed = destAddr;
+						replayToJabber(destAddr);
+					}
+					jabberCache.capture(inputBuffer);
+				}
+				jabberTranslator.translate(inputBuffer, System.currentTimeMillis());
+			}
+			
+			if (destSocket != null && destAddr != null)
+			{
+				sendTo(destSocket, destAddr, inputBuffer);
+			}
+		}
+		else
+		{
+			if (!jabberSocket.isConnected() && src.equals(jabberDest))
+			{
+				latch(jabberSocket, src);
+			}
+			destSocket = sipSocket;
+			destAddr = getSipDest();
+			jabberStats.received(inputBuffer, System.nanoTime());
+
+			if (!this.jabberSSRCKnown)
+			{
+				this.jabberSSRC = RtpUtil.getSSRC(inputBuffer);
+				this.jabberSSRCKnown = true;
+				if (sharedPort != null)
+				{
+					sharedSsrc = this.jabberSSRC;
+					sharedPort.addSsrc(sharedSsrc, this);
+				}
+			}
+
+			if (sipPayload >= 0 && RtpUtil.getPayloadType(inputBuffer) == jabberPayload)
+			{
+				G711.transcode(inputBuffer, jabberToSip, sipPayload);
+			}
+
+			JitterBuffer jb = jitterBuffer;
+			if (jb != null)
+			{
+				jb.offer(inputBuffer, System.nanoTime());
+				return;
+			}
+
+			synchronized (sipLock)
+			{
+				if (video)
+				{
+					// the keyframe cache sees the video even before the sip side's address is known
+					if (sipCache != null && destAddr != null && !destAddr.equals(sipReplayed))
+					{
+						sipReplayed = destAddr;
+						replayToSip();
+					}
+					SvcFilter filter = svcFilter;
+					if (filter != null && RtpUtil.getPayloadType(inputBuffer) == filter.getSvcPayload())
+					{
+						filter.process(inputBuffer, System.currentTimeMillis());
+						return;
+					}
+
+					translator.translate(inputBuffer, System.currentTimeMillis());
+					sendVideoToSip(inputBuffer);
+					return;
+				}
+				
+				if (destAddr != null)
+				{
+					translator.translate(inputBuffer, System.currentTimeMillis());
+					if (protectSipRtp(inputBuffer, false) == null)
+					{
+						return;
+					}
+					if (destSocket.isOpen())
+					{
+						sendTo(destSocket, destAddr, inputBuffer);
+					}
+				}
+			}
+		}
+	}
+
+	private void forwardRtcp(boolean fromSip, SocketAddress src, ByteBuffer inputBuffer) throws IOException
+	{
+		if (fromSip)
+		{
+			SrtpContext in = srtpIn;
+			if (in != null && !in.unprotectRtcp(inputBuffer))
+			{
+				return;
+			}
+
+			if(NAT_ENABLE && !sipRtcpMux && !src.equals(sipDestRtcp))
+			{
+				logger.debug("Nat detected, updating sip rtcp destination from " + sipDestRtcp + " to " + src);
+				sipDestRtcp = src;
+			}
+			long now = System.nanoTime();
+			sipStats.receivedRtcp(inputBuffer, now);
+			jabberStats.sendingRtcp(inputBuffer, now);
+			if (keyframes != null)
+			{
+				int requestSeq = RtpUtil.getFIRSequence(inputBuffer);
+				if (takeKeyframeRequests(inputBuffer) && keyframes.receivedFromSip(requestSeq, now))
+				{
+					sendJabberKeyframeRequest();
+				}
+			}
+			if (bandwidth != null)
+			{
+				bandwidth.observe(sipStats.getBytes(), jabberStats.getBytes(), now);
+				long estimate = takeBandwidthFeedback(inputBuffer, true);
+				long target = estimate >= 0 ? bandwidth.fromSip(estimate, now) : bandwidth.capToJabber(now);
+				if (target >= 0)
+				{
+					sendJabberBitrate(target);
+				}
+			}
+			if (inputBuffer.limit() == 0)
+			{
+				return;
+			}
+			synchronized (sipLock)
+			{
+				translator.translateReceiverRtcp(inputBuffer);
+			}
+			if (jabberTranslator != null)
+			{
+				jabberTranslator.translateSourceRtcp(inputBuffer);
+			}
+			sendJabberRtcp(inputBuffer);
+		}
+		else
+		{
+			long now = System.nanoTime();
+			jabberStats.receivedRtcp(inputBuffer, now);
+			sipStats.sendingRtcp(inputBuffer, now);
+			if (jabberTranslator != null)
+			{
+				jabberTranslator.translateReceiverRtcp(inputBuffer);
+			}
+			boolean keyframe = false;
+			if (keyframes != null)
+			{
+				keyframe = takeKeyframeRequests(inputBuffer) ? keyframes.receivedFromJabber(now) : keyframes.blindRequest(now);
+			}
+			long target = -1;
+			if (bandwidth != null)
+			{
+				bandwidth.observe(sipStats.getBytes(), jabberStats.getBytes(), now);
+				long estimate = takeBandwidthFeedback(inputBuffer, false);
+				if (estimate >= 0)
+				{
+					target = bandwidth.fromJabber(estimate, now);
+				}
+			}
+			if (inputBuffer.limit() > 0)
+			{
+				synchronized (sipLock)
+				{
+					translator.translateSourceRtcp(inputBuffer);
+				}
+				sendSipRtcp(inputBuffer);
+			}
+
+			if (keyframe)
+			{
+				sendSipKeyframeRequest();
+			}
+			if (target >= 0)
+			{
+				sendSipBitrate(target);
+			}
+		}
+	}
+
+	/*
+	 * Playout of the jitter buffer, on the media timer
+	 */
+	void releaseToSip(ByteBuffer buffer)
+	{
+		synchronized (sipLock)
+		{
+			try
+			{
+				SocketAddress dest = getSipDest();
+				if (dest != null && sipSocket.isOpen())
+				{
+					translator.translate(buffer, System.currentTimeMillis());
+					if (protectSipRtp(buffer, false) != null)
+					{
+						sendTo(sipSocket, dest, buffer);
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				logger.error("[[" + cs.internalCallId + "]] Error sending buffered rtp", e);
+			}
+		}
+	}
+
+	/*
+	 * Translated video for the sip side, repacketized for it when it takes H.264.
+	 * The caller holds sipLock
+	 */
+	void sendVideoToSip(ByteBuffer buffer)
+	{
+		if (sipCache != null)
+		{
+			sipCache.capture(buffer);
+		}
+		packetizeToSip(buffer);
+	}
+
+	private void packetizeToSip(ByteBuffer buffer)
+	{
+		H264Packetizer p = packetizer;
+		if (p != null && RtpUtil.getPayloadType(buffer) == p.getPayload())
+		{
+			p.process(buffer);
+		}
+		else
+		{
+			sendToSip(buffer);
+		}
+	}
+
+	/*
+	 * A packet ready for the sip side but for srtp, the caller holds sipLock
+	 */
+	public void sendToSip(ByteBuffer buffer)
+	{
+		try
+		{
+			SocketAddress dest = getSipDest();
+			if (dest != null && sipSocket.isOpen() && protectSipRtp(buffer, false) != null)
+			{
+				sendTo(sipSocket, dest, buffer);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.error("[[" + cs.internalCallId + "]] Error sending video", e);
+		}
+	}
+
+	/*
+	 * The H.264 payload type of the sip side and its packetization-mode
+	 */
+	public void setPacketization(int pt, int mode)
+	{
+		synchronized (sipLock)
+		{
+			H264Packetizer old = packetizer;
+			if (shutdown || old != null && old.getPayload() == pt && old.getMode() == mode)
+			{
+				return;
+			}
+			packetizer = null;
+			if (old != null)
+			{
+				old.stop();
+			}
+			packetizer = new H264Packetizer(this, translator, pt, mode);
+		}
+		if (sipCache != null)
+		{
+			sipCache.setPayload(pt);
+			// what the xmpp side gets keeps the sip side's payload type unless it is rewritten for svc
+			if (svcFilter == null)
+			{
+				jabberCache.setPayload(pt);
+			}
+		}
+	}
+
+	/*
+	 * The cached keyframe to the sip side, before the video of the xmpp side goes on
+	 * to a new address. The caller holds sipLock
+	 */
+	private void replayToSip()
+	{
+		if (svcFilter != null)
+		{
+			// its packet is numbered already, out before the ones we insert
+			svcFilter.flush();
+		}
+		if (!sipCache.startReplay())
+		{
+			return;
+		}
+		ByteBuffer buffer = BufferPool.acquire();
+		try
+		{
+			long ts = translator.nextInsertedTimestamp(System.currentTimeMillis());
+			int count = 0;
+			for (int offset = sipCache.copyPacket(0, buffer); offset >= 0; offset = sipCache.copyPacket(offset, buffer))
+			{
+				RtpUtil.setSSRC(buffer, translator.getSsrc());
+				RtpUtil.setSequenceNumber(buffer, translator.nextInsertedSequence());
+				RtpUtil.setTimeStamp(buffer, ts);
+				packetizeToSip(buffer);
+				count++;
+			}
+			translator.restart();
+			logger.debug("[[" + cs.internalCallId + "]] Replayed keyframe to the sip side, " + count + " packets");
+		}
+		finally
+		{
+			BufferPool.release(buffer);
+		}
+	}
+
+	/*
+	 * The cached keyframe to the xmpp side, on the worker before the sip side's video
+	 * goes on to a new address
+	 */
+	private void replayToJabber(SocketAddress dest) throws IOException
+	{
+		if (!jabberCache.startReplay())
+		{
+			return;
+		}
+		ByteBuffer buffer = BufferPool.acquire();
+		try
+		{
+			long ts = jabberTranslator.nextInsertedTimestamp(System.currentTimeMillis());
+			int count = 0;
+			for (int offset = jabberCache.copyPacket(0, buffer); offset >= 0; offset = jabberCache.copyPacket(offset, buffer))
+			{
+				RtpUtil.setSSRC(buffer, jabberTranslator.getSsrc());
+				RtpUtil.setSequenceNumber(buffer, jabberTranslator.nextInsertedSequence());
+				RtpUtil.setTimeStamp(buffer, ts);
+				sendTo(jabberSocket, dest, buffer);
+				count++;
+			}
+			jabberTranslator.restart();
+			logger.debug("[[" + cs.internalCallId + "]] Replayed keyframe to the xmpp side, " + count + " packets");
+		}
+		finally
+		{
+			BufferPool.release(buffer);
+		}
+	}
+
+	/*
+	 * The xmpp side sends H.264 SVC as svcPt and the sip side takes plain H264 as avcPt
+	 */
+	public void setSvcFilter(int svcPt, int avcPt)
+	{
+		synchronized (sipLock)
+		{
+			SvcFilter old = svcFilter;
+			if (shutdown || old != null && old.getSvcPayload() == svcPt)
+			{
+				return;
+			}
+			svcFilter = null;
+			if (old != null)
+			{
+				old.stop();
+			}
+			logger.info("[[" + cs.internalCallId + "]] Filtering H.264 SVC payload " + svcPt + " down to AVC payload " + avcPt);
+			svcFilter = new SvcFilter(this, translator, svcPt, avcPt);
+		}
+		if (jabberCache != null)
+		{
+			jabberCache.setPayload(svcPt);
+		}
+	}
+
+	/*
+	 * The packet to send to the sip side, encrypted when srtp is on, null if it can't be.
+	 * Protected in place unless the buffer is shared or too small, the caller holds sipLock
+	 */
+	private ByteBuffer protectSipRtp(ByteBuffer buffer, boolean shared)
+	{
+		SrtpContext out = srtpOut;
+		if (out == null)
+		{
+			return buffer;
+		}
+		if (shared || buffer.capacity() < buffer.limit() + SrtpContext.MAX_TRAILER)
+		{
+			if (srtpScratch == null)
+			{
+				srtpScratch = ByteBuffer.allocate(BufferPool.getBufferSize() + SrtpContext.MAX_TRAILER);
+			}
+			int length = buffer.limit();
+			if (length > BufferPool.getBufferSize())
+			{
+				return null;
+			}
+			srtpScratch.clear();
+			for (int i = 0; i < length; i++)
+			{
+				srtpScratch.put(i, buffer.get(i));
+			}
+			srtpScratch.limit(length);
+			buffer = srtpScratch;
+		}
+		return out.protectRtp(buffer) ? buffer : null;
+	}
+
+	/*
+	 * Our SDES key for the sip side, made on first use or when the suite or tag changes
+	 */
+	public synchronized SrtpContext.Crypto getLocalCrypto(int tag, String suite)
+	{
+		if (srtpLocal == null || srtpLocal.tag != tag || !srtpLocal.suite.equals(suite))
+		{
+			srtpLocal = SrtpContext.Crypto.generate(tag, suite);
+		}
+		return srtpLocal;
+	}
+
+	public synchronized SrtpContext.Crypto getLocalCrypto()
+	{
+		return srtpLocal != null ? srtpLocal : getLocalCrypto(1, SrtpContext.AES_CM_128_HMAC_SHA1_80);
+	}
+
+	/*
+	 * The sip side's key, from its offer or its answer to ours: srtp starts on both directions.
+	 * Contexts are only rebuilt when a key changes, an srtp index must never be reused with a key
+	 */
+	public synchronized boolean setRemoteCrypto(SrtpContext.Crypto remote)
+	{
+		try
+		{
+			SrtpContext.Crypto local = getLocalCrypto(remote.tag, remote.suite);
+			if (srtpOut == null || srtpOutKey != local)
+			{
+				srtpOut = new SrtpContext(local);
+				srtpOutKey = local;
+			}
+			if (srtpIn == null || srtpRemote == null || !Arrays.equals(srtpRemote.keySalt, remote.keySalt))
+			{
+				srtpIn = new SrtpContext(remote);
+			}
+			srtpRemote = remote;
+			logger.info("[[" + cs.internalCallId + "]] SRTP " + remote.suite + " on the sip " + (video ? "video" : "audio") + " stream");
+			return true;
+		}
+		catch (GeneralSecurityException e)
+		{
+			logger.error("[[" + cs.internalCallId + "]] Unable to set up SRTP", e);
+			return false;
+		}
+	}
+
+	public boolean isSrtp()
+	{
+		return srtpOut != null;
+	}
+
+	/*
+	 * Converts the audio between the G.711 law of each side, set once the offer/answer is done
+	 */
+	public void setTranscoding(int sipPt, int jabberPt)
+	{
+		byte [] toJabber = G711.getTable(sipPt, jabberPt);
+		byte [] toSip = G711.getTable(jabberPt, sipPt);
+		if (toJabber == null || toSip == null)
+		{
+			return;
+		}
+		logger.info("[[" + cs.internalCallId + "]] Transcoding audio, payload " + sipPt + " on the sip side, " + jabberPt + " on the xmpp side");
+		sipToJabber = toJabber;
+		jabberToSip = toSip;
+		jabberPayload = jabberPt;
+		// written last, publishes the others to the worker
+		sipPayload = sipPt;
+	}
+
+	/*
+	 * Turns the jitter buffer on or off for this call, what it holds is sent right away
+	 */
+	public void setJitterBuffer(boolean enabled)
+	{
+		if (video)
+		{
+			return;
+		}
+		synchronized (this)
+		{
+			if (enabled && jitterBuffer == null && !shutdown)
+			{
+				jitterBuffer = new JitterBuffer(this);
+			}
+			else if (!enabled && jitterBuffer != null)
+			{
+				JitterBuffer jb = jitterBuffer;
+				jitterBuffer = null;
+				jb.flush();
+			}
+		}
+	}
+
+	/*
+	 * Clock of each negotiated payload type, set on the signalling thread once the answer is in
+	 */
+	public void setClockRates(List<CallSession.Payload> answer, List<CallSession.Payload> offer)
+	{
+		int [] rates = new int[128];
+		for (CallSession.Payload p : offer)
+		{
+			rates[p.id & 0x7f] = p.clockRate;
+		}
+		for (CallSession.Payload p : answer)
+		{
+			rates[p.id & 0x7f] = p.clockRate;
+		}
+		clockRates = rates;
+	}
+
+	/*
+	 * Clock of a negotiated payload type, 8000 when we don't know it
+	 */
+	int getClockRate(int payloadType)
+	{
+		int [] rates = clockRates;
+		if (rates != null && rates[payloadType & 0x7f] > 0)
+		{
+			return rates[payloadType & 0x7f];
+		}
+		return 8000;
+	}
+
+	/*
+	 * With rtcp-mux the rtcp goes out on the rtp 5-tuple
+	 */
+	private void sendJabberRtcp(ByteBuffer buffer) throws IOException
+	{
+		if (jabberRtcpMux)
+		{
+			if (jabberDest != null)
+			{
+				sendTo(jabberSocket, jabberDest, buffer);
+			}
+		}
+		else if (jabberDestRtcp != null)
+		{
+			jabberSocketRtcp.send(buffer, jabberDestRtcp);
+			MediaWorker.sent();
+		}
+	}
+
+	private void sendSipRtcp(ByteBuffer buffer) throws IOException
+	{
+		SrtpContext out = srtpOut;
+		if (out != null && !out.protectRtcp(buffer))
+		{
+			return;
+		}
+		if (sipRtcpMux)
+		{
+			SocketAddress dest = getSipDest();
+			if (dest != null)
+			{
+				sendTo(sipSocket, dest, buffer);
+			}
+		}
+		else if (sipDestRtcp != null)
+		{
+			sipSocketRtcp.send(buffer, sipDestRtcp);
+			MediaWorker.sent();
+		}
+	}
+
+	private boolean isMuxed(DatagramChannel socket)
+	{
+		return (socket == sipSocket && sipRtcpMux) || (socket == jabberSocket && jabberRtcpMux);
+	}
+
+	/*
+	 * Called on the video relay of a BUNDLE for packets received on the shared sip socket,
+	 * rtp is told apart by payload type and rtcp by the ssrc of the sender
+	 */
+	private boolean ownsBundledPacket(ByteBuffer buffer, boolean rtcp)
+	{
+		if (rtcp)
+		{
+			return sipSSRCKnown && buffer.limit() >= 8 && RtpUtil.getRtcpSenderSSRC(buffer, 0) == sipSSRC;
+		}
+		return bundledPayloads[RtpUtil.getPayloadType(buffer)];
+	}
+
+	/*
+	 * Sends on the connected fast path when the socket is latched to the destination.
+	 *
+	 * The worker latches and unlatches while timers (jitter buffer, dtmf, stun) and the
+	 * sip thread send or unlatch too, so checking the connect state and using it is done
+	 * with the socket's own lock held, the one latch() and unlatch() take
+	 */
+	private void sendTo(DatagramChannel socket, SocketAddress dest, ByteBuffer buffer) throws IOException
+	{
+		synchronized (socket)
+		{
+			try
+			{
+				if (socket.isConnected())
+				{
+					socket.write(buffer);
+				}
+				else
+				{
+					socket.send(buffer, dest);
+				}
+			}
+			catch (PortUnreachableException e)
+			{
+				// icmp from an earlier send, nothing to do for a datagram
+			}
+		}
+		MediaWorker.sent();
+	}
+	
+	/*
+	 * Once the peer of an rtp socket is known, connect the socket so the kernel does
+	 * the source filtering and we can use read/write instead of receive/send
+	 */
+	private void latch(DatagramChannel socket, SocketAddress peer)
+	{
+		if (!CONNECT_PEERS || (sipShared && socket == sipSocket) || (sharedPort != null && socket == jabberSocket))
+		{
+			return;
+		}
+		
+		synchronized (socket)
+		{
+			if (socket.isConnected())
+			{
+				return;
+			}
+			try
+			{
+				socket.connect(peer);
+				if (socket == sipSocket)
+				{
+					sipLastRx = System.currentTimeMillis();
+				}
+				else
+				{
+					jabberLastRx = System.currentTimeMillis();
+				}
+				logger.debug("[[" + cs.internalCallId + "]] Latched " + socket.socket().getLocalPort() + " to " + peer);
+			}
+			catch (IOException e)
+			{
+				logger.warn("[[" + cs.internalCallId + "]] Unable to connect rtp socket to " + peer, e);
+			}
+		}
+	}
+	
+	/*
+	 * Back to unconnected mode so packets from a new source (nat rebinding, ice restart)
+	 * can be seen and re-latched
+	 */
+	private void unlatch(DatagramChannel socket)
+	{
+		if ((sipShared && socket == sipSocket) || (sharedPort != null && socket == jabberSocket))
+		{
+			return;
+		}
+		
+		synchronized (socket)
+		{
+			if (!socket.isConnected())
+			{
+				return;
+			}
+			try
+			{
+				socket.disconnect();
+				logger.debug("[[" + cs.internalCallId + "]] Unlatched " + socket.socket().getLocalPort());
+			}
+			catch (IOException e)
+			{
+				logger.warn("[[" + cs.internalCallId + "]] Unable to disconnect rtp socket", e);
+			}
+		}
+	}
+	
+	/*
+	 * Called by the media worker about once a second for each socket of the relay
+	 */
+	public void checkLatch(DatagramChannel socket, long now)
+	{
+		if (socket == sipSocket && now - sipLastRx > RELATCH_TIMEOUT)
+		{
+			unlatch(sipSocket);
+		}
+		else if (socket == jabberSocket && now - jabberLastRx > RELATCH_TIMEOUT)
+		{
+			unlatch(jabberSocket);
+		}
+	}
+	
+	/*
+	 * Where rtp to the sip side goes, the audio relay's destination when the video is
+	 * bundled on its socket, read on every send as nat and re-INVITEs move it
+	 */
+	private SocketAddress getSipDest()
+	{
+		RtpRelay owner = sipOwner;
+		return owner != null ? owner.sipDest : sipDest;
+	}
+	
 	public void setSipDest(String host, int port)
 	{
 		this.sipDest = new InetSocketAddress(host, port);
 		this.sipDestRtcp = new InetSocketAddress(host, port + 1);
+		unlatch(sipSocket);
 	}
 	
 	public int getSipPort()
 	{
-		return this.sipSocket.socket().getLocalPort();
+		return this.sipPort;
 	}
 	
 	public int getSipRtcpPort()
 	{
-		return this.sipSocketRtcp.socket().getLocalPort();
+		return sipRtcpMux ? this.sipPort : this.sipPort + 1;
 	}
 	
 	public int getJabberPort()
 	{
-		return this.jabberSocket.socket().getLocalPort();
+		return this.jabberPort;
 	}
 	
 	public int getJabberRtcpPort()
 	{
-		return this.jabberSocketRtcp.socket().getLocalPort();
+		return jabberRtcpMux ? this.jabberPort : this.jabberPort + 1;
 	}
 	
-	public void shutdown()
+	public boolean isSipRtcpMux()
+	{
+		return sipRtcpMux;
+	}
+	
+	public boolean isJabberRtcpMux()
+	{
+		return jabberRtcpMux;
+	}
+	
+	public boolean isSipBundled()
+	{
+		return bundled != null || sipShared;
+	}
+	
+	/*
+	 * The sip side accepted rtcp-mux, from now on rtcp is demultiplexed from the rtp socket
+	 */
+	public void setSipRtcpMux()
+	{
+		if (!RTCP_MUX || sipRtcpMux)
+		{
+			return;
+		}
+		sipRtcpMux = true;
+		if (!sipShared)
+		{
+			closeQuietly(sipSocketRtcp);
+		}
+		logger.info("[[" + cs.internalCallId + "]] rtcp-mux enabled on sip side [" + sipPort + "]");
+	}
+	
+	public void setJabberRtcpMux()
 	{
-		logger.debug("[[" + cs.internalCallId + "]] Shutdown of rtp thread requested");
+		if (!RTCP_MUX || jabberRtcpMux)
+		{
+			return;
+		}
+		jabberRtcpMux = true;
 		synchronized (transmitters)
 		{
-			logger.debug("[[" + cs.internalCallId + "]] number of transmitters : " + transmitters.size());
-			for (String key : transmitters.keySet())
+			for (StunTransaction st : transmitters.values())
 			{
-				logger.debug("[[" + cs.internalCallId + "]] cancelling transmitter : " + key);
-				transmitters.get(key).cancel();
+				if (st.socket == jabberSocketRtcp)
+				{
+					st.cancel();
+				}
 			}
 		}
-		
-		try
+		closeQuietly(jabberSocketRtcp);
+		logger.info("[[" + cs.internalCallId + "]] rtcp-mux enabled on xmpp side [" + jabberPort + "]");
+	}
+	
+	/*
+	 * BUNDLE on the sip side: the video relay gives up its sip sockets and sends and receives on ours,
+	 * both sides must have rtcp-mux. Rtp is told apart by payload type, rtcp by sender ssrc
+	 */
+	public void bundle(RtpRelay videoRelay, List<? extends CallSession.Payload> payloads)
+	{
+		if (!BUNDLE || bundled == videoRelay || !sipRtcpMux)
 		{
-			dtmfQueue.put('\0');
-		} 
-		catch (InterruptedException e)
+			return;
+		}
+		
+		for (CallSession.Payload p : payloads)
 		{
-			logger.error("unable to queue shutdown signal!", e);
+			if (p.id >= 0 && p.id < bundledPayloads.length)
+			{
+				videoRelay.bundledPayloads[p.id] = true;
+			}
 		}
+		videoRelay.shareSipSocket(this);
+		bundled = videoRelay;
+		logger.info("[[" + cs.internalCallId + "]] video bundled on sip side [" + sipPort + "]");
+	}
+	
+	private void shareSipSocket(RtpRelay owner)
+	{
+		DatagramChannel oldRtp = sipSocket;
+		DatagramChannel oldRtcp = sipSocketRtcp;
+		int oldPort = sipPort;
 		
+		sipOwner = owner;
+		sipPort = owner.sipPort;
+		sipRtcpMux = true;
+		sipShared = true;
+		sipSocket = owner.sipSocket;
+		sipSocketRtcp = owner.sipSocket;
+		
+		closeQuietly(oldRtp);
+		closeQuietly(oldRtcp);
+		PortAllocator.releasePair(oldPort);
+	}
+	
+	/*
+	 * True when one of the watched sides sent no rtp or rtcp for longer than its timeout.
+	 * One side is enough: the usual dead call is a sip leg that vanished while the xmpp
+	 * client keeps sending, and a relay with one side gone carries nothing useful
+	 */
+	public boolean isMediaIdle(long now)
+	{
+		long sip = Math.max(created, sipLastMedia);
+		long jabber = Math.max(created, jabberLastMedia);
+		return (sipSending && SIP_MEDIA_TIMEOUT > 0 && now - sip > SIP_MEDIA_TIMEOUT)
+		    || (JABBER_MEDIA_TIMEOUT > 0 && now - jabber > JABBER_MEDIA_TIMEOUT);
+	}
+	
+	/*
+	 * The direction of the sip side's sdp, a side that said it won't send is not watched.
+	 * Its silence counts from when it says it sends again
+	 */
+	public void setSipSending(boolean sending)
+	{
+		if (sending && !sipSending)
+		{
+			sipLastMedia = System.currentTimeMillis();
+		}
+		sipSending = sending;
+	}
+	
+	/*
+	 * Reception statistics of the media sent to us by the sip side
+	 */
+	public RtpStats getSipStats()
+	{
+		return sipStats;
+	}
+
+	/*
+	 * Reception statistics of the media sent to us by the xmpp side
+	 */
+	public RtpStats getJabberStats()
+	{
+		return jabberStats;
+	}
+
+	public String getStatsSummary()
+	{
+		JitterBuffer jb = jitterBuffer;
+		SrtpContext in = srtpIn;
+		SvcFilter filter = svcFilter;
+		H264Packetizer p = packetizer;
+		return (video ? "video" : "audio") + " sip->xmpp: " + sipStats.summary() + ", xmpp->sip: " + jabberStats.summary()
+		     + (jb == null ? "" : ", " + jb.summary())
+		     + (keyframes == null ? "" : ", " + keyframes.summary())
+		     + (bandwidth == null ? "" : ", " + bandwidth.summary())
+		     + (filter == null ? "" : ", " + filter.summary())
+		     + (p == null ? "" : ", " + p.summary())
+		     + (sipCache == null ? "" : ", keyframe cache to sip: " + sipCache.summary() + ", to xmpp: " + jabberCache.summary())
+		     + (in == null ? "" : ", srtp: auth_failures=" + in.getAuthFailures() + " replays=" + in.getReplays());
+	}
+	
+	public static boolean isRtcpMuxEnabled()
+	{
+		return RTCP_MUX;
+	}
+	
+	public static boolean isBundleEnabled()
+	{
+		return BUNDLE;
+	}
+	
+	private void closeQuietly(DatagramChannel socket)
+	{
 		try
 		{
-			sipSocket.close();
+			socket.close();
 		} 
 		catch (IOException e)
 		{
-			logger.error("unable to close sip-side rtp socket!", e);
+			logger.error("[[" + cs.internalCallId + "]] unable to close rtp socket!", e);
 		}
-		try
+	}
+	
+	public void shutdown()
+	{
+		synchronized (this)
 		{
-			jabberSocket.close();
-		} 
-		catch (IOException e)
+			if (shutdown)
+			{
+				return;
+			}
+			shutdown = true;
+		}
+		
+		logger.debug("[[" + cs.internalCallId + "]] Shutdown of rtp relay requested");
+		synchronized (transmitters)
 		{
-			logger.error("unable to close xmpp-side rtp socket!", e);
+			logger.debug("[[" + cs.internalCallId + "]] number of transmitters : " + transmitters.size());
+			for (StunTransaction st : transmitters.values())
+			{
+				logger.debug("[[" + cs.internalCallId + "]] cancelling transmitter : " + st.key);
+				st.cancel();
+			}
 		}
 		
-		try
+		if (dtmfSender != null)
 		{
-			sipSocketRtcp.close();
-		} 
-		catch (IOException e)
+			dtmfSender.stop();
+		}
+		
+		logger.info("[[" + cs.internalCallId + "]] " + getStatsSummary());
+		
+		JitterBuffer jb = jitterBuffer;
+		if (jb != null)
 		{
-			logger.error("Error in rtcp shutdown", e);
+			jb.stop();
 		}
-		try
+		synchronized (sipLock)
 		{
-			jabberSocketRtcp.close();
-		} 
-		catch (IOException e)
+			// taken out before they free their buffers, the worker finds nothing to feed
+			SvcFilter filter = svcFilter;
+			svcFilter = null;
+			if (filter != null)
+			{
+				filter.stop();
+			}
+			H264Packetizer p = packetizer;
+			packetizer = null;
+			if (p != null)
+			{
+				p.stop();
+			}
+		}
+		if (sipCache != null)
+		{
+			sipCache.release();
+			jabberCache.release();
+		}
+		
+		if (!sipShared)
+		{
+			try
+			{
+				sipSocket.close();
+			} 
+			catch (IOException e)
+			{
+				logger.error("unable to close sip-side rtp socket!", e);
+			}
+		}
+		if (sharedPort != null)
+		{
+			sharedPort.remove(sharedUfrag, sharedSource, sharedSsrc, this);
+		}
+		else
+		{
+			try
+			{
+				jabberSocket.close();
+			} 
+			catch (IOException e)
+			{
+				logger.error("unable to close xmpp-side rtp socket!", e);
+			}
+		}
+		
+		if (!sipShared)
+		{
+			try
+			{
+				sipSocketRtcp.close();
+			} 
+			catch (IOException e)
+			{
+				logger.error("Error in rtcp shutdown", e);
+			}
+		}
+		if (sharedPort == null)
+		{
+			try
+			{
+				jabberSocketRtcp.close();
+			} 
+			catch (IOException e)
+			{
+				logger.error("Error in rtcp shutdown", e);
+			}
+			PortAllocator.releasePair(jabberPort);
+		}
+		if (!sipShared)
 		{
-			logger.error("Error in rtcp shutdown", e);
+			PortAllocator.releasePair(sipPort);
 		}
 	}
 
 	public static void configure(Properties properties)
 	{
-		RTP_MIN_PORT = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.min_port", "8000"));
-		RTP_MAX_PORT = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.max_port", "10000"));
 		NAT_ENABLE = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.rtp.nat_enable", "false"));
-		FIR_ENABLE = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.rtp.fir_enable", "false"));
-
-		nextPort = RTP_MIN_PORT;		
+		CONNECT_PEERS = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.rtp.connect_peers", "true"));
+		RELATCH_TIMEOUT = Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.relatch_timeout", "2000"));
+		RTCP_MUX = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.rtp.rtcp_mux", "true"));
+		BUNDLE = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.rtp.bundle", "true"));
+		SIP_MEDIA_TIMEOUT = Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.sip_media_timeout", "60")) * 1000;
+		JABBER_MEDIA_TIMEOUT = Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.jabber_media_timeout", "60")) * 1000;
 	}
 }
@@ -0,0 +1,300 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Reception statistics of the media coming from one side of a relay (RFC 3550 A.1, A.3, A.8):
+ * counts, loss and reordering from the sequence numbers, interarrival jitter and the longest
+ * gap between packets.
+ *
+ * The round trip to that side is measured on the sender reports we forward to it: we note
+ * when each one went out, the receiver reports coming back give LSR/DLSR.
+ *
+ * Updated by the media worker only, nothing is allocated. The getters may be called from
+ * any thread and return values that can be a packet stale
+ *
+ */
+public class RtpStats
+{
+	private static final int MAX_DROPOUT = 3000;
+	private static final int MAX_MISORDER = 100;
+	// sender reports remembered for the rtt
+	private static final int SR_HISTORY = 8;
+
+	private int clockRate;
+
+	private long packets = 0;
+	private long bytes = 0;
+
+	private int ssrc = 0;
+	private boolean started = false;
+	private int baseSeq;
+	private int maxSeq;
+	private long cycles;
+	private long received;
+	private long reordered = 0;
+	private long restarts = 0;
+
+	private long firstArrival;
+	private long lastArrival;
+	private long lastTransit;
+	private double jitter = 0;
+	private long maxGap = 0;
+
+	private int [] srNtp = new int[SR_HISTORY];
+	private long [] srSent = new long[SR_HISTORY];
+	private int srNext = 0;
+	private long rtt = -1;
+	private long maxRtt = -1;
+
+
+	public RtpStats(int clockRate)
+	{
+		this.clockRate = clockRate;
+	}
+
+	private void restart(int seq)
+	{
+		baseSeq = seq;
+		maxSeq = seq;
+		cycles = 0;
+		received = 0;
+	}
+
+	/*
+	 * An rtp packet received from the side, before any rewriting
+	 */
+	public void received(ByteBuffer packet, long arrival)
+	{
+		packets++;
+		bytes += packet.limit();
+
+		int seq = RtpUtil.getSequenceNumber(packet);
+		int packetSsrc = RtpUtil.getSSRC(packet);
+
+		if (!started || packetSsrc != ssrc)
+		{
+			if (started)
+			{
+				restarts++;
+			}
+			started = true;
+			ssrc = packetSsrc;
+			restart(seq);
+			firstArrival = arrival;
+			lastArrival = arrival;
+			lastTransit = transit(packet, arrival);
+			received = 1;
+			return;
+		}
+
+		int delta = (seq - maxSeq) & 0xFFFF;
+		if (delta == 0)
+		{
+			// duplicate
+			return;
+		}
+		else if (delta < MAX_DROPOUT)
+		{
+			if (seq < maxSeq)
+			{
+				cycles += 0x10000;
+			}
+			maxSeq = seq;
+		}
+		else if (delta >= 0x10000 - MAX_MISORDER)
+		{
+			reordered++;
+		}
+		else
+		{
+			// big jump on the same ssrc, start over
+			restarts++;
+			restart(seq);
+		}
+		received++;
+
+		long gap = arrival - lastArrival;
+		if (gap > maxGap)
+		{
+			maxGap = gap;
+		}
+		lastArrival = arrival;
+
+		long transit = transit(packet, arrival);
+		long d = (int) (transit - lastTransit);
+		lastTransit = transit;
+		jitter += (Math.abs(d) - jitter) / 16;
+	}
+
+	/*
+	 * Arrival time in rtp units minus the rtp timestamp, only differences are meaningful
+	 */
+	private long transit(ByteBuffer packet, long arrival)
+	{
+		long micros = (arrival - firstArrival) / 1000;
+		return micros * clockRate / 1000000 - RtpUtil.getTimeStamp(packet);
+	}
+
+	/*
+	 * We forwarded a sender report to this side, ntp is the middle 32 bits of its timestamp
+	 */
+	public void senderReportSent(int ntp, long now)
+	{
+		srNtp[srNext] = ntp;
+		srSent[srNext] = now;
+		srNext = (srNext + 1) % SR_HISTORY;
+	}
+
+	/*
+	 * A report block from this side, lsr/dlsr as in RFC 3550 (dlsr in 1/65536 s)
+	 */
+	public void receiverReport(int lsr, int dlsr, long now)
+	{
+		if (lsr == 0)
+		{
+			return;
+		}
+		for (int i = 0; i < SR_HISTORY; i++)
+		{
+			if (srNtp[i] == lsr && srSent[i] != 0)
+			{
+				long delay = ((dlsr & 0xFFFFFFFFL) * 1000000000L) >> 16;
+				long value = now - srSent[i] - delay;
+				if (value >= 0)
+				{
+					rtt = value;
+					maxRtt = Math.max(maxRtt, value);
+				}
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Goes through the report blocks of a compound rtcp packet received from this side
+	 */
+	public void receivedRtcp(ByteBuffer packet, long now)
+	{
+		for (int offset = 0; offset >= 0; offset = RtpUtil.nextRtcp(packet, offset))
+		{
+			if (!RtpUtil.isRtcpComplete(packet, offset))
+			{
+				return;
+			}
+			int type = RtpUtil.getRtcpType(packet, offset);
+			if (type != RtpUtil.RTCP_SR && type != RtpUtil.RTCP_RR)
+			{
+				continue;
+			}
+			int end = offset + RtpUtil.getRtcpLength(packet, offset);
+			int block = offset + (type == RtpUtil.RTCP_SR ? 28 : 8);
+			int count = RtpUtil.getRtcpCount(packet, offset);
+			for (int i = 0; i < count && block + 24 <= end; i++, block += 24)
+			{
+				receiverReport(packet.getInt(block + 16), packet.getInt(block + 20), now);
+			}
+		}
+	}
+
+	/*
+	 * Notes the sender reports of a compound rtcp packet we are about to send to this side
+	 */
+	public void sendingRtcp(ByteBuffer packet, long now)
+	{
+		for (int offset = 0; offset >= 0; offset = RtpUtil.nextRtcp(packet, offset))
+		{
+			if (!RtpUtil.isRtcpComplete(packet, offset))
+			{
+				return;
+			}
+			if (RtpUtil.getRtcpType(packet, offset) == RtpUtil.RTCP_SR && RtpUtil.getRtcpLength(packet, offset) >= 28)
+			{
+				// middle 32 bits of the 64 bit ntp timestamp at 8
+				senderReportSent(packet.getInt(offset + 10), now);
+			}
+		}
+	}
+
+	public long getPackets()
+	{
+		return packets;
+	}
+
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	public long getExpected()
+	{
+		return started ? cycles + maxSeq - baseSeq + 1 : 0;
+	}
+
+	public long getLost()
+	{
+		return Math.max(0, getExpected() - received);
+	}
+
+	public long getReordered()
+	{
+		return reordered;
+	}
+
+	/*
+	 * Interarrival jitter in microseconds
+	 */
+	public long getJitter()
+	{
+		return (long) (jitter * 1000000 / clockRate);
+	}
+
+	/*
+	 * Longest time between two packets, in nanoseconds
+	 */
+	public long getMaxGap()
+	{
+		return maxGap;
+	}
+
+	/*
+	 * Last round trip time to the side in nanoseconds, -1 when unknown
+	 */
+	public long getRtt()
+	{
+		return rtt;
+	}
+
+	public String summary()
+	{
+		long expected = getExpected();
+		long lost = getLost();
+		return "pkts=" + packets
+		     + " bytes=" + bytes
+		     + " lost=" + lost + (expected > 0 ? String.format(" (%.2f%%)", lost * 100.0 / expected) : "")
+		     + " reordered=" + reordered
+		     + " restarts=" + restarts
+		     + " jitter=" + getJitter() / 1000.0 + "ms"
+		     + " max_gap=" + maxGap / 1000000 + "ms"
+		     + " rtt=" + (rtt < 0 ? "-" : rtt / 1000000 + "ms")
+		     + " max_rtt=" + (maxRtt < 0 ? "-" : maxRtt / 1000000 + "ms");
+	}
+}
@@ -0,0 +1,315 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+
+/**
+ * Rewrites the ssrc, sequence numbers and timestamps of one direction of a relay so the
+ * receiver sees a single continuous stream, whatever the sender does: ssrc changes,
+ * stream restarts, and packets we insert ourselves (dtmf).
+ *
+ * The matching rtcp is rewritten too: sender reports of the source get our ssrc,
+ * timestamp and counters, and reports/feedback coming back about our ssrc are mapped
+ * back to the source.
+ *
+ * Not thread safe, the relay calls it with its sipLock held, rtcp included, or only
+ * from its worker
+ *
+ */
+class RtpTranslator
+{
+	// RFC 3550 A.1, a jump bigger than this on the same ssrc is a restart
+	private static final int MAX_DROPOUT = 3000;
+	private static final int MAX_MISORDER = 100;
+
+	private static Random random = new Random();
+
+	private int clockRate;
+
+	private final int outSsrc;
+	private int inSsrc = 0;
+	private boolean started = false;
+
+	private int seqOffset = 0;
+	private long tsOffset = 0;
+
+	private int lastInSeq = 0;
+	private int lastOutSeq;
+	private long lastOutTs;
+	private long lastOutTime = 0;
+
+	private long packets = 0;
+	private long octets = 0;
+	private long resyncs = 0;
+
+
+	public RtpTranslator(int clockRate)
+	{
+		this.clockRate = clockRate;
+		this.outSsrc = random.nextInt();
+		this.lastOutSeq = random.nextInt() & 0xFFFF;
+		this.lastOutTs = random.nextInt() & 0xFFFFFFFFL;
+	}
+
+	/*
+	 * Next output sequence and timestamp continue from what was last sent, the timestamp
+	 * advanced by the time elapsed since
+	 */
+	private void resync(int seq, long ts, long now)
+	{
+		long elapsed = lastOutTime == 0 ? 20 : Math.max(1, now - lastOutTime);
+		seqOffset = (lastOutSeq + 1 - seq) & 0xFFFF;
+		tsOffset = (lastOutTs + elapsed * clockRate / 1000 - ts) & 0xFFFFFFFFL;
+		resyncs++;
+	}
+
+	/*
+	 * Rewrites the header of an rtp packet of the source in place
+	 */
+	public void translate(ByteBuffer packet, long now)
+	{
+		int ssrc = RtpUtil.getSSRC(packet);
+		int seq = RtpUtil.getSequenceNumber(packet);
+		long ts = RtpUtil.getTimeStamp(packet);
+
+		if (!started || ssrc != inSsrc)
+		{
+			inSsrc = ssrc;
+			started = true;
+			resync(seq, ts, now);
+		}
+		else
+		{
+			int delta = (seq - lastInSeq) & 0xFFFF;
+			if (delta >= MAX_DROPOUT && delta < 0x10000 - MAX_MISORDER)
+			{
+				// same ssrc but the numbering jumped, the source restarted
+				resync(seq, ts, now);
+			}
+		}
+		lastInSeq = seq;
+
+		int outSeq = (seq + seqOffset) & 0xFFFF;
+		long outTs = (ts + tsOffset) & 0xFFFFFFFFL;
+
+		RtpUtil.setSSRC(packet, outSsrc);
+		RtpUtil.setSequenceNumber(packet, outSeq);
+		RtpUtil.setTimeStamp(packet, outTs);
+
+		// only move forward, a late packet must not pull the reference back
+		if (((outSeq - lastOutSeq) & 0xFFFF) < 0x8000)
+		{
+			lastOutSeq = outSeq;
+			lastOutTs = outTs;
+			lastOutTime = now;
+		}
+		packets++;
+		octets += RtpUtil.getPayloadLength(packet);
+	}
+
+	/*
+	 * A source packet we drop instead of translating, the ones that follow are shifted
+	 * back by one so the receiver sees no gap
+	 */
+	public void skip(ByteBuffer packet)
+	{
+		if (!started || RtpUtil.getSSRC(packet) != inSsrc)
+		{
+			// the next packet translated resyncs anyway
+			return;
+		}
+		lastInSeq = RtpUtil.getSequenceNumber(packet);
+		seqOffset = (seqOffset - 1) & 0xFFFF;
+	}
+
+	/*
+	 * The last packet translated is not sent on its own but merged into the one before,
+	 * its number is given to the packets that follow
+	 */
+	public void removeSequence()
+	{
+		lastOutSeq = (lastOutSeq - 1) & 0xFFFF;
+		seqOffset = (seqOffset - 1) & 0xFFFF;
+		packets--;
+	}
+
+	/*
+	 * Sequence number for a packet we generate in the stream, the source packets
+	 * that follow are shifted by one
+	 */
+	public int nextInsertedSequence()
+	{
+		lastOutSeq = (lastOutSeq + 1) & 0xFFFF;
+		seqOffset = (seqOffset + 1) & 0xFFFF;
+		packets++;
+		return lastOutSeq;
+	}
+
+	/*
+	 * Timestamp for a frame we generate in the stream, advanced from the last one sent by
+	 * the time elapsed since
+	 */
+	public long nextInsertedTimestamp(long now)
+	{
+		long elapsed = lastOutTime == 0 ? 1 : Math.max(1, now - lastOutTime);
+		lastOutTs = (lastOutTs + elapsed * clockRate / 1000) & 0xFFFFFFFFL;
+		lastOutTime = now;
+		return lastOutTs;
+	}
+
+	/*
+	 * The next source packet continues from what was last sent instead of its own
+	 * numbering, after packets were inserted that don't fit in the source's
+	 */
+	public void restart()
+	{
+		started = false;
+	}
+
+	public long getTimestamp()
+	{
+		return lastOutTs;
+	}
+
+	public int getSsrc()
+	{
+		return outSsrc;
+	}
+
+	public int getSourceSsrc()
+	{
+		return inSsrc;
+	}
+
+	public long getResyncCount()
+	{
+		return resyncs;
+	}
+
+	/*
+	 * Rtcp sent by the source along with its rtp: its sender reports become ours
+	 */
+	public void translateSourceRtcp(ByteBuffer packet)
+	{
+		if (!started)
+		{
+			return;
+		}
+
+		for (int offset = 0; offset >= 0; offset = RtpUtil.nextRtcp(packet, offset))
+		{
+			if (!RtpUtil.isRtcpComplete(packet, offset))
+			{
+				return;
+			}
+
+			int type = RtpUtil.getRtcpType(packet, offset);
+			if (RtpUtil.getRtcpSenderSSRC(packet, offset) != inSsrc)
+			{
+				continue;
+			}
+
+			RtpUtil.setRtcpSenderSSRC(packet, offset, outSsrc);
+			if (type == RtpUtil.RTCP_SR && RtpUtil.getRtcpLength(packet, offset) >= 28)
+			{
+				// ntp at 8, rtp timestamp at 16, packet and octet counts at 20 and 24
+				long ts = packet.getInt(offset + 16) & 0xFFFFFFFFL;
+				packet.putInt(offset + 16, (int) (ts + tsOffset));
+				packet.putInt(offset + 20, (int) packets);
+				packet.putInt(offset + 24, (int) octets);
+			}
+			else if (type == RtpUtil.RTCP_SDES && RtpUtil.getRtcpLength(packet, offset) >= 8)
+			{
+				// first chunk is the sender
+				packet.putInt(offset + 4, outSsrc);
+			}
+		}
+	}
+
+	/*
+	 * Rtcp from the receiver about our stream: report blocks and feedback naming our
+	 * ssrc are pointed back at the source, with the sequence numbers in its numbering.
+	 * Under the same lock as translate(), it reads the offset that one moves
+	 */
+	public void translateReceiverRtcp(ByteBuffer packet)
+	{
+		if (!started)
+		{
+			return;
+		}
+
+		for (int offset = 0; offset >= 0; offset = RtpUtil.nextRtcp(packet, offset))
+		{
+			if (!RtpUtil.isRtcpComplete(packet, offset))
+			{
+				return;
+			}
+
+			int type = RtpUtil.getRtcpType(packet, offset);
+			int length = RtpUtil.getRtcpLength(packet, offset);
+
+			if (type == RtpUtil.RTCP_SR || type == RtpUtil.RTCP_RR)
+			{
+				int block = offset + (type == RtpUtil.RTCP_SR ? 28 : 8);
+				int count = RtpUtil.getRtcpCount(packet, offset);
+				for (int i = 0; i < count && block + 24 <= offset + length; i++, block += 24)
+				{
+					if (packet.getInt(block) == outSsrc)
+					{
+						packet.putInt(block, inSsrc);
+						// keep the cycle count, only the low 16 bits are in our numbering
+						int highest = packet.getInt(block + 8);
+						int low = ((highest & 0xFFFF) - seqOffset) & 0xFFFF;
+						packet.putInt(block + 8, (highest & 0xFFFF0000) | low);
+					}
+				}
+			}
+			else if ((type == RtpUtil.RTCP_RTPFB || type == RtpUtil.RTCP_PSFB) && length >= 12)
+			{
+				int fmt = RtpUtil.getRtcpCount(packet, offset);
+				if (packet.getInt(offset + 8) == outSsrc)
+				{
+					packet.putInt(offset + 8, inSsrc);
+					if (type == RtpUtil.RTCP_RTPFB && fmt == RtpUtil.RTPFB_NACK)
+					{
+						// generic nack (RFC 4585 6.2.1), the lost packet ids, the bitmask is relative to them
+						for (int fci = offset + 12; fci + 4 <= offset + length; fci += 4)
+						{
+							int pid = packet.getShort(fci) & 0xFFFF;
+							packet.putShort(fci, (short) (pid - seqOffset));
+						}
+					}
+				}
+				if (type == RtpUtil.RTCP_PSFB && fmt == RtpUtil.PSFB_FIR)
+				{
+					// the media source of a fir is in each of its entries (RFC 5104 4.3.1)
+					for (int fci = offset + 12; fci + 8 <= offset + length; fci += 8)
+					{
+						if (packet.getInt(fci) == outSsrc)
+						{
+							packet.putInt(fci, inSsrc);
+						}
+					}
+				}
+			}
+		}
+	}
+}
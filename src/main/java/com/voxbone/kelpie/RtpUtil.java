@@ -17,12 +17,48 @@
 package com.voxbone.kelpie;
 
 
+import java.nio.ByteBuffer;
+
+
 /**
  * Utility functions for Parsing information from RTP packets
  *
+ * Everything works on absolute offsets of a ByteBuffer (heap or direct, network order)
+ * and returns primitives, so nothing here allocates or moves the buffer position
+ *
  */
 public class RtpUtil
 {
+	public static final int RTP_HEADER_LENGTH = 12;
+
+	public static final int RTCP_SR = 200;
+	public static final int RTCP_RR = 201;
+	public static final int RTCP_SDES = 202;
+	public static final int RTCP_BYE = 203;
+	public static final int RTCP_APP = 204;
+	public static final int RTCP_RTPFB = 205;
+	public static final int RTCP_PSFB = 206;
+
+	// H.264 NAL unit types of the rtp payload (RFC 6184, RFC 6190)
+	public static final int NAL_PREFIX = 14;
+	public static final int NAL_SLICE_EXT = 20;
+	public static final int NAL_STAP_A = 24;
+	public static final int NAL_FU_A = 28;
+	public static final int NAL_PACSI = 30;
+
+	// feedback message types of PSFB (RFC 4585, RFC 5104)
+	public static final int PSFB_PLI = 1;
+	public static final int PSFB_FIR = 4;
+	public static final int PSFB_AFB = 15;
+	// and of RTPFB
+	public static final int RTPFB_NACK = 1;
+	public static final int RTPFB_TMMBR = 3;
+	public static final int RTPFB_TMMBN = 4;
+
+	// "REMB", the application layer feedback carrying a receiver estimated maximum bitrate
+	private static final int REMB_ID = 0x52454D42;
+	// ip/udp/rtp overhead given with our TMMBR, RFC 5104 4.2.1.2
+	public static final int TMMBR_OVERHEAD = 40;
 	
 	/*
 		 
@@ -42,14 +78,219 @@ public class RtpUtil
 	   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 
 	 */
-	public static void buildRtpHeader(byte [] buffer, int payload, short seq, long timestamp, byte [] ssrc)
+	public static void buildRtpHeader(ByteBuffer buffer, int payload, int seq, long timestamp, int ssrc)
 	{
-		buffer[0] = (byte) 0x80;
-		buffer[1] = (byte) payload;
+		buffer.put(0, (byte) 0x80);
+		buffer.put(1, (byte) payload);
 		setSequenceNumber(buffer, seq);
 		setTimeStamp(buffer, timestamp);
 		setSSRC(buffer, ssrc);
 	}
+
+	public static int getVersion(ByteBuffer buffer)
+	{
+		return (buffer.get(0) & 0xC0) >>> 6;
+	}
+
+	public static boolean hasPadding(ByteBuffer buffer)
+	{
+		return (buffer.get(0) & 0x20) != 0;
+	}
+
+	public static boolean hasExtension(ByteBuffer buffer)
+	{
+		return (buffer.get(0) & 0x10) != 0;
+	}
+
+	public static int getCsrcCount(ByteBuffer buffer)
+	{
+		return buffer.get(0) & 0x0F;
+	}
+
+	public static int getCsrc(ByteBuffer buffer, int index)
+	{
+		return buffer.getInt(RTP_HEADER_LENGTH + index * 4);
+	}
+
+	public static boolean getMarker(ByteBuffer buffer)
+	{
+		return (buffer.get(1) & 0x80) != 0;
+	}
+
+	public static void setMarker(ByteBuffer buffer, boolean set)
+	{
+		if (set)
+		{
+			buffer.put(1, (byte) (buffer.get(1) | 0x80));
+		}
+		else
+		{
+			buffer.put(1, (byte) (buffer.get(1) & 0x7F));
+		}
+	}
+
+	public static int getPayloadType(ByteBuffer buffer)
+	{
+		return buffer.get(1) & 0x7F;
+	}
+
+	public static void setPayloadType(ByteBuffer buffer, int payload)
+	{
+		buffer.put(1, (byte) ((buffer.get(1) & 0x80) | (payload & 0x7F)));
+	}
+
+	public static int getSequenceNumber(ByteBuffer buffer)
+	{
+		return buffer.getShort(2) & 0xFFFF;
+	}
+
+	public static void setSequenceNumber(ByteBuffer buffer, int seq)
+	{
+		buffer.putShort(2, (short) seq);
+	}
+
+	public static long getTimeStamp(ByteBuffer buffer)
+	{
+		return buffer.getInt(4) & 0xFFFFFFFFL;
+	}
+
+	public static void setTimeStamp(ByteBuffer buffer, long timestamp)
+	{
+		buffer.putInt(4, (int) timestamp);
+	}
+
+	public static int getSSRC(ByteBuffer buffer)
+	{
+		return buffer.getInt(8);
+	}
+
+	public static void setSSRC(ByteBuffer buffer, int ssrc)
+	{
+		buffer.putInt(8, ssrc);
+	}
+
+	/*
+	 * Header extension (RFC 3550 5.3.1), the profile specific 16 bits and the length
+	 * of the extension data in bytes (without its 4 byte header)
+	 */
+	public static int getExtensionProfile(ByteBuffer buffer)
+	{
+		return buffer.getShort(RTP_HEADER_LENGTH + getCsrcCount(buffer) * 4) & 0xFFFF;
+	}
+
+	public static int getExtensionLength(ByteBuffer buffer)
+	{
+		return (buffer.getShort(RTP_HEADER_LENGTH + getCsrcCount(buffer) * 4 + 2) & 0xFFFF) * 4;
+	}
+
+	/*
+	 * Offset of the payload: fixed header, csrcs and extension
+	 */
+	public static int getHeaderLength(ByteBuffer buffer)
+	{
+		int length = RTP_HEADER_LENGTH + getCsrcCount(buffer) * 4;
+		if (hasExtension(buffer))
+		{
+			length += 4 + (buffer.getShort(length + 2) & 0xFFFF) * 4;
+		}
+		return length;
+	}
+
+	/*
+	 * Payload size in a packet spanning 0..limit, without the padding
+	 */
+	public static int getPayloadLength(ByteBuffer buffer)
+	{
+		int length = buffer.limit() - getHeaderLength(buffer);
+		if (hasPadding(buffer))
+		{
+			length -= buffer.get(buffer.limit() - 1) & 0xFF;
+		}
+		return length;
+	}
+
+	/*
+	 * RFC 5761 demultiplexing, rtcp packet types 192-223 fall in a payload type range rtp never uses
+	 */
+	public static boolean isRtcp(ByteBuffer buffer)
+	{
+		if (buffer.limit() < 2)
+		{
+			return false;
+		}
+		int type = buffer.get(1) & 0xFF;
+		return type >= 192 && type <= 223;
+	}
+
+	/*
+	    0                   1                   2                   3
+	    0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+	   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	   |V=2|P|  count  |       PT      |          length               |
+	   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+	   |                  SSRC of packet sender                        |
+	   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
+	   A compound rtcp packet is walked with
+	
+	   for (int off = 0; off >= 0; off = RtpUtil.nextRtcp(buffer, off)) { ... }
+	 */
+	public static int getRtcpType(ByteBuffer buffer, int offset)
+	{
+		return buffer.get(offset + 1) & 0xFF;
+	}
+
+	/*
+	 * Reception report count, source count or feedback message type depending on the packet type
+	 */
+	public static int getRtcpCount(ByteBuffer buffer, int offset)
+	{
+		return buffer.get(offset) & 0x1F;
+	}
+
+	/*
+	 * Length of the rtcp packet at offset in bytes, header included
+	 */
+	public static int getRtcpLength(ByteBuffer buffer, int offset)
+	{
+		return ((buffer.getShort(offset + 2) & 0xFFFF) + 1) * 4;
+	}
+
+	public static int getRtcpSenderSSRC(ByteBuffer buffer, int offset)
+	{
+		return buffer.getInt(offset + 4);
+	}
+
+	public static void setRtcpSenderSSRC(ByteBuffer buffer, int offset, int ssrc)
+	{
+		buffer.putInt(offset + 4, ssrc);
+	}
+
+	/*
+	 * Offset of the packet following the one at offset in a compound packet,
+	 * -1 when there is none or the lengths don't add up
+	 */
+	public static int nextRtcp(ByteBuffer buffer, int offset)
+	{
+		if (offset + 4 > buffer.limit())
+		{
+			return -1;
+		}
+		int next = offset + getRtcpLength(buffer, offset);
+		if (next + 4 > buffer.limit())
+		{
+			return -1;
+		}
+		return next;
+	}
+
+	/*
+	 * True when the rtcp packet at offset fits entirely in the buffer
+	 */
+	public static boolean isRtcpComplete(ByteBuffer buffer, int offset)
+	{
+		return offset + 4 <= buffer.limit() && offset + getRtcpLength(buffer, offset) <= buffer.limit();
+	}
 	
 	/*
 	    0                   1                   2                   3
@@ -80,161 +321,279 @@ public class RtpUtil
 	
 
 	 */
-	public static void buildFIR(byte [] buffer, int seq, byte [] senderSsrc, byte [] destSsrc)
+	public static int buildFIR(ByteBuffer buffer, int seq, int senderSsrc, int destSsrc)
 	{
-                byte [] sr ={(byte)0x80,(byte)0xc9,(byte)0x00,(byte)0x01,(byte)0x00,(byte)0x00,(byte)0x00,(byte)0x01,(byte)0x81,(byte)0xca,(byte)0x00,(byte)0x02,(byte)0x00,(byte)0x00,(byte)0x00,(byte)0x01,(byte)0x01,(byte)0x01,(byte)0x31,(byte)0x00};
-		System.arraycopy(sr, 0, buffer, 0, sr.length);
-		buffer[sr.length+0] = (byte) 0x84;
-		buffer[sr.length+1] = (byte) 206;
-		buffer[sr.length+2] = 0;
-		buffer[sr.length+3] = 4;
+		buildFeedbackHeader(buffer, senderSsrc);
+
+		buffer.putInt(20, 0x84ce0004);
+		buffer.putInt(24, senderSsrc);
+		// media source keeps 0, the ssrc asked for is in the FCI
+		buffer.putInt(28, 0);
+		buffer.putInt(32, destSsrc);
+		buffer.putInt(36, (seq & 0xFF) << 24);
+		buffer.limit(40);
+		return 40;
+	}
+
+	/*
+	 * Picture loss indication (RFC 4585 6.3.1), PSFB with FMT 1 and no FCI
+	 */
+	public static int buildPLI(ByteBuffer buffer, int senderSsrc, int destSsrc)
+	{
+		buildFeedbackHeader(buffer, senderSsrc);
+
+		buffer.putInt(20, 0x81ce0002);
+		buffer.putInt(24, senderSsrc);
+		buffer.putInt(28, destSsrc);
+		buffer.limit(32);
+		return 32;
+	}
 
-		// packet sender 0001
-		//System.arraycopy(senderSsrc, 0, buffer, sr.length+4, 4);
-		buffer[sr.length +4+3] = (byte)0x01;
-		
-		// media source keeps 0
-		//System.arraycopy(senderSsrc, 0, buffer, sr.length+8, 4);
-		System.arraycopy(destSsrc, 0, buffer, sr.length+12, 4);
-		buffer[sr.length+16] = (byte) seq;
+	/*
+	 * Empty receiver report and sdes, a feedback packet can't be sent alone
+	 */
+	private static void buildFeedbackHeader(ByteBuffer buffer, int senderSsrc)
+	{
+		buffer.clear();
+		buffer.putInt(0, 0x80c90001);
+		buffer.putInt(4, senderSsrc);
+		buffer.putInt(8, 0x81ca0002);
+		buffer.putInt(12, senderSsrc);
+		buffer.putInt(16, 0x01013100);
 	}
 
-	public static int getFIRSequence(byte [] buffer, int start, int end)
+	/*
+	 * True for a PLI or FIR, the two ways of asking the sender for a keyframe
+	 */
+	public static boolean isKeyframeRequest(ByteBuffer buffer, int offset)
 	{
-		if(start+1 >= end)
+		if (getRtcpType(buffer, offset) != RTCP_PSFB)
 		{
-			// no FIR
-			return -1;
+			return false;
 		}
+		int fmt = getRtcpCount(buffer, offset);
+		return fmt == PSFB_PLI || fmt == PSFB_FIR;
+	}
 
-		if(buffer[start+1] == (byte)206 && (buffer[start]&0x0F) == (byte)0x04)
+	/*
+	 * Receiver estimated maximum bitrate (draft-alvestrand-rmcat-remb), bitrate in bit/s
+	 */
+	public static int buildREMB(ByteBuffer buffer, int senderSsrc, int destSsrc, long bitrate)
+	{
+		buildFeedbackHeader(buffer, senderSsrc);
+
+		int exp = 0;
+		while (bitrate >= (1 << 18))
 		{
-			// fir found!
-			return (int)buffer[start+16]&0xFF;
+			bitrate >>= 1;
+			exp++;
 		}
-		else
+		buffer.putInt(20, 0x8fce0005);
+		buffer.putInt(24, senderSsrc);
+		buffer.putInt(28, 0);
+		buffer.putInt(32, REMB_ID);
+		buffer.putInt(36, (1 << 24) | (exp << 18) | (int) bitrate);
+		buffer.putInt(40, destSsrc);
+		buffer.limit(44);
+		return 44;
+	}
+
+	/*
+	 * TMMBR or TMMBN (RFC 5104 4.2.1, 4.2.2) with a single entry, bitrate in bit/s
+	 */
+	public static int buildTMMB(ByteBuffer buffer, int fmt, int senderSsrc, int destSsrc, long bitrate, int overhead)
+	{
+		buildFeedbackHeader(buffer, senderSsrc);
+
+		int exp = 0;
+		while (bitrate >= (1 << 17))
 		{
-			// not fir, check next rtcp
-			int length = getShort(buffer, start+2)*4 + 4;
-			return getFIRSequence(buffer, start+length, end);
+			bitrate >>= 1;
+			exp++;
 		}
+		buffer.putInt(20, 0x80cd0004 | (fmt << 24));
+		buffer.putInt(24, senderSsrc);
+		buffer.putInt(28, 0);
+		buffer.putInt(32, destSsrc);
+		buffer.putInt(36, (exp << 26) | ((int) bitrate << 9) | (overhead & 0x1FF));
+		buffer.limit(40);
+		return 40;
 	}
 
-
-	
-	public static short getSequenceNumber(byte [] buffer)
+	public static boolean isREMB(ByteBuffer buffer, int offset)
 	{
-		return getShort(buffer, 2);
+		return getRtcpType(buffer, offset) == RTCP_PSFB && getRtcpCount(buffer, offset) == PSFB_AFB
+		    && getRtcpLength(buffer, offset) >= 20 && buffer.getInt(offset + 12) == REMB_ID;
 	}
 
-	public static void setSequenceNumber(byte [] buffer, short seq)
+	/*
+	 * Bitrate of a REMB in bit/s
+	 */
+	public static long getREMBBitrate(ByteBuffer buffer, int offset)
 	{
-		buffer[3] = (byte) (seq & 0xFF);
-		buffer[2] = (byte) ((seq >> 8) & 0xFF);
+		int value = buffer.getInt(offset + 16);
+		int exp = (value >>> 18) & 0x3F;
+		long mantissa = value & 0x3FFFF;
+		return exp > 45 ? Long.MAX_VALUE : mantissa << exp;
 	}
 
-	public static byte [] getSSRC(byte [] buffer)
+	/*
+	 * True for a TMMBR or TMMBN with at least one entry
+	 */
+	public static boolean isTMMB(ByteBuffer buffer, int offset, int fmt)
 	{
-		byte ssrc[] = new byte[4];
-		System.arraycopy(buffer, 8, ssrc, 0, 4);
-		return ssrc;
+		return getRtcpType(buffer, offset) == RTCP_RTPFB && getRtcpCount(buffer, offset) == fmt
+		    && getRtcpLength(buffer, offset) >= 20;
 	}
-	
-	public static void setSSRC(byte [] buffer, byte [] ssrc)
+
+	/*
+	 * Bitrate of the first entry of a TMMBR or TMMBN in bit/s
+	 */
+	public static long getTMMBBitrate(ByteBuffer buffer, int offset)
 	{
-		System.arraycopy(ssrc, 0, buffer, 8, 4);
+		int value = buffer.getInt(offset + 16);
+		int exp = value >>> 26;
+		long mantissa = (value >>> 9) & 0x1FFFF;
+		return exp > 46 ? Long.MAX_VALUE : mantissa << exp;
 	}
-	
-	public static long getTimeStamp(byte [] buffer)
-	{
-		long timestamp = 0;
-		timestamp = 0xFF & buffer[4];
-
-		timestamp = timestamp << 8;
-		timestamp |= 0xFF & buffer[5];
 
-		timestamp = timestamp << 8;
-		timestamp |= 0xFF & buffer[6];
-
-		timestamp = timestamp << 8;
-		timestamp |= 0xFF & buffer[7];
-
-		return timestamp;
+	public static int getTMMBOverhead(ByteBuffer buffer, int offset)
+	{
+		return buffer.getInt(offset + 16) & 0x1FF;
 	}
-	
-	public static void setTimeStamp(byte [] buffer, long timestamp)
+
+	/*
+	 * Takes the complete rtcp packet at offset out of a compound packet, the ones after it
+	 * move down and the limit shrinks
+	 */
+	public static void removeRtcp(ByteBuffer buffer, int offset)
 	{
-		buffer[7] = (byte) (timestamp & 0xFF);
-		buffer[6] = (byte) ((timestamp >> 8) & 0xFF);
-		buffer[5] = (byte) ((timestamp >> 16) & 0xFF);
-		buffer[4] = (byte) ((timestamp >> 24) & 0xFF);
+		int length = getRtcpLength(buffer, offset);
+		int end = buffer.limit();
+		for (int i = offset + length; i < end; i++)
+		{
+			buffer.put(i - length, buffer.get(i));
+		}
+		buffer.limit(end - length);
 	}
-	
-	public static void setMarker(byte [] buffer, boolean set)
+
+	/*
+	 * Sequence number of the first FIR in a compound rtcp packet, -1 if there is none
+	 */
+	public static int getFIRSequence(ByteBuffer buffer)
 	{
-		if (set)
+		if (buffer.limit() < 4)
 		{
-			buffer[1] |= (0x1 << 7);
+			return -1;
 		}
-		else
+		for (int offset = 0; offset >= 0; offset = nextRtcp(buffer, offset))
 		{
-			buffer[1] &= (0x7F);
+			if (getRtcpType(buffer, offset) == RTCP_PSFB && getRtcpCount(buffer, offset) == PSFB_FIR)
+			{
+				if (offset + 17 > buffer.limit())
+				{
+					return -1;
+				}
+				// fir found!
+				return buffer.get(offset + 16) & 0xFF;
+			}
 		}
+		return -1;
 	}
 	
-	public static int getNALType(byte [] input, int start)
+	/*
+	 * Type of the NAL unit header at offset
+	 */
+	public static int getNALType(ByteBuffer buffer, int offset)
 	{
-		return (int) (0x1F & input[start]);
+		return buffer.get(offset) & 0x1F;
 	}
-	
-	public static short getShort(byte [] buffer, int offset)
+
+	/*
+	 * SVC only NAL units (RFC 6190): prefix, coded slice extension and PACSI, an AVC decoder can't use them
+	 */
+	public static boolean isSVCNal(int nalType)
 	{
-		int seq = 0;
-		seq = 0xFF & buffer[offset];
-		seq = seq << 8;
-		seq |= 0xFF & buffer[offset + 1];
-		return (short) seq;
+		return nalType == NAL_PREFIX || nalType == NAL_SLICE_EXT || nalType == NAL_PACSI;
 	}
-	
-	public static int filterSVC(byte [] input, byte [] output, int input_size)
-	{
-		int output_offset = 12;
-		int input_offset = 12 + 2 + 2 + 8;
 
-		System.arraycopy(input, 0, output, 0, 12);
-
-		output[0] &= 0xEF;
+	/*
+	 * Turns an H.264 SVC rtp packet into its AVC base layer in place: the SVC NAL units are
+	 * taken out of STAP-A aggregates, single NAL and FU-A packets of an SVC NAL are dropped
+	 * whole. The header extension carrying the layer info and the padding go too.
+	 * Returns the new length, 0 when nothing is left to send
+	 */
+	public static int filterSVC(ByteBuffer buffer)
+	{
+		int header = getHeaderLength(buffer);
+		int end = header + getPayloadLength(buffer);
+		if (header >= end || end > buffer.limit())
+		{
+			return 0;
+		}
 
-		int nalType = getNALType(input, input_offset);
-		if (nalType == 24)
+		int type = getNALType(buffer, header);
+		int out = RTP_HEADER_LENGTH + getCsrcCount(buffer) * 4;
+		if (type == NAL_STAP_A)
 		{
-			output[output_offset] = input[input_offset];
-			input_offset += 1;
-			output_offset += 1;
-			
-			while (input_offset < input_size)
+			// entries move down over the ones dropped, the buffer is only read ahead of where it is written
+			buffer.put(out++, buffer.get(header));
+			boolean kept = false;
+			int in = header + 1;
+			while (in + 3 <= end)
 			{
-				short length = getShort(input, input_offset);
-				nalType = getNALType(input, input_offset + 2);
-				if (nalType != 30 && nalType != 14 && nalType != 20)
+				int length = buffer.getShort(in) & 0xFFFF;
+				if (length == 0 || in + 2 + length > end)
 				{
-					System.arraycopy(input, input_offset, output, output_offset, length + 2);
-					input_offset += length + 2;
-					output_offset += length + 2;
+					break;
 				}
-				else
+				if (!isSVCNal(getNALType(buffer, in + 2)))
 				{
-					input_offset += length + 2;
+					move(buffer, in, out, length + 2);
+					out += length + 2;
+					kept = true;
 				}
+				in += length + 2;
 			}
+			if (!kept)
+			{
+				return 0;
+			}
+		}
+		else
+		{
+			if (type == NAL_FU_A && end - header < 2)
+			{
+				return 0;
+			}
+			// a fragment carries the type of the NAL unit it is part of in the FU header
+			if (isSVCNal(type == NAL_FU_A ? getNALType(buffer, header + 1) : type))
+			{
+				return 0;
+			}
+			move(buffer, header, out, end - header);
+			out += end - header;
+		}
+
+		// no extension, no padding
+		buffer.put(0, (byte) (buffer.get(0) & 0xCF));
+		buffer.limit(out);
+		return out;
+	}
+
+	/*
+	 * Copies length bytes from one offset down to a lower or equal one
+	 */
+	private static void move(ByteBuffer buffer, int from, int to, int length)
+	{
+		if (from == to)
+		{
+			return;
 		}
-		else if (nalType != 30 && nalType != 14 && nalType != 20)
+		for (int i = 0; i < length; i++)
 		{
-			System.arraycopy(input, input_offset, output, output_offset, input_size - input_offset);
-			output_offset += input_size - input_offset;
+			buffer.put(to + i, buffer.get(from + i));
 		}
-		
-		return output_offset;
 	}
 
 }
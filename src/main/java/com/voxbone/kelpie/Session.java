@@ -283,6 +283,13 @@ class Session extends Thread implements StreamStatusListener, PacketListener
 		logger.debug("[[" + internalCallId + "]] created call session : [[" + cs.internalCallId + "]]");
 		cs.parseInitiate(packet, jingle);
 		
+		if (cs.relay == null)
+		{
+			logger.error("[[" + internalCallId + "]] No media relay available, terminating call");
+			sess.sendBye(cs);
+			return;
+		}
+		
 		CallManager.addSession(cs);
 		
 		/* For coherence, we try to use the domain he has used in his subscription */
@@ -321,6 +328,12 @@ class Session extends Thread implements StreamStatusListener, PacketListener
 					}
 					else if (candidate.getAttributeValue("name").equals("video_rtcp"))
 					{
+						if (cs.vRelay.isJabberRtcpMux())
+						{
+							// rtcp-mux was negotiated, the rtp candidate carries rtcp too
+							continue;
+						}
+
 						if (!cs.sentVTransport)
 						{
 							sess.sendTransportCandidates(cs, StreamType.VRTCP);
@@ -330,6 +343,12 @@ class Session extends Thread implements StreamStatusListener, PacketListener
 					}
 					else if (candidate.getAttributeValue("name").equals("rtp")/* || candidate.getAttributeValue("name").equals("rtcp")*/)
 					{
+						cs.jabberCandidateSeen = true;
+						if (MediaBypass.isReachableCandidate(candidate.getAttributeValue("address"), candidate.getAttributeValue("type")))
+						{
+							cs.jabberReachable = true;
+						}
+
 						if (!cs.sentTransport)
 						{
 							sess.sendTransportCandidates(cs, StreamType.RTP);
@@ -339,6 +358,12 @@ class Session extends Thread implements StreamStatusListener, PacketListener
 					}
 					else if (candidate.getAttributeValue("name").equals("rtcp"))
 					{
+						if (cs.relay.isJabberRtcpMux())
+						{
+							// rtcp-mux was negotiated, the rtp candidate carries rtcp too
+							continue;
+						}
+
 						if (!cs.sentTransport)
 						{
 							sess.sendTransportCandidates(cs, StreamType.RTCP);										
@@ -488,6 +513,11 @@ class Session extends Thread implements StreamStatusListener, PacketListener
 					{
 						CallSession cs = new CallSession();
 						logger.debug("[[" + internalCallId + "]] created call session : [[" + cs.internalCallId + "]]");
+						if (cs.relay == null)
+						{
+							logger.error("[[" + internalCallId + "]] No media relay available, ignoring callback");
+							return;
+						}
 						
 						cs.offerPayloads.add(CallSession.PAYLOAD_PCMU);
 						cs.offerPayloads.add(CallSession.PAYLOAD_PCMA);
@@ -1018,12 +1048,20 @@ class Session extends Thread implements StreamStatusListener, PacketListener
 				
 				jin_vdescription = content_vid.addElement(new NSI("description", "urn:xmpp:jingle:apps:rtp:1"));
 				jin_vdescription.setAttributeValue("media", "video");
+				if (RtpRelay.isRtcpMuxEnabled())
+				{
+					jin_vdescription.addElement("rtcp-mux");
+				}
 				// jin_transport = content_vid.addElement(new NSI("transport", "http://www.google.com/transport/p2p"));
 				content_vid.addElement(new NSI("transport", "http://www.google.com/transport/p2p"));
 				
 				// Jingle audio
 				jin_description = content.addElement(new NSI("description", "urn:xmpp:jingle:apps:rtp:1"));
 				jin_description.setAttributeValue("media", "audio");
+				if (RtpRelay.isRtcpMuxEnabled())
+				{
+					jin_description.addElement("rtcp-mux");
+				}
 			}
 			
 			for (CallSession.VPayload payload : callSession.offerVPayloads)
@@ -1068,10 +1106,14 @@ class Session extends Thread implements StreamStatusListener, PacketListener
 			if (clientJingle) {
 				jin_description = content.addElement(new NSI("description", "urn:xmpp:jingle:apps:rtp:1"));
 				jin_description.setAttributeValue("media", "audio");
+				if (RtpRelay.isRtcpMuxEnabled())
+				{
+					jin_description.addElement("rtcp-mux");
+				}
 			}
 		}
 		
-		for (CallSession.Payload payload : callSession.offerPayloads)
+		for (CallSession.Payload payload : callSession.getOfferedPayloads())
 		{
 			// Gingle Audio
 			StreamElement payload_type = description.addElement("payload-type", "http://www.google.com/session/phone");
@@ -1210,6 +1252,13 @@ class Session extends Thread implements StreamStatusListener, PacketListener
 		Packet p;
 		StreamElement session;
 		
+		if (   (type == StreamType.RTCP && callSession.relay.isJabberRtcpMux())
+		    || (type == StreamType.VRTCP && callSession.vRelay.isJabberRtcpMux()))
+		{
+			// rtcp-mux, no separate rtcp candidate
+			return true;
+		}
+		
 		Random r = new Random();
 		byte [] bytes = new byte[4];
 		r.nextBytes(bytes);
@@ -1451,11 +1500,19 @@ class Session extends Thread implements StreamStatusListener, PacketListener
 							
 				jin_vdescription = content_vid.addElement(new NSI("description", "urn:xmpp:jingle:apps:rtp:1"));
 				jin_vdescription.setAttributeValue("media", "video");
+				if (callSession.vRelay.isJabberRtcpMux())
+				{
+					jin_vdescription.addElement("rtcp-mux");
+				}
 				jin_transport = content_vid.addElement(new NSI("transport", "http://www.google.com/transport/p2p"));	
 				
 				// Jingle Audio
 				jin_description = content.addElement(new NSI("description", "urn:xmpp:jingle:apps:rtp:1"));
 				jin_description.setAttributeValue("media", "audio");
+				if (callSession.relay.isJabberRtcpMux())
+				{
+					jin_description.addElement("rtcp-mux");
+				}
 			}
 			
 			for (CallSession.VPayload payload : callSession.answerVPayloads)
@@ -1501,6 +1558,10 @@ class Session extends Thread implements StreamStatusListener, PacketListener
 			if (clientJingle) {
 				jin_description = content.addElement(new NSI("description", "urn:xmpp:jingle:apps:rtp:1"));
 				jin_description.setAttributeValue("media", "audio");
+				if (callSession.relay.isJabberRtcpMux())
+				{
+					jin_description.addElement("rtcp-mux");
+				}
 			}
 		}
 		
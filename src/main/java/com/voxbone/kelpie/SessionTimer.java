@@ -0,0 +1,299 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.text.ParseException;
+import java.util.ListIterator;
+import java.util.Properties;
+
+import javax.sip.DialogState;
+import javax.sip.header.Header;
+import javax.sip.header.SupportedHeader;
+import javax.sip.message.Message;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * RFC 4028 session timers on the sip dialogs.
+ *
+ * We offer to be the refresher on the calls we place and pick ourselves when answering
+ * unless the caller already chose. Refreshes are sent as UPDATE by the sweeper, a dialog
+ * that was not refreshed within its interval counts as dead
+ *
+ */
+public class SessionTimer
+{
+	private static final String SESSION_EXPIRES = "Session-Expires";
+	private static final String MIN_SE = "Min-SE";
+	private static final int SESSION_INTERVAL_TOO_SMALL = 422;
+
+	private static int INTERVAL = 1800;
+	private static int MIN_INTERVAL = 90;
+
+	static Logger logger = Logger.getLogger(SessionTimer.class);
+
+
+	public static void configure(Properties properties)
+	{
+		INTERVAL = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.sip.session_expires", "1800"));
+		MIN_INTERVAL = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.sip.min_se", "90"));
+		if (INTERVAL > 0 && INTERVAL < MIN_INTERVAL)
+		{
+			INTERVAL = MIN_INTERVAL;
+		}
+	}
+
+	public static boolean isEnabled()
+	{
+		return INTERVAL > 0;
+	}
+
+	/*
+	 * Value of a header the stack may not know about, without its parameters
+	 */
+	private static String getValue(Message message, String name, String compact)
+	{
+		Header h = message.getHeader(name);
+		if (h == null && compact != null)
+		{
+			h = message.getHeader(compact);
+		}
+		if (h == null)
+		{
+			return null;
+		}
+		String value = h.toString();
+		int colon = value.indexOf(':');
+		return value.substring(colon + 1).trim();
+	}
+
+	private static int getInterval(Message message)
+	{
+		String value = getValue(message, SESSION_EXPIRES, "x");
+		if (value == null)
+		{
+			return 0;
+		}
+		int semi = value.indexOf(';');
+		try
+		{
+			return Integer.parseInt((semi < 0 ? value : value.substring(0, semi)).trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	private static String getRefresher(Message message)
+	{
+		String value = getValue(message, SESSION_EXPIRES, "x");
+		if (value == null)
+		{
+			return null;
+		}
+		int index = value.toLowerCase().indexOf("refresher=");
+		if (index < 0)
+		{
+			return null;
+		}
+		String refresher = value.substring(index + "refresher=".length()).trim();
+		int semi = refresher.indexOf(';');
+		return (semi < 0 ? refresher : refresher.substring(0, semi)).trim().toLowerCase();
+	}
+
+	private static boolean isSupported(Message message)
+	{
+		ListIterator<?> it = message.getHeaders(SupportedHeader.NAME);
+		while (it != null && it.hasNext())
+		{
+			if ("timer".equalsIgnoreCase(((SupportedHeader) it.next()).getOptionTag()))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Session timer headers of a request we send (initial INVITE or refresh), we refresh
+	 */
+	public static void addToRequest(Request request, int interval) throws ParseException
+	{
+		request.addHeader(SipService.headerFactory.createSupportedHeader("timer"));
+		request.addHeader(SipService.headerFactory.createHeader(SESSION_EXPIRES, interval + ";refresher=uac"));
+		request.addHeader(SipService.headerFactory.createHeader(MIN_SE, Integer.toString(MIN_INTERVAL)));
+	}
+
+	public static void addToInvite(Request invite) throws ParseException
+	{
+		if (isEnabled())
+		{
+			addToRequest(invite, INTERVAL);
+		}
+	}
+
+	/*
+	 * Answering a request carrying (or not) a session timer: the 2xx gets the negotiated
+	 * interval and refresher, and the call's timer is started
+	 */
+	public static void answer(Request request, Response response, CallSession cs) throws ParseException
+	{
+		int interval = getInterval(request);
+		String refresher = getRefresher(request);
+		boolean supported = isSupported(request);
+
+		if (interval == 0)
+		{
+			if (!isEnabled())
+			{
+				return;
+			}
+			// the caller did not ask, we can still run one and refresh it ourselves
+			interval = INTERVAL;
+		}
+
+		if (refresher == null)
+		{
+			refresher = "uas";
+		}
+		else if (refresher.equals("uac") && !supported)
+		{
+			// a uac that does not support timers cannot refresh
+			refresher = "uas";
+		}
+
+		response.addHeader(SipService.headerFactory.createHeader(SESSION_EXPIRES, interval + ";refresher=" + refresher));
+		if (supported)
+		{
+			response.addHeader(SipService.headerFactory.createRequireHeader("timer"));
+		}
+
+		start(cs, interval, refresher.equals("uas"));
+	}
+
+	/*
+	 * 2xx to a request we sent: no Session-Expires means no timer (RFC 4028 7.2)
+	 */
+	public static void answered(Response response, CallSession cs)
+	{
+		int interval = getInterval(response);
+		if (interval == 0)
+		{
+			if (cs.sessionInterval > 0)
+			{
+				logger.info("[[" + cs.internalCallId + "]] Session timer dropped by the remote side");
+			}
+			cs.sessionInterval = 0;
+			cs.sessionExpires = 0;
+			return;
+		}
+		String refresher = getRefresher(response);
+		start(cs, interval, refresher == null || refresher.equals("uac"));
+	}
+
+	private static void start(CallSession cs, int interval, boolean refresher)
+	{
+		if (cs.sessionInterval != interval || cs.sessionRefresher != refresher)
+		{
+			logger.info("[[" + cs.internalCallId + "]] Session timer " + interval + "s, refreshed by " + (refresher ? "us" : "the remote side"));
+		}
+		cs.sessionInterval = interval;
+		cs.sessionRefresher = refresher;
+		refreshed(cs);
+	}
+
+	/*
+	 * The session was refreshed, by either side
+	 */
+	public static void refreshed(CallSession cs)
+	{
+		long now = System.currentTimeMillis();
+		if (cs.sessionInterval > 0)
+		{
+			cs.sessionExpires = now + cs.sessionInterval * 1000L;
+			cs.nextRefresh = now + cs.sessionInterval * 500L;
+		}
+		CallManager.touch(cs);
+	}
+
+	/*
+	 * Called by the sweeper, sends our refresh when due
+	 */
+	public static void check(CallSession cs, long now)
+	{
+		if (cs.sessionInterval > 0 && cs.sessionRefresher && !cs.sipDead && now >= cs.nextRefresh
+		    && cs.sipDialog != null && cs.sipDialog.getState() == DialogState.CONFIRMED)
+		{
+			// don't send again before this one is answered or times out
+			cs.nextRefresh = now + cs.sessionInterval * 500L;
+			SipService.sendSessionRefresh(cs, cs.sessionInterval);
+		}
+	}
+
+	/*
+	 * Response to one of our refreshes
+	 */
+	public static void refreshFailed(CallSession cs, Response response)
+	{
+		int status = response == null ? Response.REQUEST_TIMEOUT : response.getStatusCode();
+		if (status == SESSION_INTERVAL_TOO_SMALL)
+		{
+			// retry on the next sweep with what the remote side wants
+			String minSe = getValue(response, MIN_SE, null);
+			try
+			{
+				int min = minSe == null ? 0 : Integer.parseInt(minSe.split(";")[0].trim());
+				if (min > cs.sessionInterval)
+				{
+					cs.sessionInterval = min;
+					cs.nextRefresh = 0;
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				logger.warn("[[" + cs.internalCallId + "]] Bad Min-SE " + minSe);
+			}
+		}
+		else if (status == Response.CALL_OR_TRANSACTION_DOES_NOT_EXIST || status == Response.REQUEST_TIMEOUT)
+		{
+			logger.warn("[[" + cs.internalCallId + "]] Session refresh answered " + status + ", sip dialog is gone");
+			cs.sipDead = true;
+		}
+		else if (status == Response.METHOD_NOT_ALLOWED || status == Response.NOT_IMPLEMENTED)
+		{
+			// no UPDATE there, the call timeout covers the call
+			logger.info("[[" + cs.internalCallId + "]] Remote side does not accept UPDATE, session timer disabled");
+			cs.sessionInterval = 0;
+			cs.sessionExpires = 0;
+		}
+	}
+
+	/*
+	 * Our side of the call is dead if a refresh failed or the session expired. Without a
+	 * session timer the sip side can't tell, silent media alone doesn't end the call
+	 * (hold, a client that stops sending), call_timeout does
+	 */
+	public static boolean isExpired(CallSession cs, long now)
+	{
+		return cs.sipDead || (cs.sessionExpires != 0 && now > cs.sessionExpires);
+	}
+}
@@ -0,0 +1,295 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Single port media mode: the xmpp side of every call shares one udp port (or a few
+ * consecutive ones) instead of binding a pair per call.
+ *
+ * Packets are routed to the owning relay by the STUN username (our candidate username
+ * is the first or last part of it), then by the latched source address and last by the
+ * ssrc of the sender. All lookups are concurrent hash maps.
+ *
+ * The calls of a port run on the port's worker, with all their sockets, so a relay
+ * never sees packets from two threads. rtp.shared_port_count spreads the calls over
+ * that many ports and workers, as many as there are media workers by default
+ *
+ */
+public class SharedPort implements MediaHandler
+{
+	private static final int STUN_USERNAME = 0x0006;
+	// the candidate usernames we generate are 8 hex digits
+	private static final int UFRAG_LENGTH = 8;
+
+	private static int BASE_PORT = 0;
+	private static int PORT_COUNT = 1;
+
+	private static SharedPort [] ports = null;
+
+	private DatagramChannel channel;
+	private int port;
+	private MediaWorker worker;
+
+	private ConcurrentHashMap<String, RtpRelay> byUfrag = new ConcurrentHashMap<String, RtpRelay>();
+	private ConcurrentHashMap<SocketAddress, RtpRelay> bySource = new ConcurrentHashMap<SocketAddress, RtpRelay>();
+	private ConcurrentHashMap<Integer, RtpRelay> bySsrc = new ConcurrentHashMap<Integer, RtpRelay>();
+
+	private AtomicLong unrouted = new AtomicLong(0);
+
+	static Logger logger = Logger.getLogger(SharedPort.class);
+
+
+	private SharedPort(String localIp, int port) throws IOException
+	{
+		this.port = port;
+		channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(localIp, port));
+		channel.configureBlocking(false);
+	}
+
+	public static void configure(Properties properties)
+	{
+		BASE_PORT = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.shared_port", "0"));
+		// one port per media worker unless told otherwise, all the calls of a port run on its worker
+		PORT_COUNT = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.shared_port_count", Integer.toString(MediaEngine.getWorkerCount())));
+		if (PORT_COUNT < 1)
+		{
+			PORT_COUNT = 1;
+		}
+	}
+
+	public static boolean isEnabled()
+	{
+		return BASE_PORT > 0;
+	}
+
+	/*
+	 * Binds the shared ports, each one is serviced by its own media worker when there are enough
+	 */
+	public static synchronized void start(String localIp) throws IOException
+	{
+		if (!isEnabled() || ports != null)
+		{
+			return;
+		}
+
+		SharedPort [] bound = new SharedPort[PORT_COUNT];
+		for (int i = 0; i < bound.length; i++)
+		{
+			bound[i] = new SharedPort(localIp, BASE_PORT + i);
+			bound[i].worker = MediaEngine.getWorker(i);
+			bound[i].worker.register(bound[i].channel, bound[i]);
+			logger.info("Shared media port " + bound[i].port + " on " + bound[i].worker.getName());
+		}
+		ports = bound;
+	}
+
+	public static SharedPort forCall(String internalCallId)
+	{
+		return ports[(internalCallId.hashCode() & 0x7FFFFFFF) % ports.length];
+	}
+
+	DatagramChannel getChannel()
+	{
+		return channel;
+	}
+
+	/*
+	 * The worker servicing the port, the relays of its calls are pinned to it so each
+	 * relay is only ever run by one thread
+	 */
+	MediaWorker getWorker()
+	{
+		return worker;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	public String getInternalCallId()
+	{
+		return "shared:" + port;
+	}
+
+	void addUfrag(String ufrag, RtpRelay relay)
+	{
+		RtpRelay old = byUfrag.putIfAbsent(ufrag, relay);
+		if (old != null && old != relay)
+		{
+			logger.warn("[[" + relay.getInternalCallId() + "]] candidate username " + ufrag + " already used by [[" + old.getInternalCallId() + "]] on shared port " + port);
+		}
+	}
+
+	void addSource(SocketAddress source, RtpRelay relay)
+	{
+		bySource.put(source, relay);
+	}
+
+	void addSsrc(int ssrc, RtpRelay relay)
+	{
+		bySsrc.put(ssrc, relay);
+	}
+
+	/*
+	 * Only removes the entries still pointing at the relay, a newer call may own them by now
+	 */
+	void remove(String ufrag, SocketAddress source, Integer ssrc, RtpRelay relay)
+	{
+		if (ufrag != null)
+		{
+			byUfrag.remove(ufrag, relay);
+		}
+		if (source != null)
+		{
+			bySource.remove(source, relay);
+		}
+		if (ssrc != null)
+		{
+			bySsrc.remove(ssrc, relay);
+		}
+	}
+
+	/*
+	 * Username attribute of a (RFC 3489 style) STUN message, without going through the jstun parser
+	 */
+	private static String getStunUsername(ByteBuffer buffer)
+	{
+		int offset = 20;
+		while (offset + 4 <= buffer.limit())
+		{
+			int type = buffer.getShort(offset) & 0xFFFF;
+			int length = buffer.getShort(offset + 2) & 0xFFFF;
+			if (offset + 4 + length > buffer.limit())
+			{
+				return null;
+			}
+			if (type == STUN_USERNAME)
+			{
+				byte [] name = new byte[length];
+				for (int i = 0; i < length; i++)
+				{
+					name[i] = buffer.get(offset + 4 + i);
+				}
+				return new String(name).trim();
+			}
+			offset += 4 + ((length + 3) & ~3);
+		}
+		return null;
+	}
+
+	private RtpRelay route(SocketAddress src, ByteBuffer buffer)
+	{
+		RtpRelay relay;
+
+		if ((buffer.get(0) & 0x80) != 0)
+		{
+			relay = bySource.get(src);
+			if (relay == null && buffer.limit() >= 12)
+			{
+				relay = bySsrc.get(RtpUtil.isRtcp(buffer) ? RtpUtil.getRtcpSenderSSRC(buffer, 0) : RtpUtil.getSSRC(buffer));
+			}
+			return relay;
+		}
+
+		// stun, requests carry <our user><their user>, responses <their user><our user>
+		String user = getStunUsername(buffer);
+		if (user != null && user.length() >= UFRAG_LENGTH)
+		{
+			relay = byUfrag.get(user.substring(0, UFRAG_LENGTH));
+			if (relay == null)
+			{
+				relay = byUfrag.get(user.substring(user.length() - UFRAG_LENGTH));
+			}
+			if (relay != null)
+			{
+				return relay;
+			}
+		}
+		return bySource.get(src);
+	}
+
+	public boolean processPacket(DatagramChannel socket, ByteBuffer buffer) throws IOException
+	{
+		buffer.clear();
+		SocketAddress src = socket.receive(buffer);
+		if (src == null)
+		{
+			return false;
+		}
+		MediaWorker.received();
+		buffer.flip();
+		if (!buffer.hasRemaining())
+		{
+			return true;
+		}
+
+		RtpRelay relay = route(src, buffer);
+		if (relay == null)
+		{
+			unrouted.incrementAndGet();
+			return true;
+		}
+		relay.handlePacket(socket, src, buffer);
+		return true;
+	}
+
+	public void checkLatch(DatagramChannel socket, long now)
+	{
+		// a shared socket is never connected
+	}
+
+	public static long getUnroutedCount()
+	{
+		long count = 0;
+		if (ports != null)
+		{
+			for (SharedPort p : ports)
+			{
+				count += p.unrouted.get();
+			}
+		}
+		return count;
+	}
+
+	public static int getRouteCount()
+	{
+		int count = 0;
+		if (ports != null)
+		{
+			for (SharedPort p : ports)
+			{
+				count += p.byUfrag.size();
+			}
+		}
+		return count;
+	}
+}
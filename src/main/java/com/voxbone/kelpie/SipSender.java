@@ -0,0 +1,34 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Where the video handlers of a relay hand what they build for the sip side
+ *
+ */
+interface SipSender
+{
+	/*
+	 * A packet ready for the sip side but for srtp, called with the relay's sipLock held.
+	 * The buffer is the caller's again once this returns
+	 */
+	void sendToSip(ByteBuffer buffer);
+}
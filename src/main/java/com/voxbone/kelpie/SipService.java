@@ -153,6 +153,7 @@ public class SipService
 			resp.addHeader(ch);
 			
 			resp.setContent(sdp, cth);
+			SessionTimer.answer(req, resp, cs);
 			cs.inviteTransaction.sendResponse(resp);
 		} 
 		catch (ParseException e)
@@ -201,6 +202,32 @@ public class SipService
 		return true;
 	}
 
+	/*
+	 * RFC 4028 refresh, an UPDATE without body
+	 */
+	public static boolean sendSessionRefresh(CallSession cs, int interval)
+	{
+		try
+		{
+			Request req = cs.sipDialog.createRequest(Request.UPDATE);
+			SessionTimer.addToRequest(req, interval);
+			ClientTransaction t = sipProvider.getNewClientTransaction(req);
+			t.setApplicationData(cs);
+			cs.sipDialog.sendRequest(t);
+		}
+		catch (SipException e)
+		{
+			logger.error("[[" + cs.internalCallId + "]] Error sending session refresh", e);
+			return false;
+		}
+		catch (ParseException e)
+		{
+			logger.error("[[" + cs.internalCallId + "]] Error sending session refresh", e);
+			return false;
+		}
+		return true;
+	}
+
 	public static boolean sendReject(CallSession cs)
 	{
 		try
@@ -323,6 +350,7 @@ public class SipService
 			
 			ContactHeader ch = headerFactory.createContactHeader(localAddress);
 			request.addHeader(ch);
+			SessionTimer.addToInvite(request);
 
 			ClientTransaction t = sipProvider.getNewClientTransaction(request);
 			
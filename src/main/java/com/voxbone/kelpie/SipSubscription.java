@@ -22,8 +22,6 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.ListIterator;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.sip.ClientTransaction;
 import javax.sip.InvalidArgumentException;
@@ -71,8 +69,11 @@ import org.xml.sax.helpers.AttributesImpl;
  *
  */
 
-public class SipSubscription extends TimerTask
+public class SipSubscription
 {
+	// lifetime we ask for on our SUBSCRIBEs, in seconds
+	static final int EXPIRES = 3600;
+	
 	boolean active = false; // false=pending true=active
 	String localTag;
 	String remoteTag;
@@ -89,7 +90,9 @@ public class SipSubscription extends TimerTask
 	
 	long expires;
 
-	private static Timer timer = new Timer("Subscription Thread");
+	// pending refresh on the SubscriptionRefresher
+	private volatile TimingWheel.Timeout refresh = null;
+	private volatile boolean cancelled = false;
 
 
 	/*
@@ -204,17 +207,34 @@ public class SipSubscription extends TimerTask
 		
 		rl = new LinkedList<Address>();
 		
-		expires = System.currentTimeMillis() + (3600 * 1000);
+		expires = System.currentTimeMillis() + (EXPIRES * 1000);
 	}
 	
-	public void schedule()
+	void setRefresh(TimingWheel.Timeout refresh)
+	{
+		this.refresh = refresh;
+		if (cancelled)
+		{
+			refresh.cancel();
+		}
+	}
+	
+	/*
+	 * Stops the refreshes of an outbound subscription
+	 */
+	public void cancel()
 	{
-		timer.schedule(this, 1800 * 1000, 1800 * 1000);
+		cancelled = true;
+		TimingWheel.Timeout t = refresh;
+		if (t != null)
+		{
+			t.cancel();
+		}
 	}
 	
-	public void schedule(long nextCall)
+	public boolean isCancelled()
 	{
-		timer.schedule(this, nextCall, 1800 * 1000);
+		return cancelled;
 	}
 	
 	/*
@@ -415,9 +435,10 @@ public class SipSubscription extends TimerTask
 			}
 			else
 			{
-				ExpiresHeader eh = SipService.headerFactory.createExpiresHeader(3600);
+				ExpiresHeader eh = SipService.headerFactory.createExpiresHeader(EXPIRES);
 				request.addHeader(eh);
-				this.expires = System.currentTimeMillis() + (3600 * 1000);
+				this.expires = System.currentTimeMillis() + (EXPIRES * 1000);
+				SipSubscriptionManager.refreshSubscription(this);
 				try
 				{
 					SipSubscriptionManager.saveSubscription(this);
@@ -577,12 +598,4 @@ public class SipSubscription extends TimerTask
 		hd.characters(expireStr.toCharArray(), 0, expireStr.length());
 		hd.endElement("", "", "expires");
 	}
-
-	// This is a task to refresh subscriptions
-	public void run()
-	{
-		// Time's up, refresh the subscription
-		sendSubscribe(false);
-	}
-	
 }
@@ -47,6 +47,13 @@ public class SipSubscriptionManager
 	// Inbound subscriptions
 	static Hashtable<String, List<SipSubscription>> watchers = new Hashtable<String, List<SipSubscription>>();
 	
+	// both kinds by expiry, for the sweeper
+	private static ExpiryIndex<SipSubscription> subscriptionExpiry = new ExpiryIndex<SipSubscription>();
+	private static ExpiryIndex<SipSubscription> watcherExpiry = new ExpiryIndex<SipSubscription>();
+	
+	// how long a refresh that went out has to get its answer (64*T1)
+	private static final long REFRESH_TIMEOUT = 32000;
+	
 	static Logger logger = Logger.getLogger(SipSubscriptionManager.class);
 	
 	private static String spoolPath = null;
@@ -66,7 +73,8 @@ public class SipSubscriptionManager
 			}
 			
 			subscriptions.get(user).add(subscription);
-			subscription.schedule();
+			subscriptionExpiry.put(subscription, subscription.expires);
+			SubscriptionRefresher.schedule(subscription);
 			
 			try
 			{
@@ -93,6 +101,7 @@ public class SipSubscriptionManager
 			}
 			
 			watchers.get(user).add(subscription);
+			watcherExpiry.put(subscription, subscription.expires);
 			
 			try
 			{
@@ -180,12 +189,68 @@ public class SipSubscriptionManager
 		synchronized (watchers) 
 		{
 			List<SipSubscription> subs = watchers.get(user);
-			subs.remove(subscription);
+			if (subs != null)
+			{
+				subs.remove(subscription);
+				if (subs.isEmpty())
+				{
+					watchers.remove(user);
+				}
+			}
+			watcherExpiry.remove(subscription);
 			
 			deleteWatcher(subscription);
 		}
 	}
 	
+	/*
+	 * A watcher sent a refresh SUBSCRIBE
+	 */
+	public static void refreshWatcher(SipSubscription subscription, int expires)
+	{
+		subscription.expires = System.currentTimeMillis() + (expires * 1000L);
+		if (watcherExpiry.update(subscription, subscription.expires))
+		{
+			try
+			{
+				saveWatcher(subscription);
+			} 
+			catch (IOException e)
+			{
+				logger.error("Error persisting watcher", e);
+			} 
+			catch (SAXException e)
+			{
+				logger.error("Error persisting watcher", e);
+			}
+		}
+	}
+	
+	/*
+	 * Our SUBSCRIBE refreshed an outbound subscription
+	 */
+	public static void refreshSubscription(SipSubscription subscription)
+	{
+		subscriptionExpiry.update(subscription, subscription.expires);
+	}
+	
+	/*
+	 * A refresh is waiting for its turn to be sent, the subscription is not swept in the
+	 * meantime however long the wait
+	 */
+	static void refreshQueued(SipSubscription subscription)
+	{
+		subscriptionExpiry.update(subscription, Long.MAX_VALUE);
+	}
+	
+	/*
+	 * The refresh went out, the subscription is kept until it is answered
+	 */
+	static void refreshSent(SipSubscription subscription)
+	{
+		subscriptionExpiry.update(subscription, Math.max(subscription.expires, System.currentTimeMillis() + REFRESH_TIMEOUT));
+	}
+	
 	public static SipSubscription getWatcher(String user, String dest)
 	{
 		synchronized (watchers) 
@@ -222,9 +287,7 @@ public class SipSubscriptionManager
 					
 					if (subDest.equals(dest))
 					{
-						sub.cancel();
-						subs.remove(sub);
-						deleteSubscription(sub);
+						removeSubscription(user, subs, sub);
 						return sub;
 					}
 				}
@@ -245,9 +308,7 @@ public class SipSubscriptionManager
 				{				
 					if (sub.callId.equals(callID))
 					{
-						sub.cancel();
-						subs.remove(sub);
-						deleteSubscription(sub);
+						removeSubscription(user, subs, sub);
 						return sub;
 					}
 				}
@@ -256,6 +317,58 @@ public class SipSubscriptionManager
 		return null;
 	}
 	
+	private static void removeSubscription(String user, List<SipSubscription> subs, SipSubscription sub)
+	{
+		sub.cancel();
+		subs.remove(sub);
+		if (subs.isEmpty())
+		{
+			subscriptions.remove(user);
+		}
+		subscriptionExpiry.remove(sub);
+		deleteSubscription(sub);
+	}
+	
+	/*
+	 * Reclaims what expired without an unsubscribe: watchers that stopped refreshing get a
+	 * final NOTIFY, outbound subscriptions we failed to refresh are dropped
+	 */
+	public static void sweep(long now)
+	{
+		for (SipSubscription sub : watcherExpiry.pollExpired(now))
+		{
+			String user = ((SipURI) sub.localParty.getURI()).getUser();
+			logger.info("Watcher " + sub.remoteParty + " of " + user + " expired, removing");
+			sub.sendNotify(true, null);
+			removeWatcher(user, sub);
+		}
+		
+		for (SipSubscription sub : subscriptionExpiry.pollExpired(now))
+		{
+			String user = ((SipURI) sub.localParty.getURI()).getUser();
+			logger.info("Subscription of " + user + " to " + sub.remoteParty + " expired, removing");
+			synchronized (subscriptions)
+			{
+				List<SipSubscription> subs = subscriptions.get(user);
+				if (subs != null && subs.contains(sub))
+				{
+					removeSubscription(user, subs, sub);
+				}
+				else
+				{
+					sub.cancel();
+					deleteSubscription(sub);
+				}
+			}
+		}
+	}
+	
+	public static String report()
+	{
+		return "subscriptions=" + subscriptionExpiry.getLiveCount() + " (" + subscriptionExpiry.getExpiredCount() + " expired)"
+		     + " watchers=" + watcherExpiry.getLiveCount() + " (" + watcherExpiry.getExpiredCount() + " expired)";
+	}
+	
 	public static void saveSubscription(SipSubscription sub) throws IOException, SAXException
 	{
 		String filename = spoolPath + "/subscriptions/" + ((SipURI) sub.localParty.getURI()).getUser() + "_" + sub.callId;
@@ -351,12 +464,9 @@ public class SipSubscriptionManager
 						}
 	
 						subscriptions.get(user).add(sub);
-						long nextCall = sub.expires - now - (1800 * 1000);
-						if (nextCall < 0)
-						{
-							nextCall = 0;
-						}
-						sub.schedule(nextCall);
+						// one that expired while we were down gets its refresh right away
+						subscriptionExpiry.put(sub, Math.max(sub.expires, System.currentTimeMillis() + REFRESH_TIMEOUT));
+						SubscriptionRefresher.scheduleRestored(sub);
 					}
 				}
 				else
@@ -395,6 +505,7 @@ public class SipSubscriptionManager
 					}
 	
 					watchers.get(user).add(sub);
+					watcherExpiry.put(sub, sub.expires);
 				}
 			}
 			else
@@ -0,0 +1,271 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Warm pool of bound socket sets so a relay can be created without binding anything
+ * on the call setup path.
+ *
+ * A background thread keeps enough sets ready to cover the call arrival rate seen
+ * over the last seconds (smoothed), a call arriving on an empty pool binds inline
+ *
+ */
+public class SocketPool
+{
+	private static class Filler extends Thread
+	{
+		public Filler()
+		{
+			super("Socket Pool Filler");
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			long lastRate = System.currentTimeMillis();
+
+			while (true)
+			{
+				try
+				{
+					long now = System.currentTimeMillis();
+					if (now - lastRate >= 1000)
+					{
+						updateTarget(takes.getAndSet(0) * 1000.0 / (now - lastRate));
+						lastRate = now;
+					}
+
+					fill();
+					trim();
+
+					synchronized (SocketPool.class)
+					{
+						SocketPool.class.wait(FILL_INTERVAL);
+					}
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				catch (Exception e)
+				{
+					logger.error("Error in socket pool filler", e);
+				}
+			}
+		}
+	}
+
+	private static int MIN_READY = 4;
+	private static int MAX_READY = 256;
+	private static long LEAD_TIME = 2000;
+	private static long FILL_INTERVAL = 100;
+
+	// weight of the last second in the arrival rate average
+	private static final double RATE_WEIGHT = 0.2;
+
+	private static ConcurrentLinkedQueue<RelaySockets> ready = new ConcurrentLinkedQueue<RelaySockets>();
+	private static AtomicInteger readyCount = new AtomicInteger(0);
+	private static AtomicInteger takes = new AtomicInteger(0);
+	private static volatile int target = 4;
+	private static double arrivalRate = 0;
+
+	private static String localIp = null;
+	private static Filler filler = null;
+
+	private static AtomicLong hits = new AtomicLong(0);
+	private static AtomicLong misses = new AtomicLong(0);
+	private static LatencyHistogram setupLatency = new LatencyHistogram();
+
+	static Logger logger = Logger.getLogger(SocketPool.class);
+
+
+	public static void configure(Properties properties)
+	{
+		MIN_READY = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.pool_min", "4"));
+		MAX_READY = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.rtp.pool_max", "256"));
+		LEAD_TIME = Long.parseLong(properties.getProperty("com.voxbone.kelpie.rtp.pool_lead_time", "2000"));
+		target = MIN_READY;
+	}
+
+	/*
+	 * Starts keeping sockets bound on the given address, before this is called every
+	 * take() binds inline
+	 */
+	public static synchronized void start(String ip)
+	{
+		if (filler == null)
+		{
+			localIp = ip;
+			filler = new Filler();
+			filler.start();
+			logger.info("Socket pool started on " + ip + ", keeping " + MIN_READY + " to " + MAX_READY + " sets ready");
+		}
+	}
+
+	private static void updateTarget(double rate)
+	{
+		arrivalRate = arrivalRate * (1 - RATE_WEIGHT) + rate * RATE_WEIGHT;
+		int t = (int) Math.ceil(arrivalRate * LEAD_TIME / 1000.0);
+		target = Math.max(MIN_READY, Math.min(MAX_READY, t));
+	}
+
+	private static void fill()
+	{
+		while (readyCount.get() < target)
+		{
+			try
+			{
+				ready.add(RelaySockets.bind(localIp));
+				readyCount.incrementAndGet();
+			}
+			catch (IOException e)
+			{
+				// port range is full, calls will fail inline and report it
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Gives ports back when the load went down, we keep some slack so a steady
+	 * rate does not make us bind and close all the time
+	 */
+	private static void trim()
+	{
+		while (readyCount.get() > target * 2)
+		{
+			RelaySockets sockets = ready.poll();
+			if (sockets == null)
+			{
+				return;
+			}
+			readyCount.decrementAndGet();
+			sockets.close();
+		}
+	}
+
+	/*
+	 * Drops whatever was received while the set sat in the pool
+	 */
+	private static void drain(DatagramChannel channel, ByteBuffer buffer) throws IOException
+	{
+		SocketAddress src;
+		do
+		{
+			buffer.clear();
+			src = channel.receive(buffer);
+		}
+		while (src != null);
+	}
+
+	public static RelaySockets take(String ip) throws IOException
+	{
+		long start = System.nanoTime();
+		takes.incrementAndGet();
+
+		RelaySockets sockets = null;
+		if (ip.equals(localIp))
+		{
+			sockets = ready.poll();
+		}
+
+		if (sockets != null)
+		{
+			readyCount.decrementAndGet();
+			hits.incrementAndGet();
+
+			ByteBuffer buffer = BufferPool.acquire();
+			try
+			{
+				if (sockets.jabberSocket != null)
+				{
+					drain(sockets.jabberSocket, buffer);
+					drain(sockets.jabberSocketRtcp, buffer);
+				}
+				drain(sockets.sipSocket, buffer);
+				drain(sockets.sipSocketRtcp, buffer);
+			}
+			finally
+			{
+				BufferPool.release(buffer);
+			}
+		}
+		else
+		{
+			misses.incrementAndGet();
+			sockets = RelaySockets.bind(ip);
+		}
+
+		if (readyCount.get() < target / 2)
+		{
+			synchronized (SocketPool.class)
+			{
+				SocketPool.class.notifyAll();
+			}
+		}
+
+		setupLatency.record(System.nanoTime() - start);
+		return sockets;
+	}
+
+	/*
+	 * Whether a call could get its sockets now, from the pool or the allocator. The pairs
+	 * of the ready sets are counted as in use by the allocator but are there for the taking
+	 */
+	public static boolean isAvailable()
+	{
+		return readyCount.get() > 0 || PortAllocator.getFreeCount() >= RelaySockets.getPairCount();
+	}
+
+	public static int getReadyCount()
+	{
+		return readyCount.get();
+	}
+
+	public static int getTarget()
+	{
+		return target;
+	}
+
+	public static long getHits()
+	{
+		return hits.get();
+	}
+
+	public static long getMisses()
+	{
+		return misses.get();
+	}
+
+	public static LatencyHistogram getSetupLatency()
+	{
+		return setupLatency;
+	}
+}
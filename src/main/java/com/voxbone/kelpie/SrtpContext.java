@@ -0,0 +1,580 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Properties;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+
+/**
+ * SRTP / SRTCP (RFC 3711) of one direction of a sip stream, keyed by SDES (RFC 4568):
+ * AES_CM_128_HMAC_SHA1_80 and AES_CM_128_HMAC_SHA1_32.
+ *
+ * The counter mode keystream is made by one AES/ECB pass over the counter blocks of
+ * the packet, the cipher and the mac are created once with the session keys and the
+ * scratch arrays are sized for the largest packet, so protecting or unprotecting a
+ * packet allocates nothing. Replays are caught with a 64 packet bitmap window
+ *
+ */
+public class SrtpContext
+{
+	public static final String AES_CM_128_HMAC_SHA1_80 = "AES_CM_128_HMAC_SHA1_80";
+	public static final String AES_CM_128_HMAC_SHA1_32 = "AES_CM_128_HMAC_SHA1_32";
+
+	private static final int KEY_LENGTH = 16;
+	private static final int SALT_LENGTH = 14;
+	private static final int AUTH_KEY_LENGTH = 20;
+	private static final int SRTCP_TAG_LENGTH = 10;
+	// room a protected packet needs after the payload: srtcp index and tag
+	public static final int MAX_TRAILER = 4 + SRTCP_TAG_LENGTH;
+
+	private static final int REPLAY_WINDOW = 64;
+
+	private static boolean OFFER = false;
+
+	private static SecureRandom random = new SecureRandom();
+
+	/**
+	 * An a=crypto line
+	 */
+	public static class Crypto
+	{
+		int tag;
+		String suite;
+		// master key followed by the master salt
+		byte [] keySalt;
+
+		public Crypto(int tag, String suite, byte [] keySalt)
+		{
+			this.tag = tag;
+			this.suite = suite;
+			this.keySalt = keySalt;
+		}
+
+		/*
+		 * The crypto attribute value, null if the suite or key is not one we can use
+		 */
+		public static Crypto parse(String value)
+		{
+			String [] fields = value.trim().split(" +");
+			if (fields.length < 3 || !isSupported(fields[1]) || !fields[2].startsWith("inline:"))
+			{
+				return null;
+			}
+			try
+			{
+				String key = fields[2].substring("inline:".length());
+				// lifetime and mki may follow the key
+				int bar = key.indexOf('|');
+				if (bar >= 0)
+				{
+					key = key.substring(0, bar);
+				}
+				byte [] keySalt = Base64.decodeBase64(key.getBytes("US-ASCII"));
+				if (keySalt.length != KEY_LENGTH + SALT_LENGTH)
+				{
+					return null;
+				}
+				return new Crypto(Integer.parseInt(fields[0]), fields[1], keySalt);
+			}
+			catch (Exception e)
+			{
+				return null;
+			}
+		}
+
+		/*
+		 * A new random master key and salt
+		 */
+		public static Crypto generate(int tag, String suite)
+		{
+			byte [] keySalt = new byte[KEY_LENGTH + SALT_LENGTH];
+			random.nextBytes(keySalt);
+			return new Crypto(tag, suite, keySalt);
+		}
+
+		public String toString()
+		{
+			try
+			{
+				return tag + " " + suite + " inline:" + new String(Base64.encodeBase64(keySalt), "US-ASCII");
+			}
+			catch (java.io.UnsupportedEncodingException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private Cipher rtpCipher;
+	private Mac rtpMac;
+	private byte [] rtpSalt;
+	private Cipher rtcpCipher;
+	private Mac rtcpMac;
+	private byte [] rtcpSalt;
+	private int tagLength;
+
+	// scratch, sized for the largest packet
+	private byte [] work;
+	private byte [] counters;
+	private byte [] keystream;
+	private byte [] tag = new byte[AUTH_KEY_LENGTH];
+
+	// rtp index of the stream (RFC 3711 3.3.1), one ssrc per context
+	private boolean rtpStarted = false;
+	private int rtpSsrc;
+	private long roc = 0;
+	private int lastSeq;
+	private long rtpMaxIndex;
+	private long rtpWindow;
+
+	private long rtcpIndex = 0;
+	private boolean rtcpStarted = false;
+	private long rtcpMaxIndex;
+	private long rtcpWindow;
+
+	private long authFailures = 0;
+	private long replays = 0;
+
+
+	public static void configure(Properties properties)
+	{
+		OFFER = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.sip.srtp", "false"));
+	}
+
+	/*
+	 * Whether our offers to the sip side are RTP/SAVP, sip offers with SDES are taken either way
+	 */
+	public static boolean isOffered()
+	{
+		return OFFER;
+	}
+
+	public static boolean isSupported(String suite)
+	{
+		return AES_CM_128_HMAC_SHA1_80.equals(suite) || AES_CM_128_HMAC_SHA1_32.equals(suite);
+	}
+
+	public SrtpContext(Crypto crypto) throws GeneralSecurityException
+	{
+		byte [] masterKey = new byte[KEY_LENGTH];
+		byte [] masterSalt = new byte[SALT_LENGTH];
+		System.arraycopy(crypto.keySalt, 0, masterKey, 0, KEY_LENGTH);
+		System.arraycopy(crypto.keySalt, KEY_LENGTH, masterSalt, 0, SALT_LENGTH);
+
+		tagLength = AES_CM_128_HMAC_SHA1_32.equals(crypto.suite) ? 4 : 10;
+
+		int size = BufferPool.getBufferSize() + MAX_TRAILER;
+		int blocks = (size + 15) / 16;
+		work = new byte[size];
+		counters = new byte[blocks * 16];
+		keystream = new byte[blocks * 16];
+
+		Cipher master = Cipher.getInstance("AES/ECB/NoPadding");
+		master.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(masterKey, "AES"));
+
+		rtpCipher = newCipher(derive(master, masterSalt, 0, KEY_LENGTH));
+		rtpMac = newMac(derive(master, masterSalt, 1, AUTH_KEY_LENGTH));
+		rtpSalt = derive(master, masterSalt, 2, SALT_LENGTH);
+		rtcpCipher = newCipher(derive(master, masterSalt, 3, KEY_LENGTH));
+		rtcpMac = newMac(derive(master, masterSalt, 4, AUTH_KEY_LENGTH));
+		rtcpSalt = derive(master, masterSalt, 5, SALT_LENGTH);
+	}
+
+	static Cipher newCipher(byte [] key) throws GeneralSecurityException
+	{
+		Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+		return cipher;
+	}
+
+	private static Mac newMac(byte [] key) throws GeneralSecurityException
+	{
+		Mac mac = Mac.getInstance("HmacSHA1");
+		mac.init(new SecretKeySpec(key, "HmacSHA1"));
+		return mac;
+	}
+
+	/*
+	 * Session key derivation (RFC 3711 4.3.1), key derivation rate 0
+	 */
+	static byte [] derive(Cipher master, byte [] masterSalt, int label, int length) throws GeneralSecurityException
+	{
+		byte [] iv = new byte[16];
+		System.arraycopy(masterSalt, 0, iv, 0, SALT_LENGTH);
+		iv[7] ^= (byte) label;
+
+		int blocks = (length + 15) / 16;
+		byte [] in = new byte[blocks * 16];
+		for (int i = 0; i < blocks; i++)
+		{
+			System.arraycopy(iv, 0, in, i * 16, 14);
+			in[i * 16 + 14] = (byte) (i >> 8);
+			in[i * 16 + 15] = (byte) i;
+		}
+		byte [] out = master.doFinal(in);
+		byte [] key = new byte[length];
+		System.arraycopy(out, 0, key, 0, length);
+		return key;
+	}
+
+	/*
+	 * Xors length bytes of work from offset with the AES-CM keystream of the packet index
+	 */
+	private void crypt(Cipher cipher, byte [] salt, int ssrc, long index, int offset, int length) throws GeneralSecurityException
+	{
+		if (length <= 0)
+		{
+			return;
+		}
+		int blocks = (length + 15) / 16;
+		fillCounters(salt, ssrc, index, counters, blocks);
+		cipher.update(counters, 0, blocks * 16, keystream, 0);
+		for (int i = 0; i < length; i++)
+		{
+			work[offset + i] ^= keystream[i];
+		}
+	}
+
+	/*
+	 * The AES-CM counter blocks (RFC 3711 4.1.1): the salt xored with the ssrc and the
+	 * packet index, then the block number
+	 */
+	static void fillCounters(byte [] salt, int ssrc, long index, byte [] counters, int blocks)
+	{
+		for (int b = 0; b < blocks; b++)
+		{
+			int base = b * 16;
+			System.arraycopy(salt, 0, counters, base, SALT_LENGTH);
+			counters[base + 4] ^= (byte) (ssrc >>> 24);
+			counters[base + 5] ^= (byte) (ssrc >>> 16);
+			counters[base + 6] ^= (byte) (ssrc >>> 8);
+			counters[base + 7] ^= (byte) ssrc;
+			for (int i = 0; i < 6; i++)
+			{
+				counters[base + 8 + i] ^= (byte) (index >>> (40 - 8 * i));
+			}
+			counters[base + 14] = (byte) (b >>> 8);
+			counters[base + 15] = (byte) b;
+		}
+	}
+
+	/*
+	 * Computes the hmac of work[0, length) followed by the optional roc into tag
+	 */
+	private void authenticate(Mac mac, int length, boolean withRoc, long rocValue) throws GeneralSecurityException
+	{
+		mac.update(work, 0, length);
+		if (withRoc)
+		{
+			mac.update((byte) (rocValue >>> 24));
+			mac.update((byte) (rocValue >>> 16));
+			mac.update((byte) (rocValue >>> 8));
+			mac.update((byte) rocValue);
+		}
+		mac.doFinal(tag, 0);
+	}
+
+	private boolean tagMatches(int offset, int length)
+	{
+		int diff = 0;
+		for (int i = 0; i < length; i++)
+		{
+			diff |= work[offset + i] ^ tag[i];
+		}
+		return diff == 0;
+	}
+
+	private int load(ByteBuffer packet)
+	{
+		int length = packet.limit();
+		if (length > work.length)
+		{
+			return -1;
+		}
+		for (int i = 0; i < length; i++)
+		{
+			work[i] = packet.get(i);
+		}
+		return length;
+	}
+
+	private static void store(ByteBuffer packet, byte [] data, int length)
+	{
+		packet.limit(length);
+		for (int i = 0; i < length; i++)
+		{
+			packet.put(i, data[i]);
+		}
+	}
+
+	/*
+	 * True when the index is too old for the 64 packet window ending at max, or already seen
+	 */
+	private static boolean isReplay(long index, long max, long window)
+	{
+		long delta = index - max;
+		if (delta > 0)
+		{
+			return false;
+		}
+		if (-delta >= REPLAY_WINDOW)
+		{
+			return true;
+		}
+		return (window & (1L << -delta)) != 0;
+	}
+
+	/*
+	 * Encrypts and signs an rtp packet in place, false if it does not fit the buffer
+	 */
+	public synchronized boolean protectRtp(ByteBuffer packet)
+	{
+		int length = load(packet);
+		if (length < RtpUtil.RTP_HEADER_LENGTH || length + tagLength > packet.capacity() || length + tagLength > work.length)
+		{
+			return false;
+		}
+		int seq = RtpUtil.getSequenceNumber(packet);
+		int ssrc = RtpUtil.getSSRC(packet);
+		if (!rtpStarted || ssrc != rtpSsrc)
+		{
+			rtpStarted = true;
+			rtpSsrc = ssrc;
+			roc = 0;
+		}
+		else if (seq < lastSeq && lastSeq - seq > 0x8000)
+		{
+			roc = (roc + 1) & 0xFFFFFFFFL;
+		}
+		lastSeq = seq;
+
+		try
+		{
+			int header = RtpUtil.getHeaderLength(packet);
+			crypt(rtpCipher, rtpSalt, ssrc, (roc << 16) | seq, header, length - header);
+			authenticate(rtpMac, length, true, roc);
+			System.arraycopy(tag, 0, work, length, tagLength);
+		}
+		catch (GeneralSecurityException e)
+		{
+			return false;
+		}
+		store(packet, work, length + tagLength);
+		return true;
+	}
+
+	/*
+	 * Checks and decrypts an srtp packet in place, false if it must be dropped
+	 */
+	public synchronized boolean unprotectRtp(ByteBuffer packet)
+	{
+		int length = load(packet);
+		if (length < RtpUtil.RTP_HEADER_LENGTH + tagLength)
+		{
+			authFailures++;
+			return false;
+		}
+		length -= tagLength;
+
+		int seq = RtpUtil.getSequenceNumber(packet);
+		int ssrc = RtpUtil.getSSRC(packet);
+		if (rtpStarted && ssrc != rtpSsrc)
+		{
+			// a new source, only taken once it authenticates
+			rtpStarted = false;
+		}
+
+		// guess the roc of the packet (RFC 3711 3.3.1)
+		long v;
+		if (!rtpStarted)
+		{
+			v = 0;
+		}
+		else if (lastSeq < 0x8000)
+		{
+			v = seq - lastSeq > 0x8000 ? roc - 1 : roc;
+		}
+		else
+		{
+			v = lastSeq - 0x8000 > seq ? roc + 1 : roc;
+		}
+		v &= 0xFFFFFFFFL;
+		long index = (v << 16) | seq;
+
+		if (rtpStarted && isReplay(index, rtpMaxIndex, rtpWindow))
+		{
+			replays++;
+			return false;
+		}
+
+		try
+		{
+			authenticate(rtpMac, length, true, v);
+			if (!tagMatches(length, tagLength))
+			{
+				authFailures++;
+				return false;
+			}
+			int header = RtpUtil.getHeaderLength(packet);
+			crypt(rtpCipher, rtpSalt, ssrc, index, header, length - header);
+		}
+		catch (GeneralSecurityException e)
+		{
+			authFailures++;
+			return false;
+		}
+
+		if (!rtpStarted)
+		{
+			rtpStarted = true;
+			rtpSsrc = ssrc;
+			roc = v;
+			lastSeq = seq;
+			rtpMaxIndex = index;
+			rtpWindow = 1;
+		}
+		else
+		{
+			if (index > rtpMaxIndex)
+			{
+				long shift = index - rtpMaxIndex;
+				rtpWindow = shift >= REPLAY_WINDOW ? 1 : (rtpWindow << shift) | 1;
+				rtpMaxIndex = index;
+				roc = v;
+				lastSeq = seq;
+			}
+			else
+			{
+				rtpWindow |= 1L << (rtpMaxIndex - index);
+			}
+		}
+
+		store(packet, work, length);
+		return true;
+	}
+
+	/*
+	 * Encrypts and signs a (compound) rtcp packet in place
+	 */
+	public synchronized boolean protectRtcp(ByteBuffer packet)
+	{
+		int length = load(packet);
+		if (length < 8 || length + MAX_TRAILER > packet.capacity() || length + MAX_TRAILER > work.length)
+		{
+			return false;
+		}
+		long index = rtcpIndex;
+		rtcpIndex = (rtcpIndex + 1) & 0x7FFFFFFF;
+		int ssrc = RtpUtil.getRtcpSenderSSRC(packet, 0);
+
+		try
+		{
+			crypt(rtcpCipher, rtcpSalt, ssrc, index, 8, length - 8);
+			work[length] = (byte) (0x80 | (index >>> 24));
+			work[length + 1] = (byte) (index >>> 16);
+			work[length + 2] = (byte) (index >>> 8);
+			work[length + 3] = (byte) index;
+			authenticate(rtcpMac, length + 4, false, 0);
+			System.arraycopy(tag, 0, work, length + 4, SRTCP_TAG_LENGTH);
+		}
+		catch (GeneralSecurityException e)
+		{
+			return false;
+		}
+		store(packet, work, length + MAX_TRAILER);
+		return true;
+	}
+
+	/*
+	 * Checks and decrypts an srtcp packet in place
+	 */
+	public synchronized boolean unprotectRtcp(ByteBuffer packet)
+	{
+		int length = load(packet);
+		if (length < 8 + MAX_TRAILER)
+		{
+			authFailures++;
+			return false;
+		}
+		int signed = length - SRTCP_TAG_LENGTH;
+		int end = signed - 4;
+
+		long word = ((work[end] & 0xFFL) << 24) | ((work[end + 1] & 0xFF) << 16) | ((work[end + 2] & 0xFF) << 8) | (work[end + 3] & 0xFF);
+		boolean encrypted = (word & 0x80000000L) != 0;
+		long index = word & 0x7FFFFFFF;
+
+		if (rtcpStarted && isReplay(index, rtcpMaxIndex, rtcpWindow))
+		{
+			replays++;
+			return false;
+		}
+
+		try
+		{
+			authenticate(rtcpMac, signed, false, 0);
+			if (!tagMatches(signed, SRTCP_TAG_LENGTH))
+			{
+				authFailures++;
+				return false;
+			}
+			if (encrypted)
+			{
+				crypt(rtcpCipher, rtcpSalt, RtpUtil.getRtcpSenderSSRC(packet, 0), index, 8, end - 8);
+			}
+		}
+		catch (GeneralSecurityException e)
+		{
+			authFailures++;
+			return false;
+		}
+
+		if (!rtcpStarted || index > rtcpMaxIndex)
+		{
+			long shift = rtcpStarted ? index - rtcpMaxIndex : REPLAY_WINDOW;
+			rtcpWindow = shift >= REPLAY_WINDOW ? 1 : (rtcpWindow << shift) | 1;
+			rtcpMaxIndex = index;
+			rtcpStarted = true;
+		}
+		else
+		{
+			rtcpWindow |= 1L << (rtcpMaxIndex - index);
+		}
+
+		store(packet, work, end);
+		return true;
+	}
+
+	public synchronized long getAuthFailures()
+	{
+		return authFailures;
+	}
+
+	public synchronized long getReplays()
+	{
+		return replays;
+	}
+}
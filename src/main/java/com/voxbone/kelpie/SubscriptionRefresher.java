@@ -0,0 +1,266 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Schedules the re-SUBSCRIBEs of our outbound subscriptions.
+ *
+ * Each refresh is due at a random point of the remaining validity window so a book
+ * restored after a restart does not fire all at once. Due refreshes wait in a backlog
+ * and are released to a small pool of threads by a token bucket, which caps the rate
+ * of SUBSCRIBEs we send to the proxy
+ *
+ */
+public class SubscriptionRefresher
+{
+	// part of the remaining validity a refresh is spread over
+	private static final double WINDOW_START = 0.4;
+	private static final double WINDOW_END = 0.7;
+
+	private static double RATE = 20;
+	private static double BURST = 20;
+	private static int THREADS = 2;
+
+	private static TimingWheel wheel = null;
+	private static ExecutorService executor = null;
+
+	private static ConcurrentLinkedQueue<Refresh> backlog = new ConcurrentLinkedQueue<Refresh>();
+
+	// token bucket, guarded by the class
+	private static double tokens = 0;
+	private static long lastRefill = 0;
+
+	private static Random random = new Random();
+
+	private static AtomicLong refreshed = new AtomicLong(0);
+	private static AtomicInteger backlogSize = new AtomicInteger(0);
+	private static LatencyHistogram lag = new LatencyHistogram();
+
+	static Logger logger = Logger.getLogger(SubscriptionRefresher.class);
+
+	private static class Refresh implements Runnable
+	{
+		SipSubscription sub;
+		long due;
+
+		Refresh(SipSubscription sub, long due)
+		{
+			this.sub = sub;
+			this.due = due;
+		}
+
+		/*
+		 * On the wheel: the refresh is due, queue it
+		 */
+		public void run()
+		{
+			SipSubscriptionManager.refreshQueued(sub);
+			backlog.add(this);
+			backlogSize.incrementAndGet();
+			drain();
+		}
+	}
+
+	private static class Sender implements Runnable
+	{
+		Refresh refresh;
+
+		Sender(Refresh refresh)
+		{
+			this.refresh = refresh;
+		}
+
+		public void run()
+		{
+			SipSubscription sub = refresh.sub;
+			if (sub.isCancelled())
+			{
+				return;
+			}
+			lag.record(Math.max(0, System.nanoTime() - refresh.due));
+			refreshed.incrementAndGet();
+			sub.sendSubscribe(false);
+			SipSubscriptionManager.refreshSent(sub);
+			if (!sub.isCancelled())
+			{
+				schedule(sub);
+			}
+		}
+	}
+
+	private static class Drainer implements Runnable
+	{
+		public void run()
+		{
+			drain();
+			wheel.schedule(this, 1, TimeUnit.SECONDS);
+		}
+	}
+
+	public static void configure(Properties properties)
+	{
+		RATE = Double.parseDouble(properties.getProperty("com.voxbone.kelpie.subscription.refresh_rate", "20"));
+		if (RATE <= 0)
+		{
+			RATE = 1;
+		}
+		BURST = Double.parseDouble(properties.getProperty("com.voxbone.kelpie.subscription.refresh_burst", Double.toString(RATE)));
+		if (BURST < 1)
+		{
+			BURST = 1;
+		}
+		THREADS = Integer.parseInt(properties.getProperty("com.voxbone.kelpie.subscription.refresh_threads", "2"));
+		if (THREADS < 1)
+		{
+			THREADS = 1;
+		}
+	}
+
+	private static synchronized TimingWheel getWheel()
+	{
+		if (wheel == null)
+		{
+			executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory()
+			{
+				private int count = 0;
+
+				public synchronized Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "Subscription Refresh " + count++);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+			tokens = BURST;
+			lastRefill = System.nanoTime();
+
+			// seconds are plenty, an hour around the wheel
+			wheel = new TimingWheel("Subscription Timer", TimeUnit.SECONDS.toNanos(1), 4096);
+			wheel.start();
+			wheel.schedule(new Drainer(), 1, TimeUnit.SECONDS);
+			logger.info("Subscription refresher started, " + RATE + " refreshes/s, " + THREADS + " threads");
+		}
+		return wheel;
+	}
+
+	/*
+	 * Releases as many due refreshes as the bucket allows
+	 */
+	private static synchronized void drain()
+	{
+		long now = System.nanoTime();
+		tokens = Math.min(BURST, tokens + (now - lastRefill) * RATE / TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+
+		while (tokens >= 1)
+		{
+			Refresh refresh = backlog.poll();
+			if (refresh == null)
+			{
+				return;
+			}
+			backlogSize.decrementAndGet();
+			if (refresh.sub.isCancelled())
+			{
+				continue;
+			}
+			tokens -= 1;
+			executor.execute(new Sender(refresh));
+		}
+	}
+
+	private static void schedule(SipSubscription sub, double start, double end)
+	{
+		long remaining = Math.max(0, sub.expires - System.currentTimeMillis());
+		long delay = (long) (remaining * (start + (end - start) * random.nextDouble()));
+
+		TimingWheel w = getWheel();
+		long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		sub.setRefresh(w.scheduleAt(new Refresh(sub, due), due));
+	}
+
+	/*
+	 * Next refresh of a live subscription, between 40% and 70% of what is left of it
+	 */
+	public static void schedule(SipSubscription sub)
+	{
+		schedule(sub, WINDOW_START, WINDOW_END);
+	}
+
+	/*
+	 * Subscription loaded from the spool, it may be close to expiring so the refresh
+	 * is spread from now on
+	 */
+	public static void scheduleRestored(SipSubscription sub)
+	{
+		long remaining = sub.expires - System.currentTimeMillis();
+		if (remaining > TimeUnit.SECONDS.toMillis(SipSubscription.EXPIRES / 2))
+		{
+			schedule(sub, WINDOW_START, WINDOW_END);
+		}
+		else
+		{
+			schedule(sub, 0, WINDOW_END);
+		}
+	}
+
+	public static int getBacklog()
+	{
+		return backlogSize.get();
+	}
+
+	public static long getRefreshedCount()
+	{
+		return refreshed.get();
+	}
+
+	public static LatencyHistogram getLag()
+	{
+		return lag;
+	}
+
+	public static int getPendingCount()
+	{
+		TimingWheel w = wheel;
+		return w == null ? 0 : w.getPendingCount();
+	}
+
+	public static String report()
+	{
+		return "subscriptions: pending=" + getPendingCount()
+		     + " backlog=" + getBacklog()
+		     + " refreshed=" + getRefreshedCount()
+		     + " lag p50=" + lag.getPercentile(0.50) / 1000000 + "ms"
+		     + " p99=" + lag.getPercentile(0.99) / 1000000 + "ms"
+		     + " max=" + lag.getMax() / 1000000 + "ms";
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+
+/**
+ * H.264 SVC to AVC on the video going from the xmpp side to the sip side, for calls
+ * where the xmpp client sends SVC and the sip side only took plain H264.
+ *
+ * Packets are filtered in place in the worker's buffer (RtpUtil.filterSVC). Dropped
+ * packets are taken out of the numbering so the receiver sees no loss, and as the
+ * marker bit often sits on the last enhancement layer packet of a frame, the last
+ * packet kept is held until the next one tells whether the frame ended with it.
+ *
+ * Not thread safe, the relay calls it with its sipLock held
+ *
+ */
+class SvcFilter
+{
+	private static boolean ENABLED = true;
+
+	private RtpRelay relay;
+	private RtpTranslator translator;
+	private int svcPayload;
+	private int avcPayload;
+
+	// last packet kept, translated already, waiting to know if it ends its frame
+	private ByteBuffer held = null;
+	private long heldTimestamp;
+
+	private long kept = 0;
+	private long dropped = 0;
+	private long markers = 0;
+
+
+	public static void configure(Properties properties)
+	{
+		ENABLED = Boolean.parseBoolean(properties.getProperty("com.voxbone.kelpie.rtp.svc_filter", "true"));
+	}
+
+	public static boolean isEnabled()
+	{
+		return ENABLED;
+	}
+
+	public SvcFilter(RtpRelay relay, RtpTranslator translator, int svcPayload, int avcPayload)
+	{
+		this.relay = relay;
+		this.translator = translator;
+		this.svcPayload = svcPayload;
+		this.avcPayload = avcPayload;
+	}
+
+	public int getSvcPayload()
+	{
+		return svcPayload;
+	}
+
+	public int getAvcPayload()
+	{
+		return avcPayload;
+	}
+
+	/*
+	 * An SVC packet from the xmpp side, the buffer is the worker's, now in ms
+	 */
+	public void process(ByteBuffer packet, long now)
+	{
+		boolean marker = RtpUtil.getMarker(packet);
+		long timestamp = RtpUtil.getTimeStamp(packet);
+
+		if (held != null && timestamp != heldTimestamp)
+		{
+			// a new frame started, the marker of the previous one was lost on the way
+			releaseHeld(true);
+		}
+
+		if (RtpUtil.filterSVC(packet) == 0)
+		{
+			dropped++;
+			translator.skip(packet);
+			if (marker && held != null)
+			{
+				releaseHeld(true);
+			}
+			return;
+		}
+
+		kept++;
+		// out before this one is numbered, the next stage may add packets after it
+		if (held != null)
+		{
+			releaseHeld(false);
+		}
+		RtpUtil.setPayloadType(packet, avcPayload);
+		translator.translate(packet, now);
+
+		if (marker)
+		{
+			relay.sendVideoToSip(packet);
+			return;
+		}
+
+		int position = packet.position();
+		held = BufferPool.acquire();
+		held.put(packet);
+		held.flip();
+		packet.position(position);
+		heldTimestamp = timestamp;
+	}
+
+	private void releaseHeld(boolean marker)
+	{
+		if (marker)
+		{
+			RtpUtil.setMarker(held, true);
+			markers++;
+		}
+		try
+		{
+			relay.sendVideoToSip(held);
+		}
+		finally
+		{
+			BufferPool.release(held);
+			held = null;
+		}
+	}
+
+	/*
+	 * The held packet goes out as it is, packets are about to be inserted after it
+	 */
+	public void flush()
+	{
+		if (held != null)
+		{
+			releaseHeld(false);
+		}
+	}
+
+	public void stop()
+	{
+		BufferPool.release(held);
+		held = null;
+	}
+
+	public String summary()
+	{
+		return "svc filter: kept=" + kept + " dropped=" + dropped + " markers_moved=" + markers;
+	}
+}
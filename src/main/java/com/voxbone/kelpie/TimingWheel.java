@@ -0,0 +1,204 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Hashed timing wheel.
+ *
+ * A single thread advances the wheel every tick and runs the expired tasks itself, so
+ * tasks must be short and never block. A task fires at most one tick after its deadline.
+ * Scheduling and cancelling are lock free, only the wheel thread touches the buckets
+ *
+ */
+public class TimingWheel extends Thread
+{
+	public static class Timeout
+	{
+		private Runnable task;
+		private long deadline;
+		private long rounds;
+		private volatile boolean cancelled = false;
+
+		private Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public void cancel()
+		{
+			cancelled = true;
+		}
+
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+	}
+
+	private long tickNanos;
+	private List<List<Timeout>> wheel;
+	private ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private long startTime;
+	private long tick = 0;
+
+	// how late tasks run compared to their deadline
+	private LatencyHistogram lateness = new LatencyHistogram();
+
+	static Logger logger = Logger.getLogger(TimingWheel.class);
+
+
+	@SuppressWarnings("unchecked")
+	public TimingWheel(String name, long tickNanos, int slots)
+	{
+		super(name);
+		setDaemon(true);
+		this.tickNanos = tickNanos;
+
+		int size = 1;
+		while (size < slots)
+		{
+			size <<= 1;
+		}
+		wheel = new ArrayList<List<Timeout>>(size);
+		for (int i = 0; i < size; i++)
+		{
+			wheel.add(new ArrayList<Timeout>());
+		}
+		startTime = System.nanoTime();
+	}
+
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		return scheduleAt(task, System.nanoTime() + Math.max(0, unit.toNanos(delay)));
+	}
+
+	/*
+	 * For periodic tasks, the deadline is absolute (System.nanoTime()) so the period
+	 * does not drift with the time the task took
+	 */
+	public Timeout scheduleAt(Runnable task, long deadline)
+	{
+		Timeout timeout = new Timeout(task, deadline);
+		added.add(timeout);
+		return timeout;
+	}
+
+	public LatencyHistogram getLateness()
+	{
+		return lateness;
+	}
+
+	public long getTickNanos()
+	{
+		return tickNanos;
+	}
+
+	public int getSlotCount()
+	{
+		return wheel.size();
+	}
+
+	/*
+	 * Approximate, the buckets are read without the wheel thread's cooperation
+	 */
+	public int getPendingCount()
+	{
+		int count = added.size();
+		for (List<Timeout> bucket : wheel)
+		{
+			count += bucket.size();
+		}
+		return count;
+	}
+
+	private void transfer()
+	{
+		Timeout timeout;
+		while ((timeout = added.poll()) != null)
+		{
+			if (timeout.cancelled)
+			{
+				continue;
+			}
+			long ticks = (timeout.deadline - startTime) / tickNanos;
+			timeout.rounds = (ticks - tick) / wheel.size();
+			// already due, run on this tick
+			ticks = Math.max(ticks, tick);
+			wheel.get((int) (ticks & (wheel.size() - 1))).add(timeout);
+		}
+	}
+
+	private void expire(List<Timeout> bucket, long now)
+	{
+		Iterator<Timeout> it = bucket.iterator();
+		while (it.hasNext())
+		{
+			Timeout timeout = it.next();
+			if (timeout.cancelled)
+			{
+				it.remove();
+			}
+			else if (timeout.rounds <= 0)
+			{
+				it.remove();
+				lateness.record(Math.max(0, now - timeout.deadline));
+				try
+				{
+					timeout.task.run();
+				}
+				catch (Throwable t)
+				{
+					logger.error("Error in " + getName() + " task", t);
+				}
+			}
+			else
+			{
+				timeout.rounds--;
+			}
+		}
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			long deadline = startTime + (tick + 1) * tickNanos;
+			long now = System.nanoTime();
+			while (now < deadline)
+			{
+				LockSupport.parkNanos(deadline - now);
+				now = System.nanoTime();
+			}
+
+			transfer();
+			expire(wheel.get((int) (tick & (wheel.size() - 1))), now);
+			tick++;
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * H264Packetizer on handmade H.264 packets, in both packetization modes
+ *
+ */
+public class H264PacketizerTest
+{
+	private static final int PT = 99;
+	private static final int MTU = 100;
+
+	private static final int SLICE = 0x61;
+	private static final int IDR = 0x65;
+	private static final int STAP_A = 0x78;
+	private static final int FU_A = 0x7C;
+
+	/*
+	 * Keeps a copy of what would go to the sip side
+	 */
+	private static class Sent implements SipSender
+	{
+		List<ByteBuffer> packets = new ArrayList<ByteBuffer>();
+
+		public void sendToSip(ByteBuffer buffer)
+		{
+			ByteBuffer copy = ByteBuffer.allocate(buffer.limit());
+			for (int i = 0; i < buffer.limit(); i++)
+			{
+				copy.put(i, buffer.get(i));
+			}
+			packets.add(copy);
+		}
+	}
+
+	private Sent sent = new Sent();
+	private RtpTranslator translator = new RtpTranslator(90000);
+	private int seq = 5000;
+
+
+	private H264Packetizer packetizer(int mode)
+	{
+		Properties properties = new Properties();
+		properties.setProperty("com.voxbone.kelpie.rtp.video_mtu", Integer.toString(MTU));
+		H264Packetizer.configure(properties);
+		return new H264Packetizer(sent, translator, PT, mode);
+	}
+
+	/*
+	 * The next packet of the source, translated like the relay does before the packetizer
+	 */
+	private ByteBuffer packet(byte [] payload, boolean marker)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(1500);
+		RtpUtil.buildRtpHeader(buffer, PT, seq++, 180000, 0x0BADCAFE);
+		RtpUtil.setMarker(buffer, marker);
+		for (int i = 0; i < payload.length; i++)
+		{
+			buffer.put(RtpUtil.RTP_HEADER_LENGTH + i, payload[i]);
+		}
+		buffer.limit(RtpUtil.RTP_HEADER_LENGTH + payload.length);
+		translator.translate(buffer, 0);
+		return buffer;
+	}
+
+	/*
+	 * A NAL unit of the given header and size, the rest numbered so any reordering shows
+	 */
+	private static byte [] nal(int header, int length)
+	{
+		byte [] data = new byte[length];
+		data[0] = (byte) header;
+		for (int i = 1; i < length; i++)
+		{
+			data[i] = (byte) i;
+		}
+		return data;
+	}
+
+	private static byte [] stap(byte [] ... units)
+	{
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(STAP_A);
+		for (byte [] unit : units)
+		{
+			data.write(unit.length >> 8);
+			data.write(unit.length);
+			data.write(unit, 0, unit.length);
+		}
+		return data.toByteArray();
+	}
+
+	private static byte [] payload(ByteBuffer buffer)
+	{
+		byte [] data = new byte[buffer.limit() - RtpUtil.RTP_HEADER_LENGTH];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = buffer.get(RtpUtil.RTP_HEADER_LENGTH + i);
+		}
+		return data;
+	}
+
+	/*
+	 * What was sent is numbered without gaps from the given sequence number and all under the same ssrc
+	 */
+	private void assertContinuous(int from)
+	{
+		for (int i = 0; i < sent.packets.size(); i++)
+		{
+			ByteBuffer p = sent.packets.get(i);
+			assertEquals((from + i) & 0xFFFF, RtpUtil.getSequenceNumber(p));
+			assertEquals(translator.getSsrc(), RtpUtil.getSSRC(p));
+			assertEquals(PT, RtpUtil.getPayloadType(p));
+		}
+	}
+
+	@Test
+	public void smallPacketsPassInModeOne()
+	{
+		H264Packetizer packetizer = packetizer(1);
+		ByteBuffer p = packet(nal(SLICE, 40), true);
+		int first = RtpUtil.getSequenceNumber(p);
+		packetizer.process(p);
+
+		assertEquals(1, sent.packets.size());
+		assertArrayEquals(nal(SLICE, 40), payload(sent.packets.get(0)));
+		assertTrue(RtpUtil.getMarker(sent.packets.get(0)));
+		assertContinuous(first);
+	}
+
+	@Test
+	public void bigNalIsFragmentedInModeOne()
+	{
+		H264Packetizer packetizer = packetizer(1);
+		byte [] unit = nal(IDR, 300);
+		ByteBuffer p = packet(unit, true);
+		int first = RtpUtil.getSequenceNumber(p);
+		packetizer.process(p);
+		packetizer.process(packet(nal(SLICE, 20), true));
+
+		int pieces = sent.packets.size() - 1;
+		assertTrue(pieces > 1);
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(IDR);
+		for (int i = 0; i < pieces; i++)
+		{
+			ByteBuffer piece = sent.packets.get(i);
+			byte [] fu = payload(piece);
+			assertTrue(piece.limit() <= MTU);
+			assertEquals(FU_A, fu[0] & 0xFF);
+			assertEquals(5, fu[1] & 0x1F);
+			assertEquals(i == 0, (fu[1] & 0x80) != 0);
+			assertEquals(i == pieces - 1, (fu[1] & 0x40) != 0);
+			assertEquals(i == pieces - 1, RtpUtil.getMarker(piece));
+			data.write(fu, 2, fu.length - 2);
+		}
+		assertArrayEquals(unit, data.toByteArray());
+		// the packet after takes the number after the last piece
+		assertContinuous(first);
+	}
+
+	@Test
+	public void bigAggregateIsSplitInModeOne()
+	{
+		H264Packetizer packetizer = packetizer(1);
+		byte [] a = nal(0x67, 30);
+		byte [] b = nal(0x68, 30);
+		byte [] c = nal(IDR, 60);
+		ByteBuffer p = packet(stap(a, b, c), true);
+		int first = RtpUtil.getSequenceNumber(p);
+		packetizer.process(p);
+
+		// the first two still fit together, the third goes on its own
+		assertEquals(2, sent.packets.size());
+		assertArrayEquals(stap(a, b), payload(sent.packets.get(0)));
+		assertFalse(RtpUtil.getMarker(sent.packets.get(0)));
+		assertArrayEquals(c, payload(sent.packets.get(1)));
+		assertTrue(RtpUtil.getMarker(sent.packets.get(1)));
+		assertContinuous(first);
+	}
+
+	@Test
+	public void aggregateIsSplitInModeZero()
+	{
+		H264Packetizer packetizer = packetizer(0);
+		byte [] a = nal(0x67, 10);
+		byte [] b = nal(0x68, 5);
+		byte [] c = nal(IDR, 20);
+		ByteBuffer p = packet(stap(a, b, c), true);
+		int first = RtpUtil.getSequenceNumber(p);
+		packetizer.process(p);
+		packetizer.process(packet(nal(SLICE, 20), true));
+
+		assertEquals(4, sent.packets.size());
+		assertArrayEquals(a, payload(sent.packets.get(0)));
+		assertArrayEquals(b, payload(sent.packets.get(1)));
+		assertArrayEquals(c, payload(sent.packets.get(2)));
+		assertFalse(RtpUtil.getMarker(sent.packets.get(0)));
+		assertFalse(RtpUtil.getMarker(sent.packets.get(1)));
+		assertTrue(RtpUtil.getMarker(sent.packets.get(2)));
+		assertContinuous(first);
+	}
+
+	@Test
+	public void fragmentsAreReassembledInModeZero()
+	{
+		H264Packetizer packetizer = packetizer(0);
+		byte [] unit = nal(IDR, 200);
+		ByteBuffer p = null;
+		int first = -1;
+		for (int from = 1; from < unit.length; from += 50)
+		{
+			int to = Math.min(unit.length, from + 50);
+			byte [] fu = new byte[2 + to - from];
+			fu[0] = (byte) FU_A;
+			fu[1] = (byte) ((from == 1 ? 0x80 : 0) | (to == unit.length ? 0x40 : 0) | 5);
+			System.arraycopy(unit, from, fu, 2, to - from);
+			p = packet(fu, to == unit.length);
+			if (first < 0)
+			{
+				first = RtpUtil.getSequenceNumber(p);
+			}
+			packetizer.process(p);
+		}
+		packetizer.process(packet(nal(SLICE, 20), true));
+
+		assertEquals(2, sent.packets.size());
+		assertArrayEquals(unit, payload(sent.packets.get(0)));
+		assertTrue(RtpUtil.getMarker(sent.packets.get(0)));
+		// the merged fragments gave their numbers back
+		assertContinuous(first);
+	}
+
+	@Test
+	public void lostFragmentDiscardsTheUnit()
+	{
+		H264Packetizer packetizer = packetizer(0);
+		packetizer.process(packet(new byte [] { (byte) FU_A, (byte) 0x85, 1, 2, 3 }, false));
+		// the middle fragment never comes
+		seq++;
+		packetizer.process(packet(new byte [] { (byte) FU_A, (byte) 0x45, 7, 8, 9 }, true));
+
+		assertEquals(0, sent.packets.size());
+		assertTrue(packetizer.summary().indexOf("discarded=1") >= 0);
+	}
+}
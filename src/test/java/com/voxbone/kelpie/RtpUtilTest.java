@@ -0,0 +1,177 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * RtpUtil.filterSVC on handmade H.264 SVC packets
+ *
+ */
+public class RtpUtilTest
+{
+	private static final int SVC_PT = 97;
+
+	// NAL unit headers, nri 3
+	private static final int SPS = 0x67;
+	private static final int IDR = 0x65;
+	private static final int SLICE = 0x61;
+	private static final int PREFIX = 0x6E;
+	private static final int SLICE_EXT = 0x74;
+	private static final int STAP_A = 0x78;
+	private static final int FU_A = 0x7C;
+
+
+	/*
+	 * An rtp packet of the given payload, after an optional header extension of one word
+	 * and followed by padding when asked
+	 */
+	private static ByteBuffer packet(int [] payload, boolean extension, int padding)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(1500);
+		RtpUtil.buildRtpHeader(buffer, SVC_PT, 1000, 90000, 0x11223344);
+		int offset = RtpUtil.RTP_HEADER_LENGTH;
+		if (extension)
+		{
+			buffer.put(0, (byte) (buffer.get(0) | 0x10));
+			buffer.putShort(offset, (short) 0xBEDE);
+			buffer.putShort(offset + 2, (short) 1);
+			buffer.putInt(offset + 4, 0x12345678);
+			offset += 8;
+		}
+		for (int i = 0; i < payload.length; i++)
+		{
+			buffer.put(offset++, (byte) payload[i]);
+		}
+		if (padding > 0)
+		{
+			buffer.put(0, (byte) (buffer.get(0) | 0x20));
+			for (int i = 0; i < padding; i++)
+			{
+				buffer.put(offset++, (byte) (i == padding - 1 ? padding : 0));
+			}
+		}
+		buffer.limit(offset);
+		return buffer;
+	}
+
+	private static byte [] payload(ByteBuffer buffer)
+	{
+		int header = RtpUtil.getHeaderLength(buffer);
+		byte [] data = new byte[buffer.limit() - header];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = buffer.get(header + i);
+		}
+		return data;
+	}
+
+	private static byte [] bytes(int... values)
+	{
+		byte [] data = new byte[values.length];
+		for (int i = 0; i < values.length; i++)
+		{
+			data[i] = (byte) values[i];
+		}
+		return data;
+	}
+
+	@Test
+	public void stapKeepsBaseLayer()
+	{
+		ByteBuffer buffer = packet(new int [] {
+			STAP_A,
+			0, 4, SPS, 0x42, 0xC0, 0x1E,
+			0, 3, PREFIX, 0x80, 0x00,
+			0, 5, IDR, 0x88, 0x84, 0x21, 0x00,
+			0, 3, SLICE_EXT, 0x81, 0x01 }, false, 0);
+
+		int length = RtpUtil.filterSVC(buffer);
+		assertEquals(RtpUtil.RTP_HEADER_LENGTH + 1 + 6 + 7, length);
+		assertEquals(length, buffer.limit());
+		assertArrayEquals(bytes(STAP_A,
+			0, 4, SPS, 0x42, 0xC0, 0x1E,
+			0, 5, IDR, 0x88, 0x84, 0x21, 0x00), payload(buffer));
+		assertEquals(0x11223344, RtpUtil.getSSRC(buffer));
+		assertEquals(1000, RtpUtil.getSequenceNumber(buffer));
+	}
+
+	@Test
+	public void stapOfEnhancementOnlyIsDropped()
+	{
+		ByteBuffer buffer = packet(new int [] {
+			STAP_A,
+			0, 3, PREFIX, 0x80, 0x00,
+			0, 3, SLICE_EXT, 0x81, 0x01 }, false, 0);
+		assertEquals(0, RtpUtil.filterSVC(buffer));
+	}
+
+	@Test
+	public void truncatedStapStopsAtTheBadEntry()
+	{
+		ByteBuffer buffer = packet(new int [] {
+			STAP_A,
+			0, 2, SLICE, 0x9A,
+			0, 9, IDR, 0x88 }, false, 0);
+		assertEquals(RtpUtil.RTP_HEADER_LENGTH + 1 + 4, RtpUtil.filterSVC(buffer));
+		assertArrayEquals(bytes(STAP_A, 0, 2, SLICE, 0x9A), payload(buffer));
+	}
+
+	@Test
+	public void fragmentsFollowTheirNalType()
+	{
+		// the FU header carries the type of the fragmented unit
+		ByteBuffer svc = packet(new int [] { FU_A, 0x80 | 20, 0x01, 0x02, 0x03 }, false, 0);
+		assertEquals(0, RtpUtil.filterSVC(svc));
+
+		ByteBuffer avc = packet(new int [] { FU_A, 0x80 | 5, 0x01, 0x02, 0x03 }, false, 0);
+		assertEquals(RtpUtil.RTP_HEADER_LENGTH + 5, RtpUtil.filterSVC(avc));
+		assertArrayEquals(bytes(FU_A, 0x80 | 5, 0x01, 0x02, 0x03), payload(avc));
+
+		ByteBuffer cut = packet(new int [] { FU_A }, false, 0);
+		assertEquals(0, RtpUtil.filterSVC(cut));
+	}
+
+	@Test
+	public void singleNalUnits()
+	{
+		assertEquals(0, RtpUtil.filterSVC(packet(new int [] { PREFIX, 0x80, 0x00 }, false, 0)));
+		assertEquals(0, RtpUtil.filterSVC(packet(new int [] { SLICE_EXT, 0x81, 0x01 }, false, 0)));
+
+		ByteBuffer slice = packet(new int [] { SLICE, 0x9A, 0x02 }, false, 0);
+		assertEquals(RtpUtil.RTP_HEADER_LENGTH + 3, RtpUtil.filterSVC(slice));
+		assertArrayEquals(bytes(SLICE, 0x9A, 0x02), payload(slice));
+	}
+
+	@Test
+	public void extensionAndPaddingAreRemoved()
+	{
+		ByteBuffer buffer = packet(new int [] { SLICE, 0x9A, 0x02, 0x03 }, true, 4);
+		assertEquals(RtpUtil.RTP_HEADER_LENGTH + 4, RtpUtil.filterSVC(buffer));
+		assertFalse(RtpUtil.hasExtension(buffer));
+		assertFalse(RtpUtil.hasPadding(buffer));
+		assertEquals(2, RtpUtil.getVersion(buffer));
+		assertEquals(SVC_PT, RtpUtil.getPayloadType(buffer));
+		assertArrayEquals(bytes(SLICE, 0x9A, 0x02, 0x03), payload(buffer));
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ *    Copyright 2012 Voxbone SA/NV
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.voxbone.kelpie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import org.junit.Test;
+
+/**
+ * SrtpContext against the RFC 3711 appendix B vectors, and the checks on the receiving side
+ *
+ */
+public class SrtpContextTest
+{
+	private static final String SUITE = SrtpContext.AES_CM_128_HMAC_SHA1_80;
+	private static final int SSRC = 0x12345678;
+	private static final int PAYLOAD_LENGTH = 160;
+
+
+	private static byte [] hex(String s)
+	{
+		byte [] data = new byte[s.length() / 2];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+		}
+		return data;
+	}
+
+	private static SrtpContext.Crypto crypto()
+	{
+		return new SrtpContext.Crypto(1, SUITE, hex("E1F97A0D3E018BE0D64FA32C06DE4139" + "0EC675AD498AFEEBB6960B3AABE6"));
+	}
+
+	private static ByteBuffer packet(int seq)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(BufferPool.getBufferSize());
+		RtpUtil.buildRtpHeader(buffer, 0, seq, seq * 160L, SSRC);
+		for (int i = 0; i < PAYLOAD_LENGTH; i++)
+		{
+			buffer.put(RtpUtil.RTP_HEADER_LENGTH + i, (byte) (seq + i));
+		}
+		buffer.limit(RtpUtil.RTP_HEADER_LENGTH + PAYLOAD_LENGTH);
+		return buffer;
+	}
+
+	private static byte [] bytes(ByteBuffer buffer)
+	{
+		byte [] data = new byte[buffer.limit()];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = buffer.get(i);
+		}
+		return data;
+	}
+
+	private static ByteBuffer copy(ByteBuffer buffer)
+	{
+		ByteBuffer copy = ByteBuffer.allocate(buffer.capacity());
+		byte [] data = bytes(buffer);
+		copy.put(data);
+		copy.limit(data.length);
+		return copy;
+	}
+
+	/*
+	 * B.2, the AES-CM keystream of index 0
+	 */
+	@Test
+	public void keystream() throws Exception
+	{
+		Cipher cipher = SrtpContext.newCipher(hex("2B7E151628AED2A6ABF7158809CF4F3C"));
+		byte [] counters = new byte[48];
+		SrtpContext.fillCounters(hex("F0F1F2F3F4F5F6F7F8F9FAFBFCFD"), 0, 0, counters, 3);
+		assertArrayEquals(hex("F0F1F2F3F4F5F6F7F8F9FAFBFCFD0000"), Arrays.copyOf(counters, 16));
+
+		byte [] keystream = cipher.doFinal(counters);
+		assertArrayEquals(hex("E03EAD0935C95E80E166B16DD92B4EB4"
+		                    + "D23513162B02D0F72A43A2FE4A5F97AB"
+		                    + "41E95B3BB0A2E8DD477901E4FCA894C0"), keystream);
+	}
+
+	/*
+	 * B.3, the session keys of a master key and salt
+	 */
+	@Test
+	public void keyDerivation() throws Exception
+	{
+		Cipher master = SrtpContext.newCipher(hex("E1F97A0D3E018BE0D64FA32C06DE4139"));
+		byte [] salt = hex("0EC675AD498AFEEBB6960B3AABE6");
+
+		assertArrayEquals(hex("C61E7A93744F39EE10734AFE3FF7A087"), SrtpContext.derive(master, salt, 0, 16));
+		assertArrayEquals(hex("30CBBC08863D8C85D49DB34A9AE1"), SrtpContext.derive(master, salt, 2, 14));
+		assertArrayEquals(hex("CEBE321F6FF7716B6FD4AB49AF256A156D38BAA4"), SrtpContext.derive(master, salt, 1, 20));
+	}
+
+	@Test
+	public void roundTrip() throws Exception
+	{
+		SrtpContext sender = new SrtpContext(crypto());
+		SrtpContext receiver = new SrtpContext(crypto());
+
+		// across a sequence number wrap, the roc has to follow on both sides
+		for (int seq = 65530; seq < 65540; seq++)
+		{
+			ByteBuffer buffer = packet(seq & 0xFFFF);
+			byte [] clear = bytes(buffer);
+
+			assertTrue(sender.protectRtp(buffer));
+			assertEquals(clear.length + 10, buffer.limit());
+			assertFalse(Arrays.equals(clear, Arrays.copyOf(bytes(buffer), clear.length)));
+
+			assertTrue(receiver.unprotectRtp(buffer));
+			assertArrayEquals(clear, bytes(buffer));
+		}
+		assertEquals(0, receiver.getAuthFailures());
+		assertEquals(0, receiver.getReplays());
+	}
+
+	@Test
+	public void replayRejected() throws Exception
+	{
+		SrtpContext sender = new SrtpContext(crypto());
+		SrtpContext receiver = new SrtpContext(crypto());
+
+		ByteBuffer first = packet(100);
+		assertTrue(sender.protectRtp(first));
+		ByteBuffer again = copy(first);
+		assertTrue(receiver.unprotectRtp(first));
+
+		assertFalse(receiver.unprotectRtp(again));
+		assertEquals(1, receiver.getReplays());
+
+		// an older packet still inside the window gets in once
+		ByteBuffer newer = packet(101);
+		assertTrue(sender.protectRtp(newer));
+		ByteBuffer late = packet(99);
+		assertTrue(sender.protectRtp(late));
+		assertTrue(receiver.unprotectRtp(newer));
+		ByteBuffer lateAgain = copy(late);
+		assertTrue(receiver.unprotectRtp(late));
+		assertFalse(receiver.unprotectRtp(lateAgain));
+		assertEquals(2, receiver.getReplays());
+	}
+
+	@Test
+	public void tamperedTagRejected() throws Exception
+	{
+		SrtpContext sender = new SrtpContext(crypto());
+		SrtpContext receiver = new SrtpContext(crypto());
+
+		ByteBuffer buffer = packet(200);
+		assertTrue(sender.protectRtp(buffer));
+		ByteBuffer payload = copy(buffer);
+		int last = buffer.limit() - 1;
+		buffer.put(last, (byte) (buffer.get(last) ^ 0x01));
+		assertFalse(receiver.unprotectRtp(buffer));
+		assertEquals(1, receiver.getAuthFailures());
+
+		// a changed payload byte under a good tag fails the same way
+		payload.put(RtpUtil.RTP_HEADER_LENGTH, (byte) (payload.get(RtpUtil.RTP_HEADER_LENGTH) ^ 0x80));
+		assertFalse(receiver.unprotectRtp(payload));
+		assertEquals(2, receiver.getAuthFailures());
+		assertEquals(0, receiver.getReplays());
+	}
+}